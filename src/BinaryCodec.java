@@ -0,0 +1,446 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * BinaryCodec class encodes and decodes the compact binary wire protocol.
+ * It is the opt-in alternative to the JSON text frames. A connection uses it
+ * once it sends its first binary frame, and from then on the server sends it
+ * binary frames only.
+ * <p>
+ * Every frame starts with a one-byte opcode followed by the fields of that
+ * opcode in order. IDs, versions, offsets and limits are 4-byte big-endian
+ * ints and timestamps are 8-byte longs. Strings are UTF-8 prefixed with their
+ * byte length as an unsigned varint. Lists are a varint count followed by the
+ * elements.
+ * <pre>
+ * Client to server:
+ *   0x01 username      username, room ("" for the default room), optionally
+ *                      epoch and since (longs) to resume from an event number
+ *   0x02 add           username, message
+ *   0x03 del           id, username
+ *   0x04 update        id, username, message
+ *   0x05 getParticipants
+ *   0x06 history       before, limit (0 for the default)
+ *   0x07 search        query, offset, limit (0 for the default)
+ *   0x08 joinRoom      room
+ *   0x09 leaveRoom
+ * Server to client:
+ *   0x41 message       id, timestamp, username, message, seq (long)
+ *   0x42 join          version, username, message
+ *   0x43 left          version, username, message
+ *   0x44 del           id, username, message, seq (long)
+ *   0x45 update        id, username, message, seq (long)
+ *   0x46 alert         message
+ *   0x47 participants  version, list of usernames
+ *   0x48 history       hasMore (one byte), list of (id, timestamp, username, message)
+ *   0x49 searchResults query, offset, total, maxOffset, list of (id, timestamp, username, message)
+ *   0x4A roomJoined    room, epoch (long), seq (long), resumed (one byte)
+ *   0x4B batch         list of (varint length, event frame)
+ * </pre>
+ */
+public final class BinaryCodec {
+
+    private static final byte USERNAME = 0x01;
+    private static final byte ADD = 0x02;
+    private static final byte DEL = 0x03;
+    private static final byte UPDATE = 0x04;
+    private static final byte GET_PARTICIPANTS = 0x05;
+    private static final byte HISTORY = 0x06;
+    private static final byte SEARCH = 0x07;
+    private static final byte JOIN_ROOM = 0x08;
+    private static final byte LEAVE_ROOM = 0x09;
+
+    private static final byte EVENT_MESSAGE = 0x41;
+    private static final byte EVENT_JOIN = 0x42;
+    private static final byte EVENT_LEFT = 0x43;
+    private static final byte EVENT_DEL = 0x44;
+    private static final byte EVENT_UPDATE = 0x45;
+    private static final byte EVENT_ALERT = 0x46;
+    private static final byte EVENT_PARTICIPANTS = 0x47;
+    private static final byte EVENT_HISTORY = 0x48;
+    private static final byte EVENT_SEARCH_RESULTS = 0x49;
+    private static final byte EVENT_ROOM_JOINED = 0x4A;
+    private static final byte EVENT_BATCH = 0x4B;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Decodes a client frame.
+     *
+     * @param frame The frame payload.
+     * @return The decoded request.
+     * @throws IllegalArgumentException If the frame is truncated or has an
+     *                                  unknown opcode.
+     */
+    public static ClientRequest decodeRequest(ByteBuffer frame) {
+        try {
+            byte opcode = frame.get();
+            switch (opcode) {
+                case USERNAME: {
+                    String username = readString(frame);
+                    String room = readString(frame);
+                    long epoch = 0;
+                    long since = -1;
+                    if (frame.remaining() >= 16) {
+                        epoch = frame.getLong();
+                        since = frame.getLong();
+                    }
+                    return new ClientRequest("username", username, "", 0, room.isEmpty() ? null : room,
+                            Integer.MAX_VALUE, 0, "", 0, epoch, since);
+                }
+                case ADD: {
+                    String username = readString(frame);
+                    return request("add", username, readString(frame), 0, null);
+                }
+                case DEL: {
+                    int id = frame.getInt();
+                    return request("del", readString(frame), "", id, null);
+                }
+                case UPDATE: {
+                    int id = frame.getInt();
+                    String username = readString(frame);
+                    return request("update", username, readString(frame), id, null);
+                }
+                case GET_PARTICIPANTS:
+                    return request("getParticipants", "", "", 0, null);
+                case HISTORY: {
+                    int before = frame.getInt();
+                    int limit = frame.getInt();
+                    return new ClientRequest("history", "", "", 0, null, before, limit, "", 0);
+                }
+                case SEARCH: {
+                    String query = readString(frame);
+                    int offset = frame.getInt();
+                    int limit = frame.getInt();
+                    return new ClientRequest("search", "", "", 0, null, Integer.MAX_VALUE, limit, query, offset);
+                }
+                case JOIN_ROOM:
+                    return request("joinRoom", "", "", 0, readString(frame));
+                case LEAVE_ROOM:
+                    return request("leaveRoom", "", "", 0, null);
+                default:
+                    throw new IllegalArgumentException("Unknown opcode: " + opcode);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    /**
+     * Creates a request with the history and search fields left at their
+     * defaults.
+     */
+    private static ClientRequest request(String action, String username, String message, int id, String room) {
+        return new ClientRequest(action, username, message, id, room, Integer.MAX_VALUE, 0, "", 0);
+    }
+
+    /**
+     * Encodes a client request. Used by binary clients such as the load
+     * generator.
+     *
+     * @param request The request.
+     * @return The frame payload, ready to read.
+     * @throws IllegalArgumentException If the action has no binary encoding.
+     */
+    public static ByteBuffer encodeRequest(ClientRequest request) {
+        Writer out = new Writer(32);
+        switch (request.getAction()) {
+            case "username":
+                out.put(USERNAME).putString(request.getUsername())
+                        .putString(request.getRoom() == null ? "" : request.getRoom());
+                if (request.getSince() >= 0) {
+                    out.putLong(request.getEpoch()).putLong(request.getSince());
+                }
+                break;
+            case "add":
+                out.put(ADD).putString(request.getUsername()).putString(request.getMessage());
+                break;
+            case "del":
+                out.put(DEL).putInt(request.getId()).putString(request.getUsername());
+                break;
+            case "update":
+                out.put(UPDATE).putInt(request.getId()).putString(request.getUsername())
+                        .putString(request.getMessage());
+                break;
+            case "getParticipants":
+                out.put(GET_PARTICIPANTS);
+                break;
+            case "history":
+                out.put(HISTORY).putInt(request.getBefore()).putInt(request.getLimit(0));
+                break;
+            case "search":
+                out.put(SEARCH).putString(request.getQuery()).putInt(request.getOffset())
+                        .putInt(request.getLimit(0));
+                break;
+            case "joinRoom":
+                out.put(JOIN_ROOM).putString(request.getRoom());
+                break;
+            case "leaveRoom":
+                out.put(LEAVE_ROOM);
+                break;
+            default:
+                throw new IllegalArgumentException("No binary encoding for action: " + request.getAction());
+        }
+        return out.finish();
+    }
+
+    /**
+     * Encodes a new chat message.
+     *
+     * @param message The message.
+     * @param seq     The room's event number, or 0 for none.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodeMessage(GroupChatServer.Message message, long seq) {
+        Writer out = new Writer(40);
+        out.put(EVENT_MESSAGE);
+        writeMessage(out, message);
+        out.putLong(seq);
+        return out.finish();
+    }
+
+    /**
+     * Encodes a "join" or "left" presence delta.
+     *
+     * @param action   The action, "join" or "left".
+     * @param version  The membership version after the change.
+     * @param username The username that joined or left.
+     * @param message  The notice shown to users.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodePresence(String action, int version, String username, String message) {
+        Writer out = new Writer(32);
+        out.put(action.equals("join") ? EVENT_JOIN : EVENT_LEFT).putInt(version)
+                .putString(username).putString(message);
+        return out.finish();
+    }
+
+    /**
+     * Encodes a "del" or "update" event.
+     *
+     * @param action   The action, "del" or "update".
+     * @param id       The message ID.
+     * @param username The username.
+     * @param message  The new content for an update, or the notice for a delete.
+     * @param seq      The room's event number, or 0 for none.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodeChange(String action, int id, String username, String message, long seq) {
+        Writer out = new Writer(40);
+        out.put(action.equals("update") ? EVENT_UPDATE : EVENT_DEL).putInt(id)
+                .putString(username).putString(message).putLong(seq);
+        return out.finish();
+    }
+
+    /**
+     * Encodes an alert shown to a single user.
+     *
+     * @param message The alert text.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodeAlert(String message) {
+        Writer out = new Writer(32);
+        out.put(EVENT_ALERT).putString(message);
+        return out.finish();
+    }
+
+    /**
+     * Encodes a participant list.
+     *
+     * @param version      The membership version of the list.
+     * @param participants The usernames.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodeParticipants(int version, Collection<String> participants) {
+        Writer out = new Writer(16 + participants.size() * 12);
+        out.put(EVENT_PARTICIPANTS).putInt(version).putVarint(participants.size());
+        for (String participant : participants) {
+            out.putString(participant);
+        }
+        return out.finish();
+    }
+
+    /**
+     * Encodes a page of history.
+     *
+     * @param page    The messages, oldest first.
+     * @param hasMore True if older messages exist.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodeHistory(List<GroupChatServer.Message> page, boolean hasMore) {
+        Writer out = new Writer(16 + page.size() * 48);
+        out.put(EVENT_HISTORY).put((byte) (hasMore ? 1 : 0)).putVarint(page.size());
+        for (GroupChatServer.Message message : page) {
+            writeMessage(out, message);
+        }
+        return out.finish();
+    }
+
+    /**
+     * Encodes a page of search results.
+     *
+     * @param query     The search query.
+     * @param offset    The number of best hits skipped.
+     * @param total     The number of matching messages.
+     * @param maxOffset The largest offset that still returns hits.
+     * @param results   The messages, best hit first.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodeSearchResults(String query, int offset, int total, int maxOffset,
+                                                 List<GroupChatServer.Message> results) {
+        Writer out = new Writer(36 + results.size() * 48);
+        out.put(EVENT_SEARCH_RESULTS).putString(query).putInt(offset).putInt(total).putInt(maxOffset)
+                .putVarint(results.size());
+        for (GroupChatServer.Message message : results) {
+            writeMessage(out, message);
+        }
+        return out.finish();
+    }
+
+    /**
+     * Encodes the confirmation that a user is now in a room.
+     *
+     * @param room    The room name.
+     * @param epoch   The epoch of the room's event numbers.
+     * @param seq     The number of the room's last event.
+     * @param resumed True if the missed events follow instead of history.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodeRoomJoined(String room, long epoch, long seq, boolean resumed) {
+        Writer out = new Writer(40);
+        out.put(EVENT_ROOM_JOINED).putString(room).putLong(epoch).putLong(seq).put((byte) (resumed ? 1 : 0));
+        return out.finish();
+    }
+
+    /**
+     * Encodes several events as one batch frame.
+     *
+     * @param events The encoded events, oldest first.
+     * @return The frame payload, ready to read.
+     */
+    public static ByteBuffer encodeBatch(List<ByteBuffer> events) {
+        int capacity = 8;
+        for (ByteBuffer event : events) {
+            capacity += 5 + event.remaining();
+        }
+        Writer out = new Writer(capacity);
+        out.put(EVENT_BATCH).putVarint(events.size());
+        for (ByteBuffer event : events) {
+            out.putVarint(event.remaining()).putBytes(event.duplicate());
+        }
+        return out.finish();
+    }
+
+    /**
+     * Writes the fields of one message.
+     */
+    private static void writeMessage(Writer out, GroupChatServer.Message message) {
+        out.putInt(message.getId()).putLong(message.getTimestamp())
+                .putString(message.getUsername()).putString(message.getContent());
+    }
+
+    /**
+     * Reads a varint-prefixed UTF-8 string.
+     *
+     * @param in The frame.
+     * @return The string.
+     */
+    private static String readString(ByteBuffer in) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IllegalArgumentException("Malformed string length");
+            }
+            byte b = in.get();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (!in.hasArray()) {
+            byte[] utf8 = new byte[length];
+            in.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Writer class is a growable big-endian byte buffer.
+     */
+    private static final class Writer {
+        private byte[] bytes;
+        private int position;
+
+        Writer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (position + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + extra));
+            }
+        }
+
+        Writer put(byte value) {
+            ensure(1);
+            bytes[position++] = value;
+            return this;
+        }
+
+        Writer putInt(int value) {
+            ensure(4);
+            bytes[position++] = (byte) (value >>> 24);
+            bytes[position++] = (byte) (value >>> 16);
+            bytes[position++] = (byte) (value >>> 8);
+            bytes[position++] = (byte) value;
+            return this;
+        }
+
+        Writer putLong(long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        Writer putVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[position++] = (byte) value;
+            return this;
+        }
+
+        Writer putBytes(ByteBuffer value) {
+            int length = value.remaining();
+            ensure(length);
+            value.get(bytes, position, length);
+            position += length;
+            return this;
+        }
+
+        Writer putString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, position, utf8.length);
+            position += utf8.length;
+            return this;
+        }
+
+        ByteBuffer finish() {
+            return ByteBuffer.wrap(bytes, 0, position);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * BroadcastBatch class collects the events a room broadcasts over a short
+ * window so they can be sent as one frame. While collecting it drops events
+ * that a later one in the same window makes pointless:
+ * <ul>
+ * <li>an update to a message added in the window, since the add is encoded
+ * when the batch is sent and already carries the new content;</li>
+ * <li>an earlier update to the same message, since only the last one
+ * counts;</li>
+ * <li>a message added and deleted in the window, together with its
+ * updates, since clients never saw it;</li>
+ * <li>updates to a message that is deleted in the window.</li>
+ * </ul>
+ * Presence events are never dropped, because clients check that their
+ * versions follow each other.
+ * <p>
+ * A batch belongs to one room and is only used on that room's executor, so it
+ * needs no locking.
+ */
+public class BroadcastBatch {
+
+    /**
+     * What a batched event does to the message it refers to.
+     */
+    public enum Kind {
+        MESSAGE, UPDATE, DELETE, PRESENCE
+    }
+
+    /**
+     * Event class is one broadcast waiting in the batch. Its payloads are built
+     * only when the batch is sent, and only in the formats someone in the room
+     * speaks.
+     */
+    public static final class Event {
+        private final Kind kind;
+        private final int id;
+        private final Supplier<String> json;
+        private final Supplier<ByteBuffer> binary;
+
+        /**
+         * Constructs a new Event.
+         *
+         * @param kind   What the event does.
+         * @param id     The message ID, or 0 for a presence event.
+         * @param json   Builds the serialized JSON message.
+         * @param binary Builds the binary message.
+         */
+        public Event(Kind kind, int id, Supplier<String> json, Supplier<ByteBuffer> binary) {
+            this.kind = kind;
+            this.id = id;
+            this.json = json;
+            this.binary = binary;
+        }
+
+        /**
+         * Returns the builder of the serialized JSON message.
+         *
+         * @return The JSON builder.
+         */
+        public Supplier<String> getJson() {
+            return json;
+        }
+
+        /**
+         * Returns the builder of the binary message.
+         *
+         * @return The binary builder.
+         */
+        public Supplier<ByteBuffer> getBinary() {
+            return binary;
+        }
+    }
+
+    /**
+     * The pending events in broadcast order. Dropped events are set to null
+     * rather than removed, so positions stay valid.
+     */
+    private final List<Event> events = new ArrayList<>();
+
+    /**
+     * The position of the pending add, and of the pending update, of each
+     * message in the window.
+     */
+    private final Map<Integer, Integer> adds = new HashMap<>();
+    private final Map<Integer, Integer> updates = new HashMap<>();
+
+    private int size;
+
+    /**
+     * Adds an event to the batch, dropping whatever it supersedes.
+     *
+     * @param event The event.
+     * @return The number of events now pending.
+     */
+    public int add(Event event) {
+        switch (event.kind) {
+            case UPDATE:
+                if (adds.containsKey(event.id)) {
+                    return size; // The pending add is encoded with the new content
+                }
+                Integer previous = updates.put(event.id, events.size());
+                if (previous != null) {
+                    drop(previous);
+                }
+                break;
+            case DELETE:
+                Integer update = updates.remove(event.id);
+                if (update != null) {
+                    drop(update);
+                }
+                Integer add = adds.remove(event.id);
+                if (add != null) {
+                    drop(add);
+                    return size; // Nobody saw the message, so nobody needs to hear it is gone
+                }
+                break;
+            case MESSAGE:
+                adds.put(event.id, events.size());
+                break;
+            default:
+                break;
+        }
+        events.add(event);
+        size++;
+        return size;
+    }
+
+    /**
+     * Returns the pending events in broadcast order and empties the batch.
+     *
+     * @return The events, possibly none.
+     */
+    public List<Event> drain() {
+        List<Event> pending = new ArrayList<>(size);
+        for (Event event : events) {
+            if (event != null) {
+                pending.add(event);
+            }
+        }
+        events.clear();
+        adds.clear();
+        updates.clear();
+        size = 0;
+        return pending;
+    }
+
+    /**
+     * Returns whether no events are pending.
+     *
+     * @return True if the batch is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void drop(int position) {
+        events.set(position, null);
+        size--;
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * BusEvent class is one change in a room, as sent between the nodes of a
+ * chat cluster.
+ * <pre>
+ *   type       one byte, the ordinal of {@link Type}
+ *   room       int length + UTF-8
+ *   id         int, the message ID or 0
+ *   timestamp  long, the time of an added message or 0
+ *   username   int length + UTF-8
+ *   message    int length + UTF-8
+ * </pre>
+ * The node an event comes from is not part of it; the receiving side knows
+ * it from the connection.
+ */
+public final class BusEvent {
+
+    /**
+     * What happened in the room.
+     */
+    public enum Type {
+        MESSAGE, UPDATE, DELETE, JOIN, LEAVE
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final String nodeId;
+    private final Type type;
+    private final String room;
+    private final int id;
+    private final long timestamp;
+    private final String username;
+    private final String message;
+
+    /**
+     * Constructs a new BusEvent.
+     *
+     * @param nodeId    The node the event comes from.
+     * @param type      What happened.
+     * @param room      The room name.
+     * @param id        The message ID, or 0 for a join or leave.
+     * @param timestamp The timestamp of an added message, or 0.
+     * @param username  The username.
+     * @param message   The content of an add or update, the notice of a
+     *                  delete, or "" for a join or leave.
+     */
+    public BusEvent(String nodeId, Type type, String room, int id, long timestamp, String username, String message) {
+        this.nodeId = nodeId;
+        this.type = type;
+        this.room = room;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.username = username;
+        this.message = message;
+    }
+
+    /**
+     * Writes the event without its node ID.
+     *
+     * @param out The stream.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        writeString(out, room);
+        out.writeInt(id);
+        out.writeLong(timestamp);
+        writeString(out, username);
+        writeString(out, message);
+    }
+
+    /**
+     * Reads an event written by {@link #writeTo}.
+     *
+     * @param nodeId The node the stream comes from.
+     * @param in     The stream, holding nothing but the event's frame.
+     * @return The event.
+     * @throws IOException If the stream cannot be read or holds no valid event.
+     */
+    public static BusEvent readFrom(String nodeId, DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        if (type >= TYPES.length) {
+            throw new IOException("Unknown event type: " + type);
+        }
+        String room = readString(in);
+        int id = in.readInt();
+        long timestamp = in.readLong();
+        String username = readString(in);
+        String message = readString(in);
+        return new BusEvent(nodeId, TYPES[type], room, id, timestamp, username, message);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Malformed string length: " + length);
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the ID of the node the event comes from.
+     *
+     * @return The node ID.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns what happened.
+     *
+     * @return The event type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the name of the room it happened in.
+     *
+     * @return The room name.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns the ID of the message the event is about.
+     *
+     * @return The message ID, or 0 for a join or leave.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the timestamp of an added message.
+     *
+     * @return The timestamp, or 0.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the username.
+     *
+     * @return The username.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the content of an add or update, or the notice of a delete.
+     *
+     * @return The message.
+     */
+    public String getMessage() {
+        return message;
+    }
+}
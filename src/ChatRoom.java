@@ -0,0 +1,427 @@
+import org.java_websocket.WebSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ChatRoom class holds everything that belongs to one room: its members, its
+ * message store with its own write-ahead log and cold tier, its message ID
+ * counter and its serial executor. Rooms share no locks, files or counters, so
+ * traffic in one room never contends with traffic in another.
+ */
+public class ChatRoom {
+
+    private final String name;
+
+    /**
+     * A ConcurrentHashMap of the room's WebSocket connections and their usernames.
+     */
+    private final Map<WebSocket, String> members = new ConcurrentHashMap<>();
+
+    /**
+     * A read-only view of the members for broadcasting.
+     */
+    private final Map<WebSocket, String> membersView = Collections.unmodifiableMap(members);
+
+    /**
+     * Counts membership changes. Clients use it to tell whether a presence
+     * delta follows the participant list they hold.
+     */
+    private volatile int membershipVersion;
+
+    /**
+     * The serialized participant list for the current membership version, or
+     * null if it has to be rebuilt.
+     */
+    private volatile String participantsPayload;
+
+    /**
+     * The participant list in the binary protocol, or null if it has to be
+     * rebuilt.
+     */
+    private volatile ByteBuffer participantsBinary;
+
+    /**
+     * The broadcasts collected for the next batched frame. Only used on the
+     * room's executor.
+     */
+    private final BroadcastBatch batch = new BroadcastBatch();
+
+    /**
+     * The numbered message events kept for reconnecting clients. Only used on
+     * the room's executor.
+     */
+    private final RecentEvents recent;
+
+    /**
+     * The room's message store, indexed by message ID.
+     */
+    private final MessageStore messages = new MessageStore();
+
+    /**
+     * The highest message ID handed out or seen in the room. The next ID is
+     * the first one above it that belongs to this node.
+     */
+    private final AtomicInteger messageId = new AtomicInteger();
+
+    /**
+     * This node's share of the message IDs: those with this remainder when
+     * divided by the node count.
+     */
+    private final int nodeIndex;
+    private final int nodeCount;
+
+    /**
+     * The members connected to other nodes of the cluster, by node ID.
+     */
+    private final Map<String, Set<String>> remoteMembers = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the room's work one task at a time.
+     */
+    private final SerialExecutor executor;
+
+    /**
+     * The write-ahead log of the room, or null if persistence is off.
+     */
+    private final MessageLog log;
+
+    /**
+     * The background compactor of the room's log, or null if persistence is off.
+     */
+    private final LogCompactor compactor;
+
+    /**
+     * The off-heap tier for messages outside the hot window, or null if all
+     * history stays on the heap.
+     */
+    private final ColdTier cold;
+
+    /**
+     * Creates a room and recovers its history from disk.
+     *
+     * @param name      The room name.
+     * @param directory The directory holding the room's files.
+     * @param config    The server settings.
+     * @param pool      The thread pool shared by all rooms.
+     * @throws IOException If the room's log cannot be recovered.
+     */
+    public ChatRoom(String name, Path directory, ServerConfig config, Executor pool) throws IOException {
+        this.name = name;
+        this.executor = new SerialExecutor(pool);
+        this.recent = new RecentEvents(config.resyncEvents);
+        this.nodeIndex = config.nodeIndex;
+        this.nodeCount = config.nodeCount;
+        if (config.retentionHotMessages > 0 || config.retentionHotMinutes > 0) {
+            // Set up before the replay, so a large log never has to fit on the heap
+            cold = new ColdTier(directory.resolve("cold-tier.dat"));
+            messages.setColdTier(cold, config.retentionHotMessages,
+                    TimeUnit.MINUTES.toMillis(config.retentionHotMinutes));
+        } else {
+            cold = null;
+        }
+        if (config.persistenceEnabled) {
+            log = new MessageLog(directory, config.logSegmentBytes, config.logFsyncIntervalMillis);
+            int lastId = log.replay(messages);
+            messageId.set(lastId); // Continue after the last ID handed out before the restart
+            messages.setLog(log);
+            System.out.println("Recovered " + messages.size() + " messages for room " + name + " in "
+                    + log.getLastRecoveryMillis() + " ms");
+            compactor = new LogCompactor(log, messages, messageId::get, config.compactionMinBytes);
+        } else {
+            log = null;
+            compactor = null;
+        }
+    }
+
+    /**
+     * Returns the room name.
+     *
+     * @return The room name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the room's connections and their usernames.
+     *
+     * @return A live, unmodifiable map of the room's members.
+     */
+    public Map<WebSocket, String> getMembers() {
+        return membersView;
+    }
+
+    /**
+     * Adds a member to the room. Runs on the room's executor.
+     *
+     * @param conn     The WebSocket connection.
+     * @param username The username.
+     * @return The new membership version.
+     */
+    public int addMember(WebSocket conn, String username) {
+        members.put(conn, username);
+        return membershipChanged();
+    }
+
+    /**
+     * Removes a member from the room. Runs on the room's executor.
+     *
+     * @param conn The WebSocket connection.
+     * @return The new membership version, or -1 if the connection was not a
+     *         member.
+     */
+    public int removeMember(WebSocket conn) {
+        if (members.remove(conn) == null) {
+            return -1;
+        }
+        return membershipChanged();
+    }
+
+    /**
+     * Adds a member connected to another node. Runs on the room's executor.
+     *
+     * @param nodeId   The node the member is connected to.
+     * @param username The username.
+     * @return The new membership version, or -1 if the member was already
+     *         known.
+     */
+    public int addRemoteMember(String nodeId, String username) {
+        if (!remoteMembers.computeIfAbsent(nodeId, node -> ConcurrentHashMap.newKeySet()).add(username)) {
+            return -1;
+        }
+        return membershipChanged();
+    }
+
+    /**
+     * Removes a member connected to another node. Runs on the room's executor.
+     *
+     * @param nodeId   The node the member was connected to.
+     * @param username The username.
+     * @return The new membership version, or -1 if the member was not known.
+     */
+    public int removeRemoteMember(String nodeId, String username) {
+        Set<String> members = remoteMembers.get(nodeId);
+        if (members == null || !members.remove(username)) {
+            return -1;
+        }
+        return membershipChanged();
+    }
+
+    /**
+     * Returns the members connected to another node. Runs on the room's
+     * executor.
+     *
+     * @param nodeId The node.
+     * @return A copy of the usernames, possibly empty.
+     */
+    public List<String> getRemoteMembers(String nodeId) {
+        Set<String> members = remoteMembers.get(nodeId);
+        return members != null ? new ArrayList<>(members) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the usernames of every member, here and on the other nodes.
+     */
+    private Collection<String> participants() {
+        if (remoteMembers.isEmpty()) {
+            return members.values();
+        }
+        List<String> all = new ArrayList<>(members.values());
+        for (Set<String> remote : remoteMembers.values()) {
+            all.addAll(remote);
+        }
+        return all;
+    }
+
+    /**
+     * Moves to the next membership version and drops the cached participant
+     * list.
+     *
+     * @return The new membership version.
+     */
+    private int membershipChanged() {
+        participantsPayload = null;
+        participantsBinary = null;
+        return ++membershipVersion; // Only written on the room's executor
+    }
+
+    /**
+     * Returns the serialized participant list of the room, building it only if
+     * the membership changed since it was last asked for.
+     *
+     * @return The "participants" message as JSON.
+     */
+    public String getParticipantsPayload() {
+        String payload = participantsPayload;
+        if (payload == null) {
+            payload = JsonCodec.encodeParticipants(membershipVersion, participants());
+            participantsPayload = payload;
+        }
+        return payload;
+    }
+
+    /**
+     * Returns the participant list of the room in the binary protocol, building
+     * it only if the membership changed since it was last asked for.
+     *
+     * @return The encoded list, ready to read.
+     */
+    public ByteBuffer getParticipantsBinary() {
+        ByteBuffer payload = participantsBinary;
+        if (payload == null) {
+            payload = BinaryCodec.encodeParticipants(membershipVersion, participants());
+            participantsBinary = payload;
+        }
+        return payload.duplicate(); // Every reader gets its own position
+    }
+
+    /**
+     * Returns the room's message store.
+     *
+     * @return The message store.
+     */
+    public MessageStore getMessages() {
+        return messages;
+    }
+
+    /**
+     * Returns the broadcasts collected for the next batched frame. Only to be
+     * used on the room's executor.
+     *
+     * @return The batch.
+     */
+    public BroadcastBatch getBatch() {
+        return batch;
+    }
+
+    /**
+     * Returns the numbered message events kept for reconnecting clients. Only
+     * to be used on the room's executor.
+     *
+     * @return The recent events.
+     */
+    public RecentEvents getRecentEvents() {
+        return recent;
+    }
+
+    /**
+     * Hands out the next message ID of the room: the first of this node's IDs
+     * above every ID handed out or seen so far. IDs are unique across the
+     * cluster, and a message always gets a higher ID than the ones its sender
+     * could have seen.
+     *
+     * @return A new message ID.
+     */
+    public int nextMessageId() {
+        return messageId.updateAndGet(last -> {
+            int next = last + 1;
+            int offset = Math.floorMod(nodeIndex - next, nodeCount);
+            return next + offset;
+        });
+    }
+
+    /**
+     * Records a message ID handed out by another node, so the IDs this node
+     * hands out next are higher.
+     *
+     * @param id The message ID.
+     */
+    public void observeMessageId(int id) {
+        messageId.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Opens a copy of the room's log for a backup.
+     *
+     * @return The copy, which the caller must close, or null if persistence
+     *         is off.
+     * @throws IOException If the log cannot be rolled or its files opened.
+     */
+    public MessageLog.Backup openBackup() throws IOException {
+        return log == null ? null : log.openBackup(messageId::get);
+    }
+
+    /**
+     * Returns the number of batches of events the room's log could not write.
+     *
+     * @return The number of failed writes, or 0 if persistence is off.
+     */
+    public long getLogWriteFailures() {
+        return log == null ? 0 : log.getWriteFailures();
+    }
+
+    /**
+     * Returns the number of times the room's log was compacted since startup.
+     *
+     * @return The number of compactions, or 0 if persistence is off.
+     */
+    public long getLogCompactions() {
+        return compactor == null ? 0 : compactor.getCompactions();
+    }
+
+    /**
+     * Returns how long the last compaction of the room's log took.
+     *
+     * @return The compaction time in milliseconds, or 0 if there was none.
+     */
+    public long getLastLogCompactionMillis() {
+        return compactor == null ? 0 : compactor.getLastCompactionMillis();
+    }
+
+    /**
+     * Runs a task on the room's serial executor.
+     *
+     * @param task The task.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Moves old messages to the cold tier if the hot window is over its limits,
+     * and compacts the cold tier if most of it is edited or deleted records.
+     */
+    public void enforceRetention() {
+        messages.enforceRetention();
+        if (cold != null) {
+            try {
+                cold.compactIfNeeded();
+            } catch (IOException e) {
+                System.err.println("Error compacting the cold tier of room " + name + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Compacts the room's log if enough has been written since its last snapshot.
+     */
+    public void compactIfNeeded() {
+        if (compactor != null) {
+            compactor.run();
+        }
+    }
+
+    /**
+     * Flushes the room's log and releases its files.
+     */
+    public void close() {
+        if (log != null) {
+            log.close();
+        }
+        if (cold != null) {
+            cold.close();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClientOutbox class is a bounded queue of outgoing frames for one WebSocket
+ * connection. Senders only enqueue; a shared sender executor drains the queue
+ * into the connection, and only while the connection keeps up. A slow reader
+ * therefore fills its own outbox instead of slowing everybody else down.
+ */
+public class ClientOutbox {
+
+    /**
+     * What happens to a frame that arrives while the outbox is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest queued frame to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Replace a queued frame with the same coalesce key, such as an older
+         * update to the same message, and otherwise discard the oldest frame.
+         */
+        COALESCE,
+        /**
+         * Close the connection of the slow consumer.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * The number of frames the library may hold in its own write queue before
+     * this outbox stops handing it more.
+     */
+    private static final int MAX_IN_FLIGHT_FRAMES = 64;
+
+    /**
+     * How long to wait before retrying a connection whose socket is not draining.
+     */
+    private static final long RETRY_DELAY_MILLIS = 2;
+
+    /**
+     * A queued frame with its optional coalesce key.
+     */
+    private static class Entry {
+        private final Collection<Framedata> frames;
+        private final String coalesceKey;
+
+        Entry(Collection<Framedata> frames, String coalesceKey) {
+            this.frames = frames;
+            this.coalesceKey = coalesceKey;
+        }
+    }
+
+    private final WebSocket conn;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ScheduledExecutorService sender;
+    private final Metrics metrics;
+
+    /**
+     * The queued frames. Guarded by the queue's own monitor, so only producers and
+     * the drain task of the same connection ever contend on it.
+     */
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+    /**
+     * True while a drain task is scheduled or running for this outbox.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * The number of frames dropped or replaced because the outbox was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Constructs a new ClientOutbox for the given connection.
+     *
+     * @param conn     The WebSocket connection.
+     * @param capacity The maximum number of queued frames.
+     * @param policy   The overflow policy.
+     * @param sender   The executor that drains the outbox.
+     * @param metrics  The metrics that count failed sends.
+     */
+    public ClientOutbox(WebSocket conn, int capacity, OverflowPolicy policy, ScheduledExecutorService sender,
+                        Metrics metrics) {
+        this.conn = conn;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.sender = sender;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues frames for the connection without blocking.
+     *
+     * @param frames      The prepared frames.
+     * @param coalesceKey A key identifying frames that supersede each other, or
+     *                    null.
+     */
+    public void offer(Collection<Framedata> frames, String coalesceKey) {
+        if (closed) {
+            return;
+        }
+        boolean overflow = false;
+        synchronized (queue) {
+            if (queue.size() >= capacity) {
+                overflow = true;
+                if (policy == OverflowPolicy.COALESCE && coalesceKey != null && replace(frames, coalesceKey)) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (policy != OverflowPolicy.DISCONNECT) {
+                    queue.pollFirst();
+                    dropped.incrementAndGet();
+                    queue.addLast(new Entry(frames, coalesceKey));
+                }
+            } else {
+                queue.addLast(new Entry(frames, coalesceKey));
+            }
+        }
+        if (overflow && policy == OverflowPolicy.DISCONNECT) {
+            System.out.println(conn.getRemoteSocketAddress() + " disconnected as a slow consumer");
+            close();
+            conn.close(CloseFrame.TRY_AGAIN_LATER, "Slow consumer");
+            return;
+        }
+        scheduleDrain(0);
+    }
+
+    /**
+     * Drops the newest queued frame that has the given coalesce key and queues
+     * the new frames at the tail. The new frames must not take the old one's
+     * place: events carry increasing room sequence numbers, and a client skips
+     * any event numbered below one it has already seen, so sending them ahead
+     * of frames queued in between would lose those.
+     *
+     * @param frames      The new frames.
+     * @param coalesceKey The coalesce key.
+     * @return True if a frame was replaced, false otherwise.
+     */
+    private boolean replace(Collection<Framedata> frames, String coalesceKey) {
+        Iterator<Entry> it = queue.descendingIterator();
+        while (it.hasNext()) {
+            if (coalesceKey.equals(it.next().coalesceKey)) {
+                it.remove();
+                queue.addLast(new Entry(frames, coalesceKey));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Schedules a drain task unless one is already pending.
+     *
+     * @param delayMillis The delay before the task runs.
+     */
+    private void scheduleDrain(long delayMillis) {
+        if (draining.compareAndSet(false, true)) {
+            sender.schedule(this::drain, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Hands queued frames to the connection while its write queue has room.
+     */
+    private void drain() {
+        try {
+            while (!closed && conn.isOpen() && !isSaturated()) {
+                Entry entry;
+                synchronized (queue) {
+                    entry = queue.pollFirst();
+                }
+                if (entry == null) {
+                    break;
+                }
+                conn.sendFrame(entry.frames);
+            }
+        } catch (Exception e) {
+            // Counted rather than logged, so a dying connection does not flood the console
+            metrics.sendFailure();
+        } finally {
+            draining.set(false);
+        }
+        if (!closed && conn.isOpen() && depth() > 0) {
+            // Either the socket is backed up or frames arrived after the last poll
+            scheduleDrain(isSaturated() ? RETRY_DELAY_MILLIS : 0);
+        }
+    }
+
+    /**
+     * Checks whether the library already holds enough unwritten frames for
+     * this connection.
+     *
+     * @return True if no more frames should be handed over yet.
+     */
+    private boolean isSaturated() {
+        if (conn instanceof WebSocketImpl) {
+            return ((WebSocketImpl) conn).outQueue.size() >= MAX_IN_FLIGHT_FRAMES;
+        }
+        return conn.hasBufferedData();
+    }
+
+    /**
+     * Returns the number of queued frames.
+     *
+     * @return The current queue depth.
+     */
+    public int depth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Returns the number of frames dropped or replaced because of overflow.
+     *
+     * @return The number of dropped frames.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Discards all queued frames and stops accepting new ones.
+     */
+    public void close() {
+        closed = true;
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * ClientRequest class holds one decoded client action, independent of the
+ * wire format it arrived in. JSON text frames and binary frames are both
+ * decoded into it, so the server handles every action in one place.
+ * Fields an action does not use are left at their defaults.
+ */
+public class ClientRequest {
+
+    private final String action;
+    private final String username;
+    private final String message;
+    private final int id;
+    private final String room;
+    private final int before;
+    private final int limit;
+    private final String query;
+    private final int offset;
+    private final long epoch;
+    private final long since;
+
+    /**
+     * Constructs a new ClientRequest.
+     *
+     * @param action   The action.
+     * @param username The username the client sent, or an empty string.
+     * @param message  The message content, or an empty string.
+     * @param id       The message ID the action refers to, or 0.
+     * @param room     The room name, or null if none was given.
+     * @param before   The history cursor, or Integer.MAX_VALUE for the newest
+     *                 page.
+     * @param limit    The page size the client asked for, or 0 for the default.
+     * @param query    The search query, or an empty string.
+     * @param offset   The number of search hits to skip.
+     */
+    public ClientRequest(String action, String username, String message, int id, String room, int before,
+                         int limit, String query, int offset) {
+        this(action, username, message, id, room, before, limit, query, offset, 0, -1);
+    }
+
+    /**
+     * Constructs a new ClientRequest that may ask to resume where an earlier
+     * connection left off.
+     *
+     * @param action   The action.
+     * @param username The username the client sent, or an empty string.
+     * @param message  The message content, or an empty string.
+     * @param id       The message ID the action refers to, or 0.
+     * @param room     The room name, or null if none was given.
+     * @param before   The history cursor, or Integer.MAX_VALUE for the newest
+     *                 page.
+     * @param limit    The page size the client asked for, or 0 for the default.
+     * @param query    The search query, or an empty string.
+     * @param offset   The number of search hits to skip.
+     * @param epoch    The epoch of the room's event numbers the client saw, or 0.
+     * @param since    The number of the last event the client saw, or -1 to
+     *                 start afresh.
+     */
+    public ClientRequest(String action, String username, String message, int id, String room, int before,
+                         int limit, String query, int offset, long epoch, long since) {
+        this.action = action;
+        this.username = username;
+        this.message = message;
+        this.id = id;
+        this.room = room;
+        this.before = before;
+        this.limit = limit;
+        this.query = query;
+        this.offset = offset;
+        this.epoch = epoch;
+        this.since = since;
+    }
+
+    /**
+     * Returns the action.
+     *
+     * @return The action.
+     */
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * Returns the username the client sent.
+     *
+     * @return The username, or an empty string.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the message content of an "add" or "update".
+     *
+     * @return The message content, or an empty string.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the ID of the message a "del" or "update" refers to.
+     *
+     * @return The message ID, or 0 if none or an invalid one was given.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the room name of a "joinRoom" or "username".
+     *
+     * @return The room name, or null if none was given.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns the history cursor.
+     *
+     * @return Only messages with a lower ID are wanted.
+     */
+    public int getBefore() {
+        return before;
+    }
+
+    /**
+     * Returns the requested page size.
+     *
+     * @param defaultLimit The page size to use if the client gave none.
+     * @return The page size.
+     */
+    public int getLimit(int defaultLimit) {
+        return limit > 0 ? limit : defaultLimit;
+    }
+
+    /**
+     * Returns the search query.
+     *
+     * @return The query, or an empty string.
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Returns the number of search hits to skip.
+     *
+     * @return The offset.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the epoch of the room's event numbers the client saw.
+     *
+     * @return The epoch, or 0.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of the last room event the client saw before it
+     * reconnected.
+     *
+     * @return The event number, or -1 if the client is not resuming.
+     */
+    public long getSince() {
+        return since;
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * ClientSession class holds the per-connection state of a WebSocket client:
+ * its outbound queue, its username once it has joined, the room it is in,
+ * and when it was last heard from. It is stored as the connection's
+ * attachment.
+ */
+public class ClientSession {
+
+    private final ClientOutbox outbox;
+    private final RateLimiter connectionLimiter;
+    private volatile RateLimiter userLimiter;
+    private boolean rateLimited;
+    private volatile String username;
+    private volatile ChatRoom room;
+    private volatile boolean binary;
+
+    /**
+     * The timing wheel ticks at which the client last sent anything, pongs
+     * included, and last sent a message.
+     */
+    private volatile long lastHeard;
+    private volatile long lastActive;
+
+    /**
+     * The tick at which the client was sent a ping, or a close frame, it has
+     * yet to answer, or -1. Only used on the heartbeat thread.
+     */
+    private long pingSentAt = -1;
+
+    private volatile TimingWheel.Timeout<?> livenessCheck;
+
+    /**
+     * Constructs a new ClientSession.
+     *
+     * @param outbox            The connection's outbound queue.
+     * @param connectionLimiter The frame limits of the connection.
+     */
+    public ClientSession(ClientOutbox outbox, RateLimiter connectionLimiter) {
+        this.outbox = outbox;
+        this.connectionLimiter = connectionLimiter;
+    }
+
+    /**
+     * Records that the client sent something, such as a pong, that shows the
+     * connection is alive.
+     *
+     * @param tick The current tick of the heartbeat wheel.
+     */
+    public void heard(long tick) {
+        // Most frames arrive in the same tick as the one before, so skip the write
+        if (lastHeard != tick) {
+            lastHeard = tick;
+        }
+    }
+
+    /**
+     * Records that the client sent a message.
+     *
+     * @param tick The current tick of the heartbeat wheel.
+     */
+    public void active(long tick) {
+        heard(tick);
+        if (lastActive != tick) {
+            lastActive = tick;
+        }
+    }
+
+    /**
+     * Returns the tick at which the client last sent anything.
+     *
+     * @return The tick.
+     */
+    public long getLastHeard() {
+        return lastHeard;
+    }
+
+    /**
+     * Returns the tick at which the client last sent a message.
+     *
+     * @return The tick.
+     */
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    /**
+     * Returns the tick at which the client was sent a ping or close frame it
+     * has yet to answer.
+     *
+     * @return The tick, or -1 if no ping is outstanding.
+     */
+    public long getPingSentAt() {
+        return pingSentAt;
+    }
+
+    /**
+     * Records the tick at which the client was sent a ping or close frame.
+     *
+     * @param pingSentAt The tick, or -1 once it is answered.
+     */
+    public void setPingSentAt(long pingSentAt) {
+        this.pingSentAt = pingSentAt;
+    }
+
+    /**
+     * Sets the next check of whether the client is still alive.
+     *
+     * @param livenessCheck The scheduled check.
+     */
+    public void setLivenessCheck(TimingWheel.Timeout<?> livenessCheck) {
+        this.livenessCheck = livenessCheck;
+    }
+
+    /**
+     * Cancels the next check of whether the client is still alive.
+     */
+    public void cancelLivenessCheck() {
+        TimingWheel.Timeout<?> check = livenessCheck;
+        if (check != null) {
+            check.cancel();
+        }
+    }
+
+    /**
+     * Returns the frame limits of the connection.
+     *
+     * @return The connection's limiter.
+     */
+    public RateLimiter getConnectionLimiter() {
+        return connectionLimiter;
+    }
+
+    /**
+     * Returns the limiter actions are counted against: the user's once the
+     * client has joined, so reconnecting does not refill the buckets, and the
+     * connection's before.
+     *
+     * @return The limiter.
+     */
+    public RateLimiter getActionLimiter() {
+        RateLimiter limiter = userLimiter;
+        return limiter != null ? limiter : connectionLimiter;
+    }
+
+    /**
+     * Sets the frame limits of the user the client joined as.
+     *
+     * @param userLimiter The user's limiter.
+     */
+    public void setUserLimiter(RateLimiter userLimiter) {
+        this.userLimiter = userLimiter;
+    }
+
+    /**
+     * Returns whether the client's last frame was over its limit. Only used on
+     * the connection's own thread.
+     *
+     * @return True if the last frame was dropped for its limit.
+     */
+    public boolean isRateLimited() {
+        return rateLimited;
+    }
+
+    /**
+     * Records whether the client's last frame was over its limit.
+     *
+     * @param rateLimited True if the last frame was dropped for its limit.
+     */
+    public void setRateLimited(boolean rateLimited) {
+        this.rateLimited = rateLimited;
+    }
+
+    /**
+     * Returns the connection's outbound queue.
+     *
+     * @return The outbound queue.
+     */
+    public ClientOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Returns the username the client joined with.
+     *
+     * @return The username, or null if the client has not joined yet.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Sets the username the client joined with.
+     *
+     * @param username The username.
+     */
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * Returns the room the client is in.
+     *
+     * @return The room, or null if the client has not joined yet.
+     */
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    /**
+     * Sets the room the client is in.
+     *
+     * @param room The room.
+     */
+    public void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    /**
+     * Returns whether the client speaks the binary protocol.
+     *
+     * @return True if the client is sent binary frames, false for JSON text
+     *         frames.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Switches the client to the binary protocol.
+     *
+     * @param binary True to send the client binary frames.
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+}
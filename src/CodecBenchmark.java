@@ -0,0 +1,231 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+/**
+ * CodecBenchmark class compares the JSON text protocol with the binary one
+ * on the frames the server handles most: decoding an "add" or "update" from a
+ * client, and encoding a new message, an update event, a participant list and
+ * a page of history. For each it reports the time and the heap allocated per
+ * operation in both formats, and the size of the frame payload on the wire
+ * before compression.
+ * <p>
+ * A JSON frame travels as UTF-8 text, so JSON decoding includes turning the
+ * bytes into a String and JSON encoding includes turning the String into
+ * bytes, which the WebSocket library does for text frames. JSON frames are
+ * parsed and built with JsonCodec, the same way the server does. Binary
+ * frames are read and written as bytes directly.
+ * <p>
+ * Allocation is read from the thread's allocation counter, so it counts what
+ * survives the JIT's escape analysis, which is what the collector sees.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.ops           operations timed per frame and format (200000)
+ *   bench.messageBytes  size of each message (64)
+ *   bench.participants  usernames in the participant list (100)
+ * </pre>
+ */
+public class CodecBenchmark {
+
+    /**
+     * The number of messages in a page of history, as the server sends by
+     * default.
+     */
+    private static final int HISTORY_PAGE = 50;
+
+    private final int ops;
+    private final int messageBytes;
+    private final int participants;
+
+    /**
+     * Keeps the results of the timed operations from being optimized away.
+     */
+    private long sink;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * One measured operation in both formats.
+     */
+    private static final class Frame {
+        private final String name;
+        private final IntSupplier json;
+        private final IntSupplier binary;
+        private final int jsonBytes;
+        private final int binaryBytes;
+
+        Frame(String name, IntSupplier json, IntSupplier binary, int jsonBytes, int binaryBytes) {
+            this.name = name;
+            this.json = json;
+            this.binary = binary;
+            this.jsonBytes = jsonBytes;
+            this.binaryBytes = binaryBytes;
+        }
+    }
+
+    /**
+     * Constructs a new CodecBenchmark from the current system properties.
+     */
+    public CodecBenchmark() {
+        ops = Integer.getInteger("bench.ops", 200000);
+        messageBytes = Integer.getInteger("bench.messageBytes", 64);
+        participants = Integer.getInteger("bench.participants", 100);
+    }
+
+    /**
+     * Runs every frame in both formats and prints one row per frame.
+     */
+    public void run() {
+        List<Frame> frames = frames();
+        System.out.printf("%-20s  %10s  %10s  %10s  %10s  %9s  %9s%n", "frame", "json ns", "binary ns",
+                "json B/op", "binary B/op", "json B", "binary B");
+        for (Frame frame : frames) {
+            // The first pass of each warms up the JIT; only the second is reported
+            measure(frame.json);
+            measure(frame.binary);
+            long[] json = measure(frame.json);
+            long[] binary = measure(frame.binary);
+            System.out.printf("%-20s  %10.0f  %10.0f  %10d  %10d  %9d  %9d%n", frame.name,
+                    (double) json[0] / ops, (double) binary[0] / ops, json[1] / ops, binary[1] / ops,
+                    frame.jsonBytes, frame.binaryBytes);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Builds the frames to measure from made-up messages.
+     *
+     * @return The frames.
+     */
+    private List<Frame> frames() {
+        Random random = new Random(42);
+        GroupChatServer.Message message = new GroupChatServer.Message(1234567, text(random), "user42",
+                System.currentTimeMillis());
+        List<GroupChatServer.Message> page = new ArrayList<>();
+        for (int i = 0; i < HISTORY_PAGE; i++) {
+            page.add(new GroupChatServer.Message(1234567 + i, text(random), "user" + random.nextInt(1000),
+                    System.currentTimeMillis()));
+        }
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < participants; i++) {
+            names.add("user" + i);
+        }
+
+        List<Frame> frames = new ArrayList<>();
+        String content = message.getContent();
+        byte[] addJson = ("{\"action\":\"add\",\"message\":\"" + content + "\",\"username\":\"user42\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer addBinary = BinaryCodec.encodeRequest(
+                new ClientRequest("add", "user42", content, 0, null, Integer.MAX_VALUE, 0, "", 0));
+        frames.add(new Frame("decode add", () -> decodeJson(addJson), () -> decodeBinary(addBinary),
+                addJson.length, addBinary.remaining()));
+
+        byte[] updateJson = ("{\"action\":\"update\",\"id\":1234567,\"updatedMessage\":\"" + content
+                + "\",\"username\":\"user42\"}").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer updateBinary = BinaryCodec.encodeRequest(
+                new ClientRequest("update", "user42", content, 1234567, null, Integer.MAX_VALUE, 0, "", 0));
+        frames.add(new Frame("decode update", () -> decodeJson(updateJson), () -> decodeBinary(updateBinary),
+                updateJson.length, updateBinary.remaining()));
+
+        frames.add(new Frame("encode message",
+                () -> encodeJson(JsonCodec.encodeMessage(message, 0)),
+                () -> BinaryCodec.encodeMessage(message, 0).remaining(),
+                encodeJson(JsonCodec.encodeMessage(message, 0)), BinaryCodec.encodeMessage(message, 0).remaining()));
+
+        frames.add(new Frame("encode update",
+                () -> encodeJson(JsonCodec.encodeChange("update", 1234567, "user42", content, 0)),
+                () -> BinaryCodec.encodeChange("update", 1234567, "user42", content, 0).remaining(),
+                encodeJson(JsonCodec.encodeChange("update", 1234567, "user42", content, 0)),
+                BinaryCodec.encodeChange("update", 1234567, "user42", content, 0).remaining()));
+
+        frames.add(new Frame("encode participants",
+                () -> encodeJson(JsonCodec.encodeParticipants(9, names)),
+                () -> BinaryCodec.encodeParticipants(9, names).remaining(),
+                encodeJson(JsonCodec.encodeParticipants(9, names)),
+                BinaryCodec.encodeParticipants(9, names).remaining()));
+
+        frames.add(new Frame("encode history",
+                () -> encodeJson(JsonCodec.encodeHistory(page, true)),
+                () -> BinaryCodec.encodeHistory(page, true).remaining(),
+                encodeJson(JsonCodec.encodeHistory(page, true)),
+                BinaryCodec.encodeHistory(page, true).remaining()));
+        return frames;
+    }
+
+    /**
+     * Decodes a JSON text frame the way the server receives it.
+     *
+     * @param frame The UTF-8 bytes of the frame.
+     * @return The message length, so the work is used.
+     */
+    private static int decodeJson(byte[] frame) {
+        return JsonCodec.decodeRequest(new String(frame, StandardCharsets.UTF_8)).getMessage().length();
+    }
+
+    /**
+     * Decodes a binary frame the way the server receives it.
+     *
+     * @param frame The frame payload.
+     * @return The message length, so the work is used.
+     */
+    private static int decodeBinary(ByteBuffer frame) {
+        return BinaryCodec.decodeRequest(frame.duplicate()).getMessage().length();
+    }
+
+    /**
+     * Turns a JSON event into the bytes of a text frame.
+     *
+     * @param text The JSON text.
+     * @return The number of bytes.
+     */
+    private static int encodeJson(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Runs an operation and measures it.
+     *
+     * @param operation The operation.
+     * @return The elapsed nanoseconds and the bytes allocated over all runs.
+     */
+    private long[] measure(IntSupplier operation) {
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long total = 0;
+        for (int i = 0; i < ops; i++) {
+            total += operation.getAsInt();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += total;
+        return new long[] { elapsed, allocated };
+    }
+
+    /**
+     * Makes up the content of a message of the configured size, in short
+     * words like chat text.
+     *
+     * @param random The source of letters.
+     * @return The content.
+     */
+    private String text(Random random) {
+        char[] text = new char[messageBytes];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = i % 6 == 5 ? ' ' : (char) ('a' + random.nextInt(26));
+        }
+        return new String(text);
+    }
+
+    public static void main(String[] args) {
+        new CodecBenchmark().run();
+    }
+}
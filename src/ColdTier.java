@@ -0,0 +1,434 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * ColdTier class keeps older messages off the Java heap in a memory-mapped
+ * file, stored as UTF-8 bytes. The only per-message heap cost is one int and
+ * one long in two primitive arrays. Messages are decoded again only when
+ * history, search or an edit needs them.
+ * <p>
+ * The file is a cache of what the write-ahead log already holds, so it is
+ * recreated empty on every start. Messages arrive oldest first, so the index
+ * arrays stay sorted by ID and lookups are a binary search. An edit appends a
+ * new record and repoints the index. A delete only clears the index entry.
+ * <p>
+ * The space of replaced and deleted records is counted, and once it makes up
+ * most of the file {@link #compactIfNeeded()} copies the live records into a
+ * fresh file, so edit and delete churn cannot grow the file without bound.
+ */
+public class ColdTier {
+
+    /**
+     * The size of each mapped region of the file. A record never spans two
+     * regions.
+     */
+    private static final int CHUNK_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Marks an index entry whose message was deleted.
+     */
+    private static final long DELETED = -1;
+
+    /**
+     * The share of the file that has to be dead records before it is
+     * compacted.
+     */
+    private static final double COMPACTION_DEAD_RATIO = 0.5;
+
+    /**
+     * The fewest dead bytes worth compacting, so a small file is not copied
+     * over and over.
+     */
+    private static final long COMPACTION_MIN_DEAD_BYTES = 4 * 1024 * 1024;
+
+    private final Path file;
+    private FileChannel channel;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private long writePosition;
+
+    /**
+     * The bytes of records that were replaced or deleted.
+     */
+    private long deadBytes;
+
+    private int[] ids = new int[1024];
+    private long[] offsets = new long[1024];
+    private int count;
+    private int live;
+
+    /**
+     * Creates an empty cold tier backed by the given file.
+     *
+     * @param file The file to map.
+     * @throws IOException If the file cannot be created.
+     */
+    public ColdTier(Path file) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Moves a message into the cold tier.
+     *
+     * @param message The message to store.
+     * @throws IOException If the file cannot grow.
+     */
+    public synchronized void add(GroupChatServer.Message message) throws IOException {
+        long offset = write(message.getTimestamp(), message.getUsername(), message.getContent());
+        int index = count > 0 && ids[count - 1] >= message.getId()
+                ? Arrays.binarySearch(ids, 0, count, message.getId())
+                : -(count + 1);
+        if (index >= 0) {
+            if (offsets[index] == DELETED) {
+                live++;
+            } else {
+                deadBytes += recordLength(offsets[index]);
+            }
+            offsets[index] = offset;
+            return;
+        }
+        index = -(index + 1);
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        System.arraycopy(ids, index, ids, index + 1, count - index);
+        System.arraycopy(offsets, index, offsets, index + 1, count - index);
+        ids[index] = message.getId();
+        offsets[index] = offset;
+        count++;
+        live++;
+    }
+
+    /**
+     * Returns the message with the given ID.
+     *
+     * @param id The message ID.
+     * @return The decoded message, or null if it is not in the cold tier.
+     */
+    public synchronized GroupChatServer.Message get(int id) {
+        int index = Arrays.binarySearch(ids, 0, count, id);
+        if (index < 0 || offsets[index] == DELETED) {
+            return null;
+        }
+        return read(id, offsets[index]);
+    }
+
+    /**
+     * Replaces the content of a cold message.
+     *
+     * @param id      The message ID.
+     * @param content The new content.
+     * @return The message as it was before the edit, or null if it is not in
+     *         the cold tier.
+     * @throws IOException If the file cannot grow.
+     */
+    public synchronized GroupChatServer.Message update(int id, String content) throws IOException {
+        int index = Arrays.binarySearch(ids, 0, count, id);
+        if (index < 0 || offsets[index] == DELETED) {
+            return null;
+        }
+        GroupChatServer.Message old = read(id, offsets[index]);
+        long oldOffset = offsets[index];
+        offsets[index] = write(old.getTimestamp(), old.getUsername(), content);
+        deadBytes += recordLength(oldOffset);
+        return old;
+    }
+
+    /**
+     * Deletes a cold message.
+     *
+     * @param id The message ID.
+     * @return The deleted message, or null if it is not in the cold tier.
+     */
+    public synchronized GroupChatServer.Message remove(int id) {
+        int index = Arrays.binarySearch(ids, 0, count, id);
+        if (index < 0 || offsets[index] == DELETED) {
+            return null;
+        }
+        GroupChatServer.Message old = read(id, offsets[index]);
+        deadBytes += recordLength(offsets[index]);
+        offsets[index] = DELETED;
+        live--;
+        return old;
+    }
+
+    /**
+     * Returns up to limit of the newest cold messages whose ID is below the given
+     * cursor, oldest first.
+     *
+     * @param beforeId The exclusive upper bound on message IDs.
+     * @param limit    The maximum number of messages to return.
+     * @return A list of at most limit messages in the order they were sent.
+     */
+    public synchronized List<GroupChatServer.Message> getBefore(int beforeId, int limit) {
+        List<GroupChatServer.Message> page = new ArrayList<>();
+        int index = Arrays.binarySearch(ids, 0, count, beforeId);
+        index = index >= 0 ? index - 1 : -(index + 1) - 1;
+        for (; index >= 0 && page.size() < limit; index--) {
+            if (offsets[index] != DELETED) {
+                page.add(read(ids[index], offsets[index]));
+            }
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    /**
+     * Returns up to limit of the oldest cold messages whose ID is above the
+     * given cursor, oldest first.
+     *
+     * @param afterId The exclusive lower bound on message IDs.
+     * @param limit   The maximum number of messages to return.
+     * @return A list of at most limit messages in the order they were sent.
+     */
+    public synchronized List<GroupChatServer.Message> getAfter(int afterId, int limit) {
+        List<GroupChatServer.Message> page = new ArrayList<>();
+        int index = Arrays.binarySearch(ids, 0, count, afterId);
+        index = index >= 0 ? index + 1 : -(index + 1);
+        for (; index < count && page.size() < limit; index++) {
+            if (offsets[index] != DELETED) {
+                page.add(read(ids[index], offsets[index]));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Returns the highest ID the cold tier has held, deleted or not.
+     *
+     * @return The ID, or Integer.MIN_VALUE if the tier has held none.
+     */
+    public synchronized int getMaxId() {
+        return count > 0 ? ids[count - 1] : Integer.MIN_VALUE;
+    }
+
+    /**
+     * Compacts the file if most of it is dead records.
+     *
+     * @return True if the file was compacted.
+     * @throws IOException If the compacted file cannot be written, in which
+     *                     case the tier keeps using the old one.
+     */
+    public synchronized boolean compactIfNeeded() throws IOException {
+        if (deadBytes < COMPACTION_MIN_DEAD_BYTES || deadBytes < writePosition * COMPACTION_DEAD_RATIO) {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    /**
+     * Copies the live records into a fresh file that replaces the current
+     * one, and drops the index entries of deleted messages. Every other
+     * operation waits meanwhile, which takes about as long as copying the
+     * live bytes.
+     *
+     * @throws IOException If the compacted file cannot be written.
+     */
+    synchronized void compact() throws IOException {
+        long start = System.nanoTime();
+        long before = writePosition;
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        FileChannel oldChannel = channel;
+        List<MappedByteBuffer> oldChunks = new ArrayList<>(chunks);
+        int[] newIds = new int[Math.max(1024, Integer.highestOneBit(Math.max(1, live)) << 1)];
+        long[] newOffsets = new long[newIds.length];
+        int kept = 0;
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        chunks.clear();
+        writePosition = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                if (offsets[i] == DELETED) {
+                    continue;
+                }
+                GroupChatServer.Message message = read(oldChunks, ids[i], offsets[i]);
+                newIds[kept] = ids[i];
+                newOffsets[kept] = write(message.getTimestamp(), message.getUsername(), message.getContent());
+                kept++;
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(temp);
+            channel = oldChannel;
+            chunks.clear();
+            chunks.addAll(oldChunks);
+            writePosition = before;
+            throw e;
+        }
+        oldChannel.close();
+        ids = newIds;
+        offsets = newOffsets;
+        count = kept;
+        deadBytes = 0;
+        System.out.println("Compacted cold tier " + file + " from " + before + " to " + writePosition + " bytes in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Returns the number of live messages in the cold tier.
+     *
+     * @return The number of cold messages.
+     */
+    public synchronized int size() {
+        return live;
+    }
+
+    /**
+     * Returns the number of bytes the cold file has grown to.
+     *
+     * @return The size of the written part of the file.
+     */
+    public synchronized long getBytes() {
+        return writePosition;
+    }
+
+    /**
+     * Returns an iterator over the cold messages as of now, oldest first. It
+     * decodes one message at a time and never blocks writers for long.
+     *
+     * @return An iterator over the cold messages.
+     */
+    public Iterator<GroupChatServer.Message> iterator() {
+        int[] idsNow;
+        synchronized (this) {
+            idsNow = Arrays.copyOf(ids, count);
+        }
+        return new Iterator<GroupChatServer.Message>() {
+            private int index;
+            private GroupChatServer.Message next = advance();
+
+            private GroupChatServer.Message advance() {
+                while (index < idsNow.length) {
+                    GroupChatServer.Message message = get(idsNow[index++]);
+                    if (message != null) {
+                        return message;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public GroupChatServer.Message next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                GroupChatServer.Message current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Appends a record to the file.
+     *
+     * @param timestamp The message timestamp.
+     * @param username  The username.
+     * @param content   The message content.
+     * @return The offset of the record.
+     * @throws IOException If the file cannot grow.
+     */
+    private long write(long timestamp, String username, String content) throws IOException {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] text = content.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 4 + user.length + 4 + text.length;
+        if (length > CHUNK_BYTES) {
+            throw new IOException("Message too large for the cold tier: " + length + " bytes");
+        }
+        if (writePosition % CHUNK_BYTES + length > CHUNK_BYTES) {
+            writePosition = (writePosition / CHUNK_BYTES + 1) * (long) CHUNK_BYTES; // Skip to the next region
+        }
+        int chunk = (int) (writePosition / CHUNK_BYTES);
+        while (chunks.size() <= chunk) {
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * CHUNK_BYTES, CHUNK_BYTES));
+        }
+        ByteBuffer buffer = chunks.get(chunk).duplicate();
+        buffer.position((int) (writePosition % CHUNK_BYTES));
+        buffer.putLong(timestamp);
+        buffer.putInt(user.length).put(user);
+        buffer.putInt(text.length).put(text);
+        long offset = writePosition;
+        writePosition += length;
+        return offset;
+    }
+
+    /**
+     * Decodes the record at the given offset.
+     *
+     * @param id     The message ID.
+     * @param offset The record offset.
+     * @return The decoded message.
+     */
+    private GroupChatServer.Message read(int id, long offset) {
+        return read(chunks, id, offset);
+    }
+
+    /**
+     * Decodes the record at the given offset of the given mapped regions.
+     *
+     * @param from   The mapped regions of the file.
+     * @param id     The message ID.
+     * @param offset The record offset.
+     * @return The decoded message.
+     */
+    private static GroupChatServer.Message read(List<MappedByteBuffer> from, int id, long offset) {
+        ByteBuffer buffer = from.get((int) (offset / CHUNK_BYTES)).duplicate();
+        buffer.position((int) (offset % CHUNK_BYTES));
+        long timestamp = buffer.getLong();
+        byte[] user = new byte[buffer.getInt()];
+        buffer.get(user);
+        byte[] text = new byte[buffer.getInt()];
+        buffer.get(text);
+        return new GroupChatServer.Message(id, new String(text, StandardCharsets.UTF_8),
+                new String(user, StandardCharsets.UTF_8), timestamp);
+    }
+
+    /**
+     * Returns the size of the record at the given offset.
+     *
+     * @param offset The record offset.
+     * @return The record length in bytes.
+     */
+    private int recordLength(long offset) {
+        ByteBuffer buffer = chunks.get((int) (offset / CHUNK_BYTES));
+        int position = (int) (offset % CHUNK_BYTES) + 8;
+        int userLength = buffer.getInt(position);
+        int textLength = buffer.getInt(position + 4 + userLength);
+        return 8 + 4 + userLength + 4 + textLength;
+    }
+
+    /**
+     * Closes the backing file.
+     */
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing cold tier: " + e);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.Framedata;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * CompressionBenchmark class measures what per-message compression saves and
+ * costs on the payloads the server sends: a single new message, a batch of
+ * events, and a page of history in both formats. For each deflate level it
+ * compresses the frame the way a broadcast does, and reports the payload size
+ * before and after, the time and heap bytes per compression, and what that
+ * comes to for one broadcast to every recipient.
+ * <p>
+ * A broadcast is compressed once and the same frame is queued for everyone,
+ * so its CPU cost is one compression however many clients there are, while
+ * the bytes saved are multiplied by the number of recipients. The last column
+ * shows what the broadcast would cost if every connection compressed its own
+ * copy, as a library does by default.
+ * <p>
+ * Messages are made of common English words rather than random letters, so
+ * they compress about as well as chat text does.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.ops           compressions timed per payload and level (20000)
+ *   bench.recipients    clients each broadcast goes to (1000)
+ *   bench.messageBytes  size of each message (64)
+ *   bench.levels        deflate levels compared (1,6,9)
+ * </pre>
+ */
+public class CompressionBenchmark {
+
+    /**
+     * The number of messages in a page of history, as the server sends by
+     * default.
+     */
+    private static final int HISTORY_PAGE = 50;
+
+    /**
+     * The number of events in a batch, as a busy room collects in one window.
+     */
+    private static final int BATCH_EVENTS = 20;
+
+    private static final String[] WORDS = {
+            "the", "a", "to", "and", "of", "is", "it", "you", "that", "in", "we", "for", "on", "this", "be", "have",
+            "not", "are", "with", "but", "just", "so", "can", "what", "do", "if", "at", "my", "was", "me", "now",
+            "think", "going", "meeting", "today", "deploy", "build", "review", "thanks", "yes", "no", "lunch",
+            "later", "fixed", "bug", "server", "test", "merge", "branch", "please", "check", "looks", "good"
+    };
+
+    private final int ops;
+    private final int recipients;
+    private final int messageBytes;
+    private final int[] levels;
+
+    /**
+     * Keeps the results of the timed compressions from being optimized away.
+     */
+    private long sink;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * One payload the server sends.
+     */
+    private static final class Payload {
+        private final String name;
+        private final String json;
+        private final ByteBuffer binary;
+
+        Payload(String name, String json, ByteBuffer binary) {
+            this.name = name;
+            this.json = json;
+            this.binary = binary;
+        }
+    }
+
+    /**
+     * Constructs a new CompressionBenchmark from the current system properties.
+     */
+    public CompressionBenchmark() {
+        ops = Integer.getInteger("bench.ops", 20000);
+        recipients = Integer.getInteger("bench.recipients", 1000);
+        messageBytes = Integer.getInteger("bench.messageBytes", 64);
+        String[] parts = System.getProperty("bench.levels", "1,6,9").split(",");
+        levels = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            levels[i] = Integer.parseInt(parts[i].trim());
+        }
+    }
+
+    /**
+     * Runs every payload at every level and prints one row per combination.
+     */
+    public void run() {
+        Draft_6455 draft = new Draft_6455();
+        System.out.printf("%-22s  %5s  %8s  %8s  %6s  %8s  %7s  %14s  %14s%n", "payload", "level", "raw B", "wire B",
+                "saved", "ns/op", "B/op", "KB saved/bcast", "per-client us");
+        for (Payload payload : payloads()) {
+            for (int level : levels) {
+                PerMessageDeflate extension = new PerMessageDeflate(0, level);
+                // The first pass warms up the JIT; only the second is reported
+                measure(draft, extension, payload);
+                long[] result = measure(draft, extension, payload);
+                double nanos = (double) result[0] / ops;
+                int raw = payload.json != null ? payload.json.getBytes(StandardCharsets.UTF_8).length
+                        : payload.binary.remaining();
+                int wire = (int) result[2];
+                System.out.printf("%-22s  %5d  %8d  %8d  %5.1f%%  %8.0f  %7d  %14.1f  %14.1f%n", payload.name, level,
+                        raw, wire, 100.0 * (raw - wire) / raw, nanos, result[1] / ops,
+                        (double) (raw - wire) * recipients / 1024, nanos * recipients / 1000);
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Builds the payloads to measure from made-up messages.
+     *
+     * @return The payloads.
+     */
+    private List<Payload> payloads() {
+        Random random = new Random(42);
+        List<GroupChatServer.Message> page = new ArrayList<>();
+        for (int i = 0; i < HISTORY_PAGE; i++) {
+            page.add(new GroupChatServer.Message(1234567 + i, text(random), "user" + random.nextInt(1000),
+                    System.currentTimeMillis()));
+        }
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_EVENTS; i++) {
+            batch.add(JsonCodec.encodeMessage(page.get(i), 1000 + i));
+        }
+
+        List<Payload> payloads = new ArrayList<>();
+        payloads.add(new Payload("message (json)", JsonCodec.encodeMessage(page.get(0), 1000), null));
+        payloads.add(new Payload("batch of " + BATCH_EVENTS + " (json)", JsonCodec.encodeBatch(batch), null));
+        payloads.add(new Payload("history (json)", JsonCodec.encodeHistory(page, true), null));
+        payloads.add(new Payload("history (binary)", null, BinaryCodec.encodeHistory(page, true)));
+        return payloads;
+    }
+
+    /**
+     * Frames and compresses a payload as a broadcast does, over and over.
+     *
+     * @return The elapsed nanoseconds and the bytes allocated over all runs,
+     *         and the size of the compressed payload.
+     */
+    private long[] measure(Draft_6455 draft, PerMessageDeflate extension, Payload payload) {
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long size = 0;
+        for (int i = 0; i < ops; i++) {
+            List<Framedata> frames = payload.json != null ? draft.createFrames(payload.json, false)
+                    : draft.createFrames(payload.binary.duplicate(), false);
+            extension.compress(frames.get(0));
+            size = frames.get(0).getPayloadData().remaining();
+            sink += size;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new long[] { elapsed, allocated, size };
+    }
+
+    /**
+     * Makes up the content of a message of the configured size from common
+     * words.
+     *
+     * @param random The source of words.
+     * @return The content.
+     */
+    private String text(Random random) {
+        StringBuilder text = new StringBuilder(messageBytes + 16);
+        while (text.length() < messageBytes) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        text.setLength(messageBytes);
+        return text.toString();
+    }
+
+    public static void main(String[] args) {
+        new CompressionBenchmark().run();
+    }
+}
@@ -0,0 +1,61 @@
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DeflateDraft class is the RFC 6455 draft with the one thing
+ * {@link PerMessageDeflate} needs that Java-WebSocket 1.3.8 lacks: it writes
+ * the RSV1 bit of outgoing frames, which marks a compressed message. Clients
+ * that do not negotiate the extension are served exactly as by
+ * {@link Draft_6455}.
+ */
+public class DeflateDraft extends Draft_6455 {
+
+    /**
+     * The RSV1 bit in the first byte of a frame.
+     */
+    private static final int RSV1 = 0x40;
+
+    /**
+     * Constructs a new DeflateDraft that offers or accepts per-message
+     * compression.
+     *
+     * @param extension The extension.
+     */
+    public DeflateDraft(PerMessageDeflate extension) {
+        super(extension);
+    }
+
+    private DeflateDraft(List<IExtension> extensions, List<IProtocol> protocols) {
+        super(extensions, protocols);
+    }
+
+    @Override
+    public ByteBuffer createBinaryFrame(Framedata framedata) {
+        ByteBuffer frame = super.createBinaryFrame(framedata);
+        if (framedata.isRSV1()) {
+            frame.put(0, (byte) (frame.get(0) | RSV1));
+        }
+        return frame;
+    }
+
+    @Override
+    public Draft copyInstance() {
+        // Every connection gets its own copy of the draft and its extensions
+        List<IExtension> extensions = new ArrayList<>();
+        for (IExtension extension : getKnownExtensions()) {
+            extensions.add(extension.copyInstance());
+        }
+        List<IProtocol> protocols = new ArrayList<>();
+        for (IProtocol protocol : getKnownProtocols()) {
+            protocols.add(protocol.copyInstance());
+        }
+        return new DeflateDraft(extensions, protocols);
+    }
+}
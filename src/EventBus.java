@@ -0,0 +1,72 @@
+import java.io.IOException;
+
+/**
+ * EventBus interface connects the nodes of a chat cluster. Every node
+ * publishes the changes its own clients make, and applies the changes the
+ * other nodes publish to its copy of the rooms, sending them on to its own
+ * clients. A node never republishes what it received, so every node has to
+ * reach every other one.
+ * <p>
+ * Implementations deliver the events of one node to each other node in the
+ * order they were published, but make no promise across nodes or across a
+ * lost connection.
+ */
+public interface EventBus {
+
+    /**
+     * Listener interface receives what the bus hears from the other nodes.
+     * Its methods are called on the bus's own threads.
+     */
+    interface Listener {
+
+        /**
+         * Called for every event published by another node.
+         *
+         * @param event The event.
+         */
+        void onEvent(BusEvent event);
+
+        /**
+         * Called when another node connects, so this node can tell it who is
+         * in its rooms.
+         *
+         * @param nodeId The ID of the node.
+         */
+        void onNodeUp(String nodeId);
+
+        /**
+         * Called when the connection from another node is lost, so this node
+         * can forget the members it had.
+         *
+         * @param nodeId The ID of the node.
+         */
+        void onNodeDown(String nodeId);
+    }
+
+    /**
+     * Starts delivering events from the other nodes to the listener.
+     *
+     * @param listener The listener.
+     * @throws IOException If the bus cannot start listening.
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * Publishes an event of this node to every other node. Never blocks.
+     *
+     * @param event The event.
+     */
+    void publish(BusEvent event);
+
+    /**
+     * Returns the ID of this node.
+     *
+     * @return The node ID.
+     */
+    String getNodeId();
+
+    /**
+     * Stops the bus and closes its connections.
+     */
+    void close();
+}
@@ -0,0 +1,171 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * ExportBenchmark class measures the history export on a store of many
+ * messages. It streams the store as newline-delimited JSON the way /export
+ * does, into a writer that only counts, and compares that with building the
+ * whole history as one JSONArray first. For each it reports the time and heap
+ * bytes allocated per message, and the most memory the export has to hold at
+ * once: one page when streaming, the whole text when building it first.
+ * Given enough messages, building it first runs out of heap, which the last
+ * row then says instead.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.messages      messages in the store (200000)
+ *   bench.messageBytes  size of each message (64)
+ *   bench.hotMessages   messages kept on the heap, the rest in a cold tier
+ *                       file (0 for all on the heap)
+ * </pre>
+ */
+public class ExportBenchmark {
+
+    private final int messageCount;
+    private final int messageBytes;
+    private final int hotMessages;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * A writer that throws away what it is given and counts the characters.
+     */
+    private static final class CountingWriter extends Writer {
+        private long chars;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            chars += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Constructs a new ExportBenchmark from the current system properties.
+     */
+    public ExportBenchmark() {
+        messageCount = Integer.getInteger("bench.messages", 200_000);
+        messageBytes = Integer.getInteger("bench.messageBytes", 64);
+        hotMessages = Integer.getInteger("bench.hotMessages", 0);
+    }
+
+    /**
+     * Fills a store and runs both exports over it, printing one row each.
+     *
+     * @throws Exception If the cold tier file cannot be created.
+     */
+    public void run() throws Exception {
+        MessageStore store = new MessageStore();
+        ColdTier cold = null;
+        if (hotMessages > 0) {
+            Path file = Files.createTempFile("export-bench", ".dat");
+            file.toFile().deleteOnExit();
+            cold = new ColdTier(file);
+            store.setColdTier(cold, hotMessages, 0);
+        }
+        Random random = new Random(42);
+        long start = System.currentTimeMillis() - messageCount;
+        for (int i = 1; i <= messageCount; i++) {
+            store.add(new GroupChatServer.Message(i, text(random), "user" + random.nextInt(1000), start + i));
+            if (hotMessages > 0 && i % 10000 == 0) {
+                store.enforceRetention();
+            }
+        }
+        store.enforceRetention();
+        System.out.printf("%,d messages, %,d on the heap%n", store.size(), store.getHotSize());
+        System.out.printf("%-22s  %10s  %8s  %12s  %12s%n", "export", "ns/msg", "B/msg", "output MB", "held MB");
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT; only the second is reported
+            boolean report = pass == 1;
+            measureStream(store, report);
+            measureArray(store, report);
+        }
+        if (cold != null) {
+            cold.close();
+        }
+    }
+
+    /**
+     * Streams the store as /export does.
+     */
+    private void measureStream(MessageStore store, boolean report) throws Exception {
+        CountingWriter out = new CountingWriter();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long begin = System.nanoTime();
+        long count = HistoryExport.writeMessages(store, 0, Long.MAX_VALUE, out);
+        long elapsed = System.nanoTime() - begin;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        if (report) {
+            // A page of text, held twice while it is copied out
+            long held = (long) HistoryExport.PAGE_SIZE * out.chars / Math.max(1, count) * 2 * 2;
+            print("stream (ndjson)", elapsed, allocated, count, out.chars, held);
+        }
+    }
+
+    /**
+     * Builds the whole history as one JSONArray and then its text, as a
+     * handler written with org.json would.
+     */
+    private void measureArray(MessageStore store, boolean report) {
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long begin = System.nanoTime();
+        JSONArray array = new JSONArray();
+        String text;
+        try {
+            for (GroupChatServer.Message message : store.getAll()) {
+                JSONObject json = new JSONObject();
+                json.put("ID", message.getId());
+                json.put("message", message.getContent());
+                json.put("timestamp", message.getTimestamp());
+                json.put("username", message.getUsername());
+                array.put(json);
+            }
+            text = array.toString();
+        } catch (OutOfMemoryError e) {
+            System.out.printf("%-22s  out of memory with %,d messages%n", "build JSONArray", store.size());
+            return;
+        }
+        long elapsed = System.nanoTime() - begin;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        if (report) {
+            // At least the finished text, which is live at the same time as the array
+            print("build JSONArray", elapsed, allocated, array.length(), text.length(), (long) text.length() * 2);
+        }
+    }
+
+    private void print(String name, long elapsed, long allocated, long count, long chars, long held) {
+        System.out.printf("%-22s  %10.0f  %8d  %12.1f  %12.1f%n", name, (double) elapsed / count, allocated / count,
+                chars / 1e6, held / 1e6);
+    }
+
+    /**
+     * Makes up the content of a message of the configured size.
+     */
+    private String text(Random random) {
+        StringBuilder text = new StringBuilder(messageBytes);
+        for (int i = 0; i < messageBytes; i++) {
+            text.append(i % 6 == 5 ? ' ' : (char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ExportBenchmark().run();
+    }
+}
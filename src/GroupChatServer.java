@@ -1,46 +1,329 @@
 import com.sun.net.httpserver.HttpServer;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.server.WebSocketServer;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
 
 /**
  * GroupChatServer class extends WebSocketServer and handles WebSocket
  * connections, messages, and broadcasts.
- * It also maintains a list of clients and messages, allowing users to join,
- * send messages, and manage messages.
+ * It also maintains a list of clients and chat rooms, allowing users to join
+ * rooms, send messages, and manage messages. Every room keeps its own members,
+ * history and log, and processes its actions on its own serial executor.
  */
 public class GroupChatServer extends WebSocketServer {
 
     /**
-     * A ConcurrentHashMap to store WebSocket connections and their corresponding
-     * usernames.
+     * The room every user joins first.
      */
-    private final Map<WebSocket, String> clients = new ConcurrentHashMap<>();
+    public static final String DEFAULT_ROOM = "general";
 
     /**
-     * A list to store messages.
+     * The characters allowed in a room name. Room names are also directory
+     * names, so nothing else is accepted.
      */
-    private final List<Message> messages = new ArrayList<>();
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
 
     /**
-     * An integer to generate unique message IDs.
+     * The joined WebSocket connections and their usernames, looked up either
+     * way.
      */
-    private int messageId = 1; // Initial message ID
+    private final UserRegistry users = new UserRegistry();
+
+    /**
+     * The open chat rooms, by name.
+     */
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * The number of old messages sent to a user when they join.
+     */
+    private static final int HISTORY_PAGE_SIZE = 50;
+
+    /**
+     * The largest history page a client may request at once.
+     */
+    private static final int MAX_HISTORY_PAGE_SIZE = 500;
+
+    /**
+     * The close code sent to a connection that has been idle too long. The
+     * web client does not reconnect after it.
+     */
+    public static final int IDLE_CLOSE_CODE = 4000;
+
+    /**
+     * The number of slots of the heartbeat wheel. At the default tick one
+     * turn is about 51 seconds, which covers the default heartbeat interval.
+     */
+    private static final int HEARTBEAT_WHEEL_SLOTS = 512;
+
+    /**
+     * The server settings.
+     */
+    private final ServerConfig config;
+
+    /**
+     * The executor that drains the per-client outbound queues.
+     */
+    private final ScheduledExecutorService sender;
+
+    /**
+     * The threads shared by the rooms' serial executors.
+     */
+    private final ExecutorService roomPool;
+
+    /**
+     * The executor for background housekeeping such as log compaction.
+     */
+    private final ScheduledExecutorService maintenance;
+
+    /**
+     * The thread that advances the heartbeat wheel and checks on the
+     * connections whose timeouts fire.
+     */
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * The timeouts of every connection's next liveness check. A connection
+     * has one timeout at a time, so thousands of connections cost one tick
+     * task rather than one scheduled task each.
+     */
+    private final TimingWheel<WebSocket> wheel;
+
+    /**
+     * The heartbeat interval, heartbeat timeout and idle timeout in ticks of
+     * the wheel. The interval and idle timeout are 0 when off.
+     */
+    private final long heartbeatIntervalTicks;
+    private final long heartbeatTimeoutTicks;
+    private final long idleTimeoutTicks;
+
+    /**
+     * The counters, histograms and gauges served at /metrics.
+     */
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * The history export served at /export.
+     */
+    private final HistoryExport export;
+
+    /**
+     * The bus to the other nodes of the cluster, or null if this is the only
+     * node.
+     */
+    private final EventBus bus;
+
+    /**
+     * The frame limits of every user seen recently, kept across reconnects
+     * and dropped once their buckets are full again.
+     */
+    private final Map<String, RateLimiter> userLimiters = new ConcurrentHashMap<>();
 
     /**
      * Constructs a new GroupChatServer instance with the given InetSocketAddress.
      *
      * @param address The InetSocketAddress to bind the server to.
+     * @throws IOException If the message log cannot be recovered.
+     */
+    public GroupChatServer(InetSocketAddress address) throws IOException {
+        this(address, new ServerConfig());
+    }
+
+    /**
+     * Constructs a new GroupChatServer instance with the given InetSocketAddress
+     * and settings.
+     *
+     * @param address The InetSocketAddress to bind the server to.
+     * @param config  The server settings.
+     * @throws IOException If the message log cannot be recovered.
+     */
+    public GroupChatServer(InetSocketAddress address, ServerConfig config) throws IOException {
+        this(address, config, config.busPort > 0
+                ? new TcpEventBus(config.nodeId, new InetSocketAddress(config.busHost, config.busPort),
+                        TcpEventBus.parsePeers(config.busPeers), config.busQueueCapacity, config.busSecret)
+                : null);
+    }
+
+    /**
+     * Constructs a new GroupChatServer instance that is one node of a cluster
+     * and shares its rooms with the other nodes over the given bus.
+     *
+     * @param address The InetSocketAddress to bind the server to.
+     * @param config  The server settings.
+     * @param bus     The bus to the other nodes, or null to run as the only
+     *                node.
+     * @throws IOException If the message log cannot be recovered or the bus
+     *                     cannot be started.
+     */
+    public GroupChatServer(InetSocketAddress address, ServerConfig config, EventBus bus) throws IOException {
+        super(address, Collections.singletonList(config.compressionEnabled
+                ? new DeflateDraft(new PerMessageDeflate(config.compressionThresholdBytes, config.compressionLevel))
+                : new Draft_6455()));
+        this.config = config;
+        this.bus = bus;
+        this.export = new HistoryExport(this::findRoom, config.exportMaxConcurrent);
+        this.sender = Executors.newScheduledThreadPool(config.senderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "chat-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.roomPool = Executors.newFixedThreadPool(config.roomThreads, runnable -> {
+            Thread thread = new Thread(runnable, "chat-room");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.wheel = new TimingWheel<>(HEARTBEAT_WHEEL_SLOTS, config.heartbeatTickMillis, this::checkLiveness);
+        this.heartbeatIntervalTicks = wheel.ticks(TimeUnit.SECONDS.toMillis(config.heartbeatIntervalSeconds));
+        this.heartbeatTimeoutTicks = Math.max(1,
+                wheel.ticks(TimeUnit.SECONDS.toMillis(config.heartbeatTimeoutSeconds)));
+        this.idleTimeoutTicks = wheel.ticks(TimeUnit.SECONDS.toMillis(config.idleTimeoutSeconds));
+        // The wheel replaces the library's timer, which pings every connection
+        // from one task and cannot tell idle clients from dead ones
+        setConnectionLostTimeout(0);
+        if (isCheckingLiveness()) {
+            heartbeat.scheduleAtFixedRate(wheel::advance, config.heartbeatTickMillis, config.heartbeatTickMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        // Other rooms are recovered lazily when someone first joins them
+        rooms.put(DEFAULT_ROOM, new ChatRoom(DEFAULT_ROOM, roomDirectory(DEFAULT_ROOM), config, roomPool));
+        registerGauges();
+        if (config.retentionHotMessages > 0 || config.retentionHotMinutes > 0) {
+            maintenance.scheduleWithFixedDelay(() -> rooms.values().forEach(ChatRoom::enforceRetention),
+                    1, 1, TimeUnit.SECONDS);
+        }
+        if (config.persistenceEnabled) {
+            maintenance.scheduleWithFixedDelay(() -> rooms.values().forEach(ChatRoom::compactIfNeeded),
+                    config.compactionCheckSeconds, config.compactionCheckSeconds, TimeUnit.SECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(this::forgetIdleLimiters, 1, 1, TimeUnit.MINUTES);
+        if (bus != null) {
+            bus.start(new EventBus.Listener() {
+                @Override
+                public void onEvent(BusEvent event) {
+                    onBusEvent(event);
+                }
+
+                @Override
+                public void onNodeUp(String nodeId) {
+                    announceMembers();
+                }
+
+                @Override
+                public void onNodeDown(String nodeId) {
+                    forgetNode(nodeId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Registers the gauges that are read from the server's state when the
+     * metrics are scraped.
      */
-    public GroupChatServer(InetSocketAddress address) {
-        super(address);
+    private void registerGauges() {
+        metrics.gauge("chat_connected_clients", "Open WebSocket connections.", () -> getConnections().size());
+        metrics.gauge("chat_joined_users", "Connections that have chosen a username.", users::size);
+        metrics.gauge("chat_history_messages", "Messages stored per room, on and off the heap.", "room",
+                () -> perRoom(room -> room.getMessages().size()));
+        metrics.gauge("chat_message_store_heap_bytes", "Estimated heap held by the messages of each room.", "room",
+                () -> perRoom(room -> room.getMessages().getHeapBytes()));
+        metrics.gauge("chat_cold_tier_bytes", "Bytes of each room's off-heap message tier.", "room",
+                () -> perRoom(room -> room.getMessages().getColdBytes()));
+        metrics.gauge("chat_log_write_failures", "Batches of events each room's log could not write.", "room",
+                () -> perRoom(ChatRoom::getLogWriteFailures));
+        metrics.gauge("chat_log_compactions", "Times each room's log was compacted since startup.", "room",
+                () -> perRoom(ChatRoom::getLogCompactions));
+        metrics.gauge("chat_log_last_compaction_millis", "How long the last compaction of each room's log took.",
+                "room", () -> perRoom(ChatRoom::getLastLogCompactionMillis));
+        metrics.gauge("chat_client_queue_depth", "Frames queued for each joined client.", "user",
+                this::getOutboxDepths);
+    }
+
+    /**
+     * Reads one value from every open room.
+     *
+     * @param value Reads the value of a room.
+     * @return A map from room name to value.
+     */
+    private Map<String, Long> perRoom(ToLongFunction<ChatRoom> value) {
+        Map<String, Long> values = new HashMap<>();
+        for (ChatRoom room : rooms.values()) {
+            values.put(room.getName(), value.applyAsLong(room));
+        }
+        return values;
+    }
+
+    /**
+     * Returns the server's metrics.
+     *
+     * @return The metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the server's history export.
+     *
+     * @return The export.
+     */
+    public HistoryExport getExport() {
+        return export;
+    }
+
+    /**
+     * Stops the server and flushes the message logs.
+     *
+     * @param timeout The time in milliseconds to wait for connections to close.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @Override
+    public void stop(int timeout) throws InterruptedException {
+        if (bus != null) {
+            bus.close();
+        }
+        super.stop(timeout);
+        heartbeat.shutdownNow();
+        maintenance.shutdownNow();
+        roomPool.shutdown();
+        roomPool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        for (ChatRoom room : rooms.values()) {
+            room.close();
+        }
     }
 
     /**
@@ -53,6 +336,14 @@ public class GroupChatServer extends WebSocketServer {
     @Override
     public void onOpen(WebSocket conn, org.java_websocket.handshake.ClientHandshake handshake) {
         System.out.println(conn.getRemoteSocketAddress() + " connected");
+        ClientOutbox outbox = new ClientOutbox(conn, config.outboxCapacity, config.outboxOverflowPolicy, sender,
+                metrics);
+        ClientSession session = new ClientSession(outbox, new RateLimiter(config.rateLimits));
+        session.active(wheel.now());
+        conn.setAttachment(session);
+        if (isCheckingLiveness()) {
+            session.setLivenessCheck(wheel.schedule(conn, nextCheck(session, wheel.now())));
+        }
     }
 
     /**
@@ -65,68 +356,333 @@ public class GroupChatServer extends WebSocketServer {
      */
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-        String username = clients.get(conn);
+        String username = users.release(conn);
         System.out.println(username + " disconnected");
-        String joinMessage = username + " left the group chat";
-        clients.remove(conn);
-        serverBroadcast("left", joinMessage, username, 12323);
+        ClientSession session = conn.getAttachment();
+        if (session != null) {
+            session.cancelLivenessCheck();
+            session.getOutbox().close();
+            ChatRoom room = session.getRoom();
+            session.setRoom(null);
+            if (room != null) {
+                room.execute(() -> leaveRoom(conn, room, username));
+            }
+        }
     }
 
     /**
-     * Called when a message is received from a WebSocket connection.
+     * Called when a JSON text frame is received from a WebSocket connection.
      *
      * @param conn    The WebSocket connection.
      * @param message The message received.
      */
     @Override
     public void onMessage(WebSocket conn, String message) {
-        JSONObject jsonMessage = new JSONObject(message);
-        String action = jsonMessage.optString("action");
+        ClientSession session = conn.getAttachment();
+        session.active(wheel.now());
+        // Checked before decoding, so a flood costs as little as possible
+        if (!allow(conn, session, RateLimiter.FRAMES, true)) {
+            return;
+        }
+        ClientRequest request;
+        try {
+            request = JsonCodec.decodeRequest(message);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Malformed JSON frame from " + conn.getRemoteSocketAddress() + ": " + e.getMessage());
+            whisper(conn, "alert", "Malformed message.");
+            return;
+        }
+        handleRequest(conn, request);
+    }
+
+    /**
+     * Called when a binary frame is received from a WebSocket connection. The
+     * first binary frame switches the connection to the binary protocol for
+     * everything the server sends it from then on.
+     *
+     * @param conn    The WebSocket connection.
+     * @param message The frame payload.
+     */
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        ClientSession session = conn.getAttachment();
+        session.active(wheel.now());
+        session.setBinary(true);
+        if (!allow(conn, session, RateLimiter.FRAMES, true)) {
+            return;
+        }
+        ClientRequest request;
+        try {
+            request = BinaryCodec.decodeRequest(message);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Malformed binary frame from " + conn.getRemoteSocketAddress() + ": " + e.getMessage());
+            whisper(conn, "alert", "Malformed message.");
+            return;
+        }
+        handleRequest(conn, request);
+    }
+
+    /**
+     * Called when a pong frame is received, which shows the connection is
+     * alive without counting as activity.
+     *
+     * @param conn The WebSocket connection.
+     * @param f    The pong frame.
+     */
+    @Override
+    public void onWebsocketPong(WebSocket conn, Framedata f) {
+        ClientSession session = conn.getAttachment();
+        if (session != null) {
+            session.heard(wheel.now());
+        }
+    }
+
+    /**
+     * Returns whether connections are pinged or closed when idle.
+     *
+     * @return True if either is on.
+     */
+    private boolean isCheckingLiveness() {
+        return heartbeatIntervalTicks > 0 || idleTimeoutTicks > 0;
+    }
+
+    /**
+     * Checks whether a connection is still alive and wanted, on the heartbeat
+     * thread when its timeout fires. A connection that has been silent for
+     * the heartbeat interval is sent a ping; one that does not answer within
+     * the heartbeat timeout is dropped, and one that has sent no message for
+     * the idle timeout is closed with {@link #IDLE_CLOSE_CODE}. Either way the
+     * connection goes through {@link #onClose}, so its room is told it left.
+     * Otherwise the next check is scheduled for when one of these could next
+     * happen.
+     *
+     * @param conn The WebSocket connection.
+     */
+    private void checkLiveness(WebSocket conn) {
+        ClientSession session = conn.getAttachment();
+        if (session == null || conn.isClosed()) {
+            return;
+        }
+        long now = wheel.now();
+        long pingSentAt = session.getPingSentAt();
+        if (conn.isClosing()) {
+            // Give the client the heartbeat timeout to finish the close
+            // handshake, then drop it
+            if (pingSentAt < 0) {
+                session.setPingSentAt(now);
+                session.setLivenessCheck(wheel.schedule(conn, heartbeatTimeoutTicks));
+            } else if (now - pingSentAt >= heartbeatTimeoutTicks) {
+                conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Close handshake timed out");
+            } else {
+                session.setLivenessCheck(wheel.schedule(conn, pingSentAt + heartbeatTimeoutTicks - now));
+            }
+            return;
+        }
+        if (!conn.isOpen()) {
+            return;
+        }
+        if (idleTimeoutTicks > 0 && now - session.getLastActive() >= idleTimeoutTicks) {
+            System.out.println(conn.getRemoteSocketAddress() + " idle, closing");
+            metrics.evicted(true);
+            session.setPingSentAt(now);
+            conn.close(IDLE_CLOSE_CODE, "Idle timeout");
+            session.setLivenessCheck(wheel.schedule(conn, heartbeatTimeoutTicks));
+            return;
+        }
+        if (pingSentAt >= 0) {
+            if (session.getLastHeard() < pingSentAt) {
+                if (now - pingSentAt >= heartbeatTimeoutTicks) {
+                    System.out.println(conn.getRemoteSocketAddress() + " stopped answering pings, dropping");
+                    metrics.evicted(false);
+                    conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timed out");
+                } else {
+                    session.setLivenessCheck(wheel.schedule(conn, pingSentAt + heartbeatTimeoutTicks - now));
+                }
+                return;
+            }
+            session.setPingSentAt(-1);
+        }
+        if (heartbeatIntervalTicks > 0 && now - session.getLastHeard() >= heartbeatIntervalTicks) {
+            try {
+                conn.sendPing();
+            } catch (WebsocketNotConnectedException e) {
+                return; // Closed since the check above; onClose takes care of it
+            }
+            session.setPingSentAt(now);
+            session.setLivenessCheck(wheel.schedule(conn, heartbeatTimeoutTicks));
+            return;
+        }
+        session.setLivenessCheck(wheel.schedule(conn, nextCheck(session, now)));
+    }
+
+    /**
+     * Returns the number of ticks until a connection could next need a ping
+     * or be idle for too long.
+     *
+     * @param session The connection's session.
+     * @param now     The current tick.
+     * @return The ticks, at least one.
+     */
+    private long nextCheck(ClientSession session, long now) {
+        long next = Long.MAX_VALUE;
+        if (heartbeatIntervalTicks > 0) {
+            next = session.getLastHeard() + heartbeatIntervalTicks - now;
+        }
+        if (idleTimeoutTicks > 0) {
+            next = Math.min(next, session.getLastActive() + idleTimeoutTicks - now);
+        }
+        return Math.max(1, next);
+    }
+
+    /**
+     * Handles a decoded client action. Joining and leaving rooms is handled
+     * right away; everything else is handed to the executor of the client's
+     * room.
+     *
+     * @param conn    The WebSocket connection.
+     * @param request The decoded action.
+     */
+    private void handleRequest(WebSocket conn, ClientRequest request) {
+        ClientSession session = conn.getAttachment();
+        metrics.inbound(request.getAction());
+        if (!allow(conn, session, RateLimiter.slot(request.getAction()), false)) {
+            return;
+        }
 
         // present
-        switch (action) {
+        switch (request.getAction()) {
             case "username":
-                String username = jsonMessage.optString("username");
+                String username = request.getUsername();
                 if (username != null && !username.isEmpty()) {
-                    if (!isUsernameAvailable(username)) {
+                    if (session.getUsername() != null && !session.getUsername().equals(username)) {
+                        whisper(conn, "alert", "You have already joined as " + session.getUsername() + ".");
+                        break;
+                    }
+                    if (!users.claim(conn, username)) {
                         // Username is already in use
                         // prompt the user to choose a
                         // different username
                         whisper(conn, "alert", "Username is already in use. Please choose a different username.");
                         break;
                     }
-                    clients.put(conn, username);
-
-                    // Send all messages to the user who just joined
-                    JSONArray allMessages = getAllMessages();
-                    for (int i = 0; i < allMessages.length(); i++) {
-                        JSONObject messageObject = allMessages.getJSONObject(i);
-                        int id = messageObject.getInt("id");
-                        String content = messageObject.getString("content");
-                        long timestamp = messageObject.getLong("timestamp");
-                        String senderUsername = messageObject.getString("username");
-
-                        whisperOldMessages(conn, id, content, timestamp, senderUsername);
-                    }
-                    String joinMessage = username + " joined the group chat";
-                    serverBroadcast("join", joinMessage, username, 12323);
+                    session.setUsername(username);
+                    session.setUserLimiter(userLimiters.computeIfAbsent(username,
+                            name -> new RateLimiter(config.rateLimits)));
+                    joinRoom(conn, session, request.getRoom() != null ? request.getRoom() : DEFAULT_ROOM,
+                            request.getEpoch(), request.getSince());
                 }
                 break;
 
-            case "add":
-                String msg = jsonMessage.optString("message");
-                String username2 = jsonMessage.optString("username");
-                addMessage(msg, username2);
+            case "joinRoom":
+                if (session.getUsername() == null) {
+                    whisper(conn, "alert", "Please choose a username before joining a room.");
+                    break;
+                }
+                joinRoom(conn, session, request.getRoom(), request.getEpoch(), request.getSince());
+                break;
+
+            case "leaveRoom":
+                // Leaving a room takes the user back to the default room
+                if (session.getUsername() != null) {
+                    joinRoom(conn, session, DEFAULT_ROOM, 0, -1);
+                }
+                break;
+
+            default:
+                ChatRoom room = session.getRoom() != null ? session.getRoom() : rooms.get(DEFAULT_ROOM);
+                room.execute(() -> onRoomMessage(conn, room, request));
+                break;
+        }
+    }
+
+    /**
+     * Takes a token for a frame from the client's limiter and deals with the
+     * frame if it is over its limit.
+     *
+     * @param conn       The WebSocket connection.
+     * @param session    The client's session.
+     * @param slot       The rate limiter bucket of the frame, or -1 for none.
+     * @param connection True to count the frame against the connection, false
+     *                   against the user once known.
+     * @return True if the frame should be handled.
+     */
+    private boolean allow(WebSocket conn, ClientSession session, int slot, boolean connection) {
+        RateLimiter limiter = connection ? session.getConnectionLimiter() : session.getActionLimiter();
+        if (limiter.tryAcquire(slot, System.nanoTime())) {
+            if (!connection) {
+                session.setRateLimited(false);
+            }
+            return true;
+        }
+        metrics.rateLimited(slot);
+        switch (config.rateLimitPolicy) {
+            case REJECT:
+                // Only the first frame of a flood is answered, so the alerts do not
+                // become a flood of their own
+                if (!session.isRateLimited()) {
+                    session.setRateLimited(true);
+                    whisper(conn, "alert", "You are sending messages too fast. Please slow down.");
+                }
+                break;
+            case DISCONNECT:
+                conn.close(CloseFrame.POLICY_VALIDATION, "Rate limit exceeded");
+                break;
+            default:
                 break;
+        }
+        return false;
+    }
 
+    /**
+     * Drops the limiters of users who are not connected and whose buckets are
+     * full again.
+     */
+    private void forgetIdleLimiters() {
+        long now = System.nanoTime();
+        userLimiters.entrySet().removeIf(entry -> users.getConnection(entry.getKey()) == null
+                && entry.getValue().isIdle(now));
+    }
+
+    /**
+     * Handles an action that concerns a single room. Runs on the room's
+     * executor, so the actions of a room are applied one at a time and in the
+     * order they arrived.
+     * <p>
+     * Messages are added, edited and deleted as the user the connection joined
+     * as, never as the username a request names.
+     *
+     * @param conn    The WebSocket connection.
+     * @param room    The room the client is in.
+     * @param request The decoded action.
+     */
+    private void onRoomMessage(WebSocket conn, ChatRoom room, ClientRequest request) {
+        ClientSession session = conn.getAttachment();
+        String username = session.getUsername();
+        switch (request.getAction()) {
+            case "add":
             case "del":
-                String msgid = jsonMessage.optString("id");
-                String user = jsonMessage.optString("username");
+            case "update":
+                if (username == null) {
+                    whisper(conn, "alert", "Please choose a username before sending messages.");
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        switch (request.getAction()) {
+            case "add":
+                Message added = addMessage(room, request.getMessage(), username);
+                publish(room, BusEvent.Type.MESSAGE, added.getId(), added.getTimestamp(), added.getUsername(),
+                        added.getContent());
+                break;
 
+            case "del":
                 // Checking if the message was sent by the current user before proceeding with
                 // deletion
-                if (isMessageSentByCurrentUser(conn, msgid, user)) {
-                    deleteMessage(msgid, user);
+                if (isMessageSentByCurrentUser(room, request.getId(), username)) {
+                    deleteMessage(room, request.getId(), username);
+                    publish(room, BusEvent.Type.DELETE, request.getId(), 0, username, "");
                 } else {
                     // Case where the message was not sent by the current user
                     // sending an error message
@@ -137,13 +693,13 @@ public class GroupChatServer extends WebSocketServer {
                 break;
 
             case "update":
-                String msg_id = jsonMessage.optString("id");
-                String updatedmsg = jsonMessage.optString("updatedMessage");
-                String user2 = jsonMessage.optString("username");
                 // Checking if the message was sent by the current user before proceeding with
                 // updating
-                if (isMessageSentByCurrentUser(conn, msg_id, user2)) {
-                    updateMessage(msg_id, updatedmsg, user2);
+                if (isMessageSentByCurrentUser(room, request.getId(), username)) {
+                    if (updateMessage(room, request.getId(), request.getMessage(), username)) {
+                        publish(room, BusEvent.Type.UPDATE, request.getId(), 0, username,
+                                request.getMessage());
+                    }
                 } else {
                     // case where the message was not sent by the current user
                     // send an error message
@@ -154,146 +710,389 @@ public class GroupChatServer extends WebSocketServer {
 
                 break;
             case "getParticipants":
-                handleGetParticipantsAction(conn);
+                handleGetParticipantsAction(conn, room);
+                break;
+
+            case "history":
+                // Older pages are fetched on demand with the ID of the oldest message
+                // the client already has as the cursor
+                whisperHistory(conn, room, request.getBefore(), request.getLimit(HISTORY_PAGE_SIZE));
+                break;
+
+            case "search":
+                whisperSearchResults(conn, room, request.getQuery(), request.getOffset(), request.getLimit(20));
                 break;
 
             default:
                 // If the action is not recognized, print to server console
-                System.out.println("Received: " + message);
+                System.out.println("Received unknown action: " + request.getAction());
 
                 break;
         }
     }
 
     /**
-     * Handles the "getParticipants" action by sending a list of participants to the
-     * WebSocket connection.
+     * Moves a client into a room, opening the room if nobody has used it since
+     * startup. The client leaves its previous room first. Both steps run on the
+     * executors of the rooms they change.
+     * <p>
+     * A client that was in the room before, and still holds the room's epoch,
+     * is sent only the message events it missed since the given event number.
+     * When those are no longer all kept it gets the latest page of history, as
+     * any new member does.
      *
-     * @param conn The WebSocket connection.
+     * @param conn     The WebSocket connection.
+     * @param session  The client's session.
+     * @param roomName The name of the room to join.
+     * @param epoch    The epoch of the client's event number.
+     * @param since    The number of the last event the client saw, or -1.
      */
-    private void handleGetParticipantsAction(WebSocket conn) {
-        JSONArray participantsArray = new JSONArray();
-        for (String participant : clients.values()) {
-            participantsArray.put(participant);
+    private void joinRoom(WebSocket conn, ClientSession session, String roomName, long epoch, long since) {
+        if (roomName == null || !ROOM_NAME.matcher(roomName).matches()) {
+            whisper(conn, "alert", "Room names may only contain letters, digits, '-' and '_'.");
+            return;
+        }
+        ChatRoom room;
+        try {
+            room = openRoom(roomName);
+        } catch (IOException e) {
+            System.err.println("Could not open room " + roomName + ": " + e);
+            whisper(conn, "alert", "The room could not be opened. Please try again later.");
+            return;
+        }
+        if (room == null) {
+            whisper(conn, "alert", "No more rooms can be created right now.");
+            return;
+        }
+        String username = session.getUsername();
+        ChatRoom previous = session.getRoom();
+        if (previous == room) {
+            return;
+        }
+        session.setRoom(room);
+        if (previous != null) {
+            previous.execute(() -> leaveRoom(conn, previous, username));
         }
-        JSONObject participantsObject = new JSONObject();
-        participantsObject.put("action", "participants");
-        participantsObject.put("participants", participantsArray);
-        conn.send(participantsObject.toString());
+        room.execute(() -> {
+            if (session.getRoom() != room) {
+                return; // Moved on or disconnected before the join ran
+            }
+            // Pending messages are already in the history the new member gets
+            flushBatch(room);
+            int version = room.addMember(conn, username);
+            RecentEvents recent = room.getRecentEvents();
+            List<RecentEvents.Event> missed = since >= 0 ? recent.since(epoch, since) : null;
+            if (session.isBinary()) {
+                sendTo(conn, BinaryCodec.encodeRoomJoined(room.getName(), recent.getEpoch(), recent.getLastSeq(),
+                        missed != null), null);
+            } else {
+                sendTo(conn, JsonCodec.encodeRoomJoined(room.getName(), recent.getEpoch(), recent.getLastSeq(),
+                        missed != null), null);
+            }
+
+            if (missed != null) {
+                whisperMissedEvents(conn, missed);
+            } else {
+                // Send the latest page of history to the user who just joined
+                whisperHistory(conn, room, Integer.MAX_VALUE, HISTORY_PAGE_SIZE);
+            }
+            presenceBroadcast(room, "join", username + " joined the group chat", username, version);
+            publish(room, BusEvent.Type.JOIN, 0, 0, username, "");
+        });
     }
 
     /**
-     * Returns a JSONArray containing all messages.
+     * Removes a client from a room and tells the remaining members.
      *
-     * @return A JSONArray containing all messages.
+     * @param conn     The WebSocket connection.
+     * @param room     The room to leave.
+     * @param username The username.
      */
-    public JSONArray getAllMessages() {
-        JSONArray messagesArray = new JSONArray();
-        for (Message message : messages) {
-            JSONObject messageObject = new JSONObject();
-            messageObject.put("id", message.getId());
-            messageObject.put("content", message.getContent());
-            messageObject.put("username", message.getUsername());
-            messageObject.put("timestamp", message.getTimestamp());
-            messagesArray.put(messageObject);
+    private void leaveRoom(WebSocket conn, ChatRoom room, String username) {
+        int version = room.removeMember(conn);
+        if (version >= 0) {
+            presenceBroadcast(room, "left", username + " left the group chat", username, version);
+            publish(room, BusEvent.Type.LEAVE, 0, 0, username, "");
         }
-        return messagesArray;
     }
 
     /**
-     * Checks if the message with the given ID was sent by the current user.
+     * Tells the other nodes about a change made by a client of this node. Runs
+     * on the room's executor, so the other nodes see a room's changes in the
+     * order they were made here.
      *
-     * @param conn      The WebSocket connection.
-     * @param messageId The message ID.
+     * @param room      The room.
+     * @param type      What happened.
+     * @param id        The message ID, or 0.
+     * @param timestamp The timestamp of an added message, or 0.
      * @param username  The username.
-     * @return True if the message was sent by the current user, false otherwise.
+     * @param message   The content, or "".
      */
-    private boolean isMessageSentByCurrentUser(WebSocket conn, String messageId, String username) {
+    private void publish(ChatRoom room, BusEvent.Type type, int id, long timestamp, String username,
+                         String message) {
+        if (bus != null) {
+            bus.publish(new BusEvent(bus.getNodeId(), type, room.getName(), id, timestamp, username, message));
+        }
+    }
+
+    /**
+     * Applies a change made on another node to this node's copy of the room
+     * and sends it on to the room's members here.
+     *
+     * @param event The event.
+     */
+    private void onBusEvent(BusEvent event) {
+        if (!ROOM_NAME.matcher(event.getRoom()).matches()) {
+            return;
+        }
+        ChatRoom room;
         try {
-            int id = Integer.parseInt(messageId);
-            // Find the message with the specified ID
-            for (Message message : messages) {
-                if (message.getId() == id) {
-                    // Compare the username associated with the message ID with the provided
-                    // username
-                    return message.getUsername().equals(username);
+            room = openRoom(event.getRoom());
+        } catch (IOException e) {
+            System.err.println("Could not open room " + event.getRoom() + ": " + e);
+            return;
+        }
+        if (room == null) {
+            return; // Over the room limit on this node
+        }
+        room.execute(() -> {
+            String username = event.getUsername();
+            int version;
+            switch (event.getType()) {
+                case MESSAGE:
+                    room.observeMessageId(event.getId());
+                    if (room.getMessages().get(event.getId()) == null) {
+                        storeMessage(room, new Message(event.getId(), event.getMessage(), username,
+                                event.getTimestamp()));
+                    }
+                    break;
+                case UPDATE:
+                    updateMessage(room, event.getId(), event.getMessage(), username);
+                    break;
+                case DELETE:
+                    if (room.getMessages().get(event.getId()) != null) {
+                        deleteMessage(room, event.getId(), username);
+                    }
+                    break;
+                case JOIN:
+                    version = room.addRemoteMember(event.getNodeId(), username);
+                    if (version >= 0) {
+                        presenceBroadcast(room, "join", username + " joined the group chat", username, version);
+                    }
+                    break;
+                case LEAVE:
+                    version = room.removeRemoteMember(event.getNodeId(), username);
+                    if (version >= 0) {
+                        presenceBroadcast(room, "left", username + " left the group chat", username, version);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        });
+    }
+
+    /**
+     * Publishes a join for every member of every room on this node, so a node
+     * that just connected knows who is here.
+     */
+    private void announceMembers() {
+        for (ChatRoom room : rooms.values()) {
+            room.execute(() -> {
+                for (String username : room.getMembers().values()) {
+                    publish(room, BusEvent.Type.JOIN, 0, 0, username, "");
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the members of a node whose connection was lost from every
+     * room, telling the members here that they left.
+     *
+     * @param nodeId The node.
+     */
+    private void forgetNode(String nodeId) {
+        for (ChatRoom room : rooms.values()) {
+            room.execute(() -> {
+                for (String username : room.getRemoteMembers(nodeId)) {
+                    int version = room.removeRemoteMember(nodeId, username);
+                    if (version >= 0) {
+                        presenceBroadcast(room, "left", username + " left the group chat", username, version);
+                    }
                 }
+            });
+        }
+    }
+
+    /**
+     * Returns the room with the given name, recovering it from disk if it is
+     * not open yet.
+     *
+     * @param name The room name.
+     * @return The room, or null if the room limit has been reached.
+     * @throws IOException If the room's log cannot be recovered.
+     */
+    private ChatRoom openRoom(String name) throws IOException {
+        ChatRoom room = rooms.get(name);
+        if (room != null) {
+            return room;
+        }
+        // Opening a room is rare, so a single lock keeps the limit check and the
+        // recovery simple
+        synchronized (rooms) {
+            room = rooms.get(name);
+            if (room == null) {
+                if (rooms.size() >= config.maxRooms) {
+                    return null;
+                }
+                room = new ChatRoom(name, roomDirectory(name), config, roomPool);
+                rooms.put(name, room);
             }
-            // If the message with the specified ID is not found
-            System.out.println("Message with ID " + id + " not found");
-        } catch (NumberFormatException e) {
-            // Handle invalid message ID format
-            System.out.println("Invalid message ID format: " + e);
+            return room;
+        }
+    }
+
+    /**
+     * Returns the room with the given name for an export, recovering it from
+     * disk if it has history there but is not open. Unlike joining, this never
+     * creates a room.
+     *
+     * @param name The room name.
+     * @return The room, or null if there is no such room or the room limit
+     *         has been reached.
+     * @throws IOException If the room's log cannot be recovered.
+     */
+    private ChatRoom findRoom(String name) throws IOException {
+        if (!ROOM_NAME.matcher(name).matches()) {
+            return null;
+        }
+        ChatRoom room = rooms.get(name);
+        if (room == null && Files.isDirectory(roomDirectory(name))) {
+            room = openRoom(name);
+        }
+        return room;
+    }
+
+    /**
+     * Returns the directory holding a room's files. The default room keeps the
+     * top-level data directory, so history written before rooms existed is
+     * still found.
+     *
+     * @param name The room name.
+     * @return The room's data directory.
+     */
+    private Path roomDirectory(String name) {
+        if (name.equals(DEFAULT_ROOM)) {
+            return Paths.get(config.dataDirectory);
+        }
+        return Paths.get(config.dataDirectory, "rooms", name);
+    }
+
+    /**
+     * Handles the "getParticipants" action by sending the room's cached
+     * participant list to the WebSocket connection.
+     *
+     * @param conn The WebSocket connection.
+     * @param room The room.
+     */
+    private void handleGetParticipantsAction(WebSocket conn, ChatRoom room) {
+        if (isBinary(conn)) {
+            sendTo(conn, room.getParticipantsBinary(), "participants");
+        } else {
+            sendTo(conn, room.getParticipantsPayload(), "participants");
         }
+    }
+
+    /**
+     * Checks if the message with the given ID was sent by the current user.
+     *
+     * @param room      The room holding the message.
+     * @param messageId The message ID.
+     * @param username  The username.
+     * @return True if the message was sent by the current user, false otherwise.
+     */
+    private boolean isMessageSentByCurrentUser(ChatRoom room, int messageId, String username) {
+        // Find the message with the specified ID
+        Message message = room.getMessages().get(messageId);
+        if (message != null) {
+            // Compare the username associated with the message ID with the provided
+            // username
+            return message.getUsername().equals(username);
+        }
+        // If the message with the specified ID is not found
+        System.out.println("Message with ID " + messageId + " not found");
         return false;
     }
 
     /**
-     * Adds a new message to the list with the given content, username, and
+     * Adds a new message to the room with the given content, username, and
      * timestamp.
      *
+     * @param room     The room.
      * @param content  The message content.
      * @param username The username.
+     * @return The new message.
      */
-    private void addMessage(String content, String username) {
+    private Message addMessage(ChatRoom room, String content, String username) {
         // Add message to the list with ID and timestamp
-        int msgId = messageId++;
+        int msgId = room.nextMessageId();
         long msg_time = System.currentTimeMillis();
 
         Message message = new Message(msgId, content, username, msg_time); // Add the new message with username
-        messages.add(message);
+        storeMessage(room, message);
+        return message;
+    }
 
-        messageBroadcast(msgId, content, msg_time, username); // Broadcast the new message
+    /**
+     * Stores a message that already has its ID and broadcasts it.
+     *
+     * @param room    The room.
+     * @param message The message.
+     */
+    private void storeMessage(ChatRoom room, Message message) {
+        room.getMessages().add(message);
+        long seq = room.getRecentEvents().append("message", message.getId(), message.getUsername(),
+                message.getContent(), message.getTimestamp());
+
+        messageBroadcast(room, message, seq); // Broadcast the new message
     }
 
     /**
      * Deletes the message with the given ID and username.
      *
-     * @param messageIdStr The message ID.
-     * @param user         The username.
+     * @param room The room.
+     * @param id   The message ID.
+     * @param user The username.
      */
-    private void deleteMessage(String messageIdStr, String user) {
-        try {
-            int id = Integer.parseInt(messageIdStr);
-            // Find the message with the specified ID and remove it
-            messages.removeIf(message -> message.getId() == id);
+    private void deleteMessage(ChatRoom room, int id, String user) {
+        // Find the message with the specified ID and remove it
+        room.getMessages().remove(id);
+        String notice = user + " Deleted a Message";
+        long seq = room.getRecentEvents().append("del", id, user, notice, 0);
 
-            serverBroadcast("del", user + " Deleted a Message", user, id); // Broadcast the deletion
-        } catch (NumberFormatException e) {
-            // Handle invalid message ID format
-            System.out.println("Invalid message ID format: " + messageIdStr);
-        }
+        serverBroadcast(room, "del", notice, user, id, seq); // Broadcast the deletion
     }
 
     /**
      * Updates the message with the given ID and username.
      *
-     * @param messageId  The message ID.
+     * @param room       The room.
+     * @param id         The message ID.
      * @param updatedmsg The updated message content.
      * @param username   The username.
+     * @return True if the message was found.
      */
-    private void updateMessage(String messageId, String updatedmsg, String username) {
-
-        try {
-
-            // Find the message with the specified ID and update its content
-            int id = Integer.parseInt(messageId);
-            for (Message message : messages) {
-                if (message.getId() == id) {
-                    message.setContent(updatedmsg);
-
-                    serverBroadcast("update", updatedmsg, username, id); // Broadcast the update
-                    return;
-
-                }
-            }
-            // If message with the specified ID is not found
-            System.out.println("Message with ID " + id + " not found");
-        } catch (NumberFormatException e) {
-            // Handle invalid message ID format
-            System.out.println("Invalid message ID format: " + e);
+    private boolean updateMessage(ChatRoom room, int id, String updatedmsg, String username) {
+        // Find the message with the specified ID and update its content
+        if (room.getMessages().update(id, updatedmsg)) {
+            long seq = room.getRecentEvents().append("update", id, username, updatedmsg, 0);
+            serverBroadcast(room, "update", updatedmsg, username, id, seq); // Broadcast the update
+            return true;
         }
-
+        // If message with the specified ID is not found
+        System.out.println("Message with ID " + id + " not found");
+        return false;
     }
 
     /**
@@ -319,154 +1118,365 @@ public class GroupChatServer extends WebSocketServer {
     }
 
     /**
-     * Sends a message to a specific WebSocket connection.
+     * Sends a message to a specific WebSocket connection. Binary clients can
+     * only be sent alerts this way.
      *
      * @param conn    The WebSocket connection.
      * @param action  The action.
      * @param message The message.
      */
     private void whisper(WebSocket conn, String action, String message) {
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("action", action);
-        jsonMessage.put("message", message);
-        conn.send(jsonMessage.toString());
+        if (isBinary(conn)) {
+            if (!action.equals("alert")) {
+                throw new IllegalArgumentException("No binary encoding for action: " + action);
+            }
+            sendTo(conn, BinaryCodec.encodeAlert(message), null);
+            return;
+        }
+        sendTo(conn, JsonCodec.encodeNotice(action, message), null);
     }
 
     /**
-     * Sends a message to a specific WebSocket connection containing old messages.
+     * Sends one page of a room's old messages to a specific WebSocket connection
+     * in a single frame.
      *
-     * @param conn      The WebSocket connection.
-     * @param ID        The message ID.
-     * @param message   The message content.
-     * @param timestamp The message timestamp.
-     * @param username  The username.
+     * @param conn     The WebSocket connection.
+     * @param room     The room.
+     * @param beforeId Only messages with a lower ID are sent.
+     * @param limit    The maximum number of messages to send.
      */
-    private void whisperOldMessages(WebSocket conn, int ID, String message, long timestamp, String username) {
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("ID", ID);
-        jsonMessage.put("action", "message");
-        jsonMessage.put("message", message);
-        jsonMessage.put("timestamp", timestamp);
-        jsonMessage.put("username", username);
-        try {
-            conn.send(jsonMessage.toString());
-        } catch (Exception e) {
-            System.err.println("Error sending message to client: " + conn.getRemoteSocketAddress());
-            e.printStackTrace();
+    private void whisperHistory(WebSocket conn, ChatRoom room, int beforeId, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE));
+        // Fetch one extra message to find out whether there are older pages
+        List<Message> page = room.getMessages().getBefore(beforeId, pageSize + 1);
+        boolean hasMore = page.size() > pageSize;
+        if (hasMore) {
+            page = page.subList(1, page.size());
+        }
+        if (isBinary(conn)) {
+            sendTo(conn, BinaryCodec.encodeHistory(page, hasMore), null);
+        } else {
+            sendTo(conn, JsonCodec.encodeHistory(page, hasMore), null);
+        }
+    }
+
+    /**
+     * Sends a reconnecting client the message events it missed, in one frame.
+     *
+     * @param conn   The WebSocket connection.
+     * @param missed The events, oldest first.
+     */
+    private void whisperMissedEvents(WebSocket conn, List<RecentEvents.Event> missed) {
+        if (missed.isEmpty()) {
+            return;
+        }
+        boolean binary = isBinary(conn);
+        List<String> json = new ArrayList<>(binary ? 0 : missed.size());
+        List<ByteBuffer> frames = new ArrayList<>(binary ? missed.size() : 0);
+        for (RecentEvents.Event event : missed) {
+            if (event.getAction().equals("message")) {
+                Message message = new Message(event.getId(), event.getMessage(), event.getUsername(),
+                        event.getTimestamp());
+                if (binary) {
+                    frames.add(BinaryCodec.encodeMessage(message, event.getSeq()));
+                } else {
+                    json.add(JsonCodec.encodeMessage(message, event.getSeq()));
+                }
+            } else if (binary) {
+                frames.add(BinaryCodec.encodeChange(event.getAction(), event.getId(), event.getUsername(),
+                        event.getMessage(), event.getSeq()));
+            } else {
+                json.add(JsonCodec.encodeChange(event.getAction(), event.getId(), event.getUsername(),
+                        event.getMessage(), event.getSeq()));
+            }
+        }
+        if (binary) {
+            sendTo(conn, BinaryCodec.encodeBatch(frames), null);
+        } else {
+            sendTo(conn, JsonCodec.encodeBatch(json), null);
+        }
+    }
+
+    /**
+     * Runs a search over a room's whole history and sends one page of ranked
+     * hits to a specific WebSocket connection.
+     *
+     * @param conn   The WebSocket connection.
+     * @param room   The room.
+     * @param query  The search query.
+     * @param offset The number of best hits to skip.
+     * @param limit  The maximum number of hits to send.
+     */
+    private void whisperSearchResults(WebSocket conn, ChatRoom room, String query, int offset, int limit) {
+        MessageStore messages = room.getMessages();
+        SearchIndex.Result result = messages.search(query, offset, limit);
+        List<Message> hits = new ArrayList<>(result.getHits().size());
+        for (SearchIndex.Hit hit : result.getHits()) {
+            Message message = messages.get(hit.getId());
+            if (message != null) {
+                hits.add(message); // Skip anything deleted while the search was running
+            }
+        }
+        if (isBinary(conn)) {
+            sendTo(conn, BinaryCodec.encodeSearchResults(query, Math.max(0, offset), result.getTotal(),
+                    SearchIndex.MAX_OFFSET, hits), null);
+        } else {
+            sendTo(conn, JsonCodec.encodeSearchResults(query, Math.max(0, offset), result.getTotal(),
+                    SearchIndex.MAX_OFFSET, hits), null);
+        }
+    }
+
+    /**
+     * Queues an already serialized payload for a specific WebSocket connection.
+     *
+     * @param conn        The WebSocket connection.
+     * @param payload     The serialized JSON message.
+     * @param coalesceKey A key identifying payloads that supersede each other, or
+     *                    null.
+     */
+    private void sendTo(WebSocket conn, String payload, String coalesceKey) {
+        ClientSession session = conn.getAttachment();
+        if (session != null) {
+            session.getOutbox().offer(compress(conn.getDraft(), conn.getDraft().createFrames(payload, false)),
+                    coalesceKey);
+        }
+    }
+
+    /**
+     * Queues an already encoded binary payload for a specific WebSocket
+     * connection.
+     *
+     * @param conn        The WebSocket connection.
+     * @param payload     The encoded message.
+     * @param coalesceKey A key identifying payloads that supersede each other, or
+     *                    null.
+     */
+    private void sendTo(WebSocket conn, ByteBuffer payload, String coalesceKey) {
+        ClientSession session = conn.getAttachment();
+        if (session != null) {
+            session.getOutbox().offer(compress(conn.getDraft(), conn.getDraft().createFrames(payload, false)),
+                    coalesceKey);
+        }
+    }
+
+    /**
+     * Compresses frames about to be queued, if the connection they were
+     * created for negotiated per-message compression and they are large
+     * enough. Compressing here, once, rather than when each connection sends
+     * them lets a broadcast share its compressed frames.
+     *
+     * @param draft  The draft the frames were created by.
+     * @param frames The frames.
+     * @return The same frames.
+     */
+    private List<Framedata> compress(Draft draft, List<Framedata> frames) {
+        IExtension extension = draft instanceof Draft_6455 ? ((Draft_6455) draft).getExtension() : null;
+        if (extension instanceof PerMessageDeflate) {
+            for (Framedata frame : frames) {
+                int size = frame.getPayloadData().remaining();
+                if (((PerMessageDeflate) extension).compress(frame)) {
+                    metrics.compressed(size, frame.getPayloadData().remaining());
+                }
+            }
         }
+        return frames;
     }
 
     /**
-     * Broadcasts a message to all WebSocket connections.
+     * Returns whether a connection speaks the binary protocol.
      *
+     * @param conn The WebSocket connection.
+     * @return True if the connection is sent binary frames.
+     */
+    private boolean isBinary(WebSocket conn) {
+        ClientSession session = conn.getAttachment();
+        return session != null && session.isBinary();
+    }
+
+    /**
+     * Broadcasts a message to all members of a room.
+     *
+     * @param room     The room.
      * @param action   The action.
      * @param message  The message.
      * @param username The username.
      * @param id       The message ID.
+     * @param seq      The room's event number.
      */
-    private void serverBroadcast(String action, String message, String username, int id) {
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("action", action);
-        jsonMessage.put("message", message);
-        jsonMessage.put("username", username);
-        jsonMessage.put("id", id);
+    private void serverBroadcast(ChatRoom room, String action, String message, String username, int id, long seq) {
+        // A newer update to the same message makes an older queued one obsolete
+        broadcast(room, action.equals("update") ? BroadcastBatch.Kind.UPDATE : BroadcastBatch.Kind.DELETE, id,
+                () -> JsonCodec.encodeChange(action, id, username, message, seq),
+                () -> BinaryCodec.encodeChange(action, id, username, message, seq),
+                action.equals("update") ? "update:" + id : null);
+    }
 
-        for (WebSocket client : clients.keySet()) {
-            try {
-                client.send(jsonMessage.toString());
-            } catch (Exception e) {
-                System.err.println("Error sending message to client: " + client.getRemoteSocketAddress());
+    /**
+     * Broadcasts a presence delta to all members of a room. Clients apply it to
+     * their participant list if its version directly follows the list they
+     * hold, and ask for the full list otherwise.
+     *
+     * @param room     The room.
+     * @param action   The action, "join" or "left".
+     * @param message  The message.
+     * @param username The username that joined or left.
+     * @param version  The membership version after the change.
+     */
+    private void presenceBroadcast(ChatRoom room, String action, String message, String username, int version) {
+        broadcast(room, BroadcastBatch.Kind.PRESENCE, 0,
+                () -> JsonCodec.encodePresence(action, version, username, message),
+                () -> BinaryCodec.encodePresence(action, version, username, message), null);
+    }
 
-            }
-        }
+    /**
+     * Broadcasts a new message to all members of a room.
+     *
+     * @param room    The room.
+     * @param message The message.
+     * @param seq     The room's event number.
+     */
+    private void messageBroadcast(ChatRoom room, Message message, long seq) {
+        broadcast(room, BroadcastBatch.Kind.MESSAGE, message.getId(), () -> JsonCodec.encodeMessage(message, seq),
+                () -> BinaryCodec.encodeMessage(message, seq), null);
     }
 
     /**
-     * Broadcasts a message to all WebSocket connections.
+     * Sends an event to all members of a room, right away or, in batching mode,
+     * with the room's next batch. A batch is sent when its window is over or
+     * when it is full, whichever comes first, so batching adds at most one
+     * window of latency. Runs on the room's executor.
      *
-     * @param ID        The message ID.
-     * @param message   The message content.
-     * @param timestamp The message timestamp.
-     * @param username  The username.
+     * @param room        The room.
+     * @param kind        What the event does.
+     * @param id          The message ID, or 0 for a presence event.
+     * @param json        Builds the serialized JSON message.
+     * @param binary      Builds the binary message.
+     * @param coalesceKey A key identifying payloads that supersede each other, or
+     *                    null. Only used when the event is sent right away.
      */
-    private void messageBroadcast(int ID, String message, long timestamp, String username) {
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("ID", ID);
-        jsonMessage.put("action", "message");
-        jsonMessage.put("message", message);
-        jsonMessage.put("timestamp", timestamp);
-        jsonMessage.put("username", username);
+    private void broadcast(ChatRoom room, BroadcastBatch.Kind kind, int id, Supplier<String> json,
+                           Supplier<ByteBuffer> binary, String coalesceKey) {
+        if (config.batchWindowMillis <= 0) {
+            fanOut(room, json, binary, coalesceKey);
+            return;
+        }
+        BroadcastBatch batch = room.getBatch();
+        boolean opensBatch = batch.isEmpty();
+        int pending = batch.add(new BroadcastBatch.Event(kind, id, json, binary));
+        if (pending >= config.batchMaxEvents) {
+            flushBatch(room);
+        } else if (opensBatch && pending > 0) {
+            sender.schedule(() -> room.execute(() -> flushBatch(room)), config.batchWindowMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
 
-        for (WebSocket client : clients.keySet()) {
-            try {
-                client.send(jsonMessage.toString());
-            } catch (Exception e) {
-                System.err.println("Error sending message to client: " + client.getRemoteSocketAddress());
-                e.printStackTrace();
-            }
+    /**
+     * Sends the events a room has collected, as a single frame if there is
+     * more than one. Runs on the room's executor.
+     *
+     * @param room The room.
+     */
+    private void flushBatch(ChatRoom room) {
+        List<BroadcastBatch.Event> events = room.getBatch().drain();
+        if (events.isEmpty()) {
+            return;
+        }
+        if (events.size() == 1) {
+            fanOut(room, events.get(0).getJson(), events.get(0).getBinary(), null);
+            return;
         }
+        fanOut(room, () -> {
+            List<String> payloads = new ArrayList<>(events.size());
+            for (BroadcastBatch.Event event : events) {
+                payloads.add(event.getJson().get());
+            }
+            return JsonCodec.encodeBatch(payloads);
+        }, () -> {
+            List<ByteBuffer> payloads = new ArrayList<>(events.size());
+            for (BroadcastBatch.Event event : events) {
+                payloads.add(event.getBinary().get());
+            }
+            return BinaryCodec.encodeBatch(payloads);
+        }, null);
     }
 
     /**
-     * Checks if the given username is available.
+     * Sends a message to all members of a room.
+     * The message is serialized at most once per wire format and framed, and
+     * if need be compressed, once per protocol draft and extension, and the
+     * same frames are queued for every recipient, so a broadcast costs one
+     * serialization and one compression no matter how many clients are
+     * connected. A format nobody in the room speaks is never built.
      *
-     * @param username The username.
-     * @return True if the username is available, false otherwise.
+     * @param room        The room.
+     * @param json        Builds the serialized JSON message.
+     * @param binary      Builds the binary message.
+     * @param coalesceKey A key identifying payloads that supersede each other, or
+     *                    null.
      */
-    private boolean isUsernameAvailable(String username) {
-        for (String existingUsername : clients.values()) {
-            if (existingUsername.equals(username)) {
-                return false; // Username is already in use
+    private void fanOut(ChatRoom room, Supplier<String> json, Supplier<ByteBuffer> binary, String coalesceKey) {
+        long start = System.nanoTime();
+        // Drafts are equal when they negotiated the same extension, so these maps
+        // hold at most one entry for compressing clients and one for the others
+        Map<Draft, List<Framedata>> textFramesByDraft = new HashMap<>(2);
+        Map<Draft, List<Framedata>> binaryFramesByDraft = new HashMap<>(2);
+        for (WebSocket client : room.getMembers().keySet()) {
+            try {
+                ClientSession session = client.getAttachment();
+                if (session == null) {
+                    continue;
+                }
+                List<Framedata> frames = session.isBinary()
+                        ? binaryFramesByDraft.computeIfAbsent(client.getDraft(),
+                                draft -> compress(draft, draft.createFrames(binary.get(), false)))
+                        : textFramesByDraft.computeIfAbsent(client.getDraft(),
+                                draft -> compress(draft, draft.createFrames(json.get(), false)));
+                session.getOutbox().offer(frames, coalesceKey);
+            } catch (Exception e) {
+                metrics.sendFailure();
             }
         }
-        return true; // Username is available
+        metrics.fanOut(System.nanoTime() - start);
     }
 
     /**
-     * Reads the contents of a file.
+     * Returns the outbound queue depth of every joined client.
      *
-     * @param filename The filename.
-     * @return The file contents.
+     * @return A map from username to the number of queued frames.
      */
-    private String readFile(String filename) {
-        StringBuilder content = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                content.append(line);
+    public Map<String, Integer> getOutboxDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        for (Map.Entry<WebSocket, String> client : users.connections().entrySet()) {
+            ClientSession session = client.getKey().getAttachment();
+            if (session != null) {
+                depths.put(client.getValue(), session.getOutbox().depth());
             }
-        } catch (IOException e) {
-            // Print a meaningful message indicating the file could not be found
-            System.err.println("File not found: " + filename);
-            e.printStackTrace();
         }
-        return content.toString();
+        return depths;
     }
 
     public static void main(String[] args) throws Exception {
-        int port = 8080;
-        GroupChatServer server = new GroupChatServer(new InetSocketAddress(port));
+        ServerConfig config = new ServerConfig();
+        int port = config.port;
+        GroupChatServer server = new GroupChatServer(new InetSocketAddress(port), config);
         server.start();
         System.out.println("WebSocket Server running on port " + port);
+        if (config.busPort > 0) {
+            System.out.println("Node " + config.nodeId + " listening for other nodes on " + config.busHost + ":"
+                    + config.busPort);
+        }
 
+        // Without TCP_NODELAY small responses wait out the client's delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
         HttpServer httpServer = HttpServer.create(new InetSocketAddress(port + 1), 0);
-        httpServer.createContext("/", (exchange -> {
-            if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
-                String response = server.readFile("html/index.html");
-                exchange.sendResponseHeaders(200, response.getBytes().length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(response.getBytes());
-                os.close();
-            }
-        }));
-
-        httpServer.createContext("/chat", (exchange -> {
-            String response = server.readFile("html/chat.html");
-            exchange.sendResponseHeaders(200, response.getBytes().length);
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
-        }));
+        StaticAssets assets = new StaticAssets(Paths.get(config.assetDirectory));
+        httpServer.createContext("/", assets.handler("index.html"));
+        httpServer.createContext("/chat", assets.handler("chat.html"));
+        httpServer.createContext("/metrics", server.getMetrics().handler());
+        httpServer.createContext("/export", server.getExport().handler());
 
         httpServer.createContext("/submit", (exchange -> {
             if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
@@ -501,9 +1511,29 @@ public class GroupChatServer extends WebSocketServer {
             }
         }));
 
-        httpServer.setExecutor(null);
+        ExecutorService httpPool = Executors.newFixedThreadPool(config.httpThreads, runnable -> {
+            Thread thread = new Thread(runnable, "chat-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(httpPool);
         httpServer.start();
         System.out.println("HTTP Server running on port " + (port + 1));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            httpServer.stop(0);
+            httpPool.shutdown();
+            try {
+                assets.close();
+            } catch (IOException e) {
+                System.err.println("Could not stop watching assets: " + e);
+            }
+            try {
+                server.stop(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
     }
 
     /**
@@ -511,10 +1541,10 @@ public class GroupChatServer extends WebSocketServer {
      * timestamp.
      */
     static class Message {
-        private int id;
-        private String content;
-        private String username; // Add username field
-        private long timestamp;
+        private final int id;
+        private volatile String content; // Read by other worker threads after an update
+        private final String username; // Add username field
+        private final long timestamp;
 
         /**
          * Constructs a new Message instance with the given ID, content, username, and
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * HeapBenchmark class floods a MessageStore with messages and samples the heap
+ * it takes, once with all history on the heap and once with a cold tier that
+ * keeps only a hot window there. Retention runs once a second on its own
+ * thread, as the server's maintenance thread does, so the samples include
+ * whatever the background task has not moved yet. Each sample is the heap
+ * used right after a full collection.
+ * <p>
+ * Cold messages stay in the search index, so the heap still grows with the
+ * history in cold mode, by the size of the postings.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.messages     messages sent in the flood (1000000)
+ *   bench.messageBytes size of each message (200)
+ *   bench.hotMessages  hot window of the cold mode (10000)
+ *   bench.samples      heap samples taken during the flood (10)
+ * </pre>
+ */
+public class HeapBenchmark {
+
+    private final int messages;
+    private final int messageBytes;
+    private final int hotMessages;
+    private final int samples;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    /**
+     * Constructs a new HeapBenchmark from the current system properties.
+     */
+    public HeapBenchmark() {
+        messages = Integer.getInteger("bench.messages", 1000000);
+        messageBytes = Integer.getInteger("bench.messageBytes", 200);
+        hotMessages = Integer.getInteger("bench.hotMessages", 10000);
+        samples = Integer.getInteger("bench.samples", 10);
+    }
+
+    /**
+     * Runs the flood in both modes and prints the heap samples side by side.
+     *
+     * @throws IOException If the cold tier file cannot be created.
+     * @throws InterruptedException If interrupted while waiting for retention.
+     */
+    public void run() throws IOException, InterruptedException {
+        long baseline = usedHeap();
+        long[] heapOnly = flood(null, baseline);
+        Path file = Files.createTempFile("chat-heap", ".dat");
+        ColdTier cold = new ColdTier(file);
+        long[] tiered = flood(cold, baseline);
+        long coldBytes = cold.getBytes();
+        cold.close();
+        Files.deleteIfExists(file);
+
+        System.out.printf("%10s  %14s  %18s%n", "messages", "all on heap", "hot window " + hotMessages);
+        for (int i = 0; i < samples; i++) {
+            System.out.printf("%10d  %11.1f MB  %15.1f MB%n", (long) messages * (i + 1) / samples,
+                    heapOnly[i] / 1e6, tiered[i] / 1e6);
+        }
+        System.out.printf("Cold tier file: %.1f MB off the heap%n", coldBytes / 1e6);
+    }
+
+    /**
+     * Sends the flood into a fresh store and samples the heap it holds.
+     *
+     * @param cold     The cold tier, or null to keep everything on the heap.
+     * @param baseline The heap used before any store existed.
+     * @return The heap held by the store at each sample, in bytes.
+     * @throws InterruptedException If interrupted while waiting for retention.
+     */
+    private long[] flood(ColdTier cold, long baseline) throws InterruptedException {
+        MessageStore store = new MessageStore();
+        if (cold != null) {
+            store.setColdTier(cold, hotMessages, 0);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        Thread retention = new Thread(() -> {
+            // Stopped with a flag, since an interrupt would close the cold tier's channel
+            while (!done.get()) {
+                store.enforceRetention();
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }, "heap-retention");
+        retention.setDaemon(true);
+        retention.start();
+
+        Random random = new Random(42);
+        char[] text = new char[messageBytes];
+        long[] heap = new long[samples];
+        int perSample = Math.max(1, messages / samples);
+        for (int id = 1; id <= messages; id++) {
+            for (int i = 0; i < text.length; i++) {
+                // Short words, so the search index sees a realistic number of terms
+                text[i] = i % 6 == 5 ? ' ' : (char) ('a' + random.nextInt(8));
+            }
+            store.add(new GroupChatServer.Message(id, new String(text), "user" + (id % 1000),
+                    System.currentTimeMillis()));
+            if (id % perSample == 0 && id / perSample <= samples) {
+                heap[id / perSample - 1] = usedHeap() - baseline;
+            }
+        }
+        done.set(true);
+        retention.join();
+        return heap;
+    }
+
+    /**
+     * Returns the heap in use after a full collection.
+     *
+     * @return The used heap in bytes.
+     */
+    private long usedHeap() {
+        System.gc();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new HeapBenchmark().run();
+    }
+}
@@ -0,0 +1,259 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * HistoryExport class serves a room's history over HTTP for audits and
+ * backups, without joining the room over WebSocket. A GET of
+ * /export?room=name streams every message as newline-delimited JSON, one
+ * message per line with the same fields as a history page, with chunked
+ * transfer encoding. "from" skips messages with a lower ID and "to" stops at
+ * the first message sent after that time, in milliseconds since the epoch.
+ * <p>
+ * The store is read one page at a time, so an export holds one page of
+ * messages however large the history is, and keeps messages from moving
+ * between tiers only while it reads a page. Writers are never blocked, and a
+ * slow client only holds up its own HTTP thread.
+ * <p>
+ * With format=log the room's write-ahead log is sent instead, as a single
+ * snapshot file that restores the room when put in an empty data directory.
+ * The log files are handed to the response with FileChannel.transferTo, so
+ * their bytes are never decoded.
+ */
+public class HistoryExport {
+
+    /**
+     * The number of messages read from the store at a time.
+     */
+    static final int PAGE_SIZE = 1000;
+
+    /**
+     * The bytes buffered before they are written out as a chunk.
+     */
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * Rooms interface finds the room an export asks for.
+     */
+    public interface Rooms {
+
+        /**
+         * Returns the room with the given name, opening it if it has history
+         * but is not open.
+         *
+         * @param name The room name.
+         * @return The room, or null if there is no such room.
+         * @throws IOException If the room's log cannot be recovered.
+         */
+        ChatRoom find(String name) throws IOException;
+    }
+
+    private final Rooms rooms;
+
+    /**
+     * The exports that may still start.
+     */
+    private final Semaphore slots;
+
+    /**
+     * Constructs a new HistoryExport.
+     *
+     * @param rooms         Finds the rooms to export.
+     * @param maxConcurrent The most exports that may run at once.
+     */
+    public HistoryExport(Rooms rooms, int maxConcurrent) {
+        this.rooms = rooms;
+        this.slots = new Semaphore(Math.max(1, maxConcurrent));
+    }
+
+    /**
+     * Returns a handler that answers export requests.
+     *
+     * @return The handler.
+     */
+    public HttpHandler handler() {
+        return this::handle;
+    }
+
+    /**
+     * Answers one export request.
+     *
+     * @param exchange The HTTP exchange.
+     * @throws IOException If the response cannot be written.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String roomName = query.getOrDefault("room", GroupChatServer.DEFAULT_ROOM);
+            boolean log = "log".equals(query.get("format"));
+            int fromId;
+            long toTime;
+            try {
+                fromId = Integer.parseInt(query.getOrDefault("from", "0"));
+                toTime = Long.parseLong(query.getOrDefault("to", String.valueOf(Long.MAX_VALUE)));
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "\"from\" must be a message ID and \"to\" a time in milliseconds");
+                return;
+            }
+            if (log && (query.containsKey("from") || query.containsKey("to"))) {
+                sendError(exchange, 400, "\"from\" and \"to\" only apply to the NDJSON export");
+                return;
+            }
+            ChatRoom room = rooms.find(roomName);
+            if (room == null) {
+                sendError(exchange, 404, "No such room");
+                return;
+            }
+            if (!slots.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                sendError(exchange, 503, "Too many exports running");
+                return;
+            }
+            try {
+                if (log) {
+                    sendLog(exchange, room);
+                } else {
+                    sendMessages(exchange, room, fromId, toTime);
+                }
+            } finally {
+                slots.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Streams a room's messages as newline-delimited JSON.
+     */
+    private void sendMessages(HttpExchange exchange, ChatRoom room, int fromId, long toTime) throws IOException {
+        long start = System.nanoTime();
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0); // A length of 0 means chunked
+        long count;
+        try (Writer out = new OutputStreamWriter(new BufferedOutputStream(exchange.getResponseBody(), BUFFER_BYTES),
+                StandardCharsets.UTF_8)) {
+            count = writeMessages(room.getMessages(), fromId, toTime, out);
+        } catch (IOException e) {
+            // Nearly always the client going away part way through
+            System.out.println("Export of room " + room.getName() + " aborted: " + e.getMessage());
+            return;
+        }
+        System.out.println("Exported " + count + " messages of room " + room.getName() + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Sends a copy of a room's log as one snapshot file.
+     */
+    private void sendLog(HttpExchange exchange, ChatRoom room) throws IOException {
+        try (MessageLog.Backup backup = room.openBackup()) {
+            if (backup == null) {
+                sendError(exchange, 404, "Persistence is off");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("Content-Disposition",
+                    "attachment; filename=\"" + room.getName() + ".snap\"");
+            exchange.sendResponseHeaders(200, backup.size());
+            try (OutputStream os = exchange.getResponseBody()) {
+                backup.transferTo(Channels.newChannel(os));
+            } catch (IOException e) {
+                System.out.println("Export of the log of room " + room.getName() + " aborted: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the messages of a store as newline-delimited JSON, oldest first,
+     * one page at a time.
+     *
+     * @param store  The store.
+     * @param fromId The lowest message ID written.
+     * @param toTime The latest timestamp written. Message IDs are handed out
+     *               in time order, so writing stops at the first later one.
+     * @param out    The writer to write to.
+     * @return The number of messages written.
+     * @throws IOException If the writer fails.
+     */
+    public static long writeMessages(MessageStore store, int fromId, long toTime, Writer out) throws IOException {
+        StringBuilder text = new StringBuilder(PAGE_SIZE * 128);
+        char[] chars = new char[0];
+        int afterId = fromId == Integer.MIN_VALUE ? fromId : fromId - 1;
+        long count = 0;
+        while (true) {
+            List<GroupChatServer.Message> page = store.getAfter(afterId, PAGE_SIZE);
+            text.setLength(0);
+            boolean done = page.size() < PAGE_SIZE;
+            for (GroupChatServer.Message message : page) {
+                if (message.getTimestamp() > toTime) {
+                    done = true;
+                    break;
+                }
+                JsonCodec.appendMessageLine(text, message);
+                afterId = message.getId();
+                count++;
+            }
+            // Copied out through one reused array rather than a String per page
+            if (chars.length < text.length()) {
+                chars = new char[text.capacity()];
+            }
+            text.getChars(0, text.length(), chars, 0);
+            out.write(chars, 0, text.length());
+            if (done) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * Answers with a plain text error.
+     */
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * Splits a URL query string into its decoded parameters.
+     *
+     * @param rawQuery The query, still encoded, or null.
+     * @return The parameters by name.
+     */
+    static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,207 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpBenchmark class loads the HTTP port with concurrent page requests. It
+ * starts two servers on free local ports: one answers the way the server used
+ * to, reading the file line by line on every request on HttpServer's single
+ * default thread, and one serves through StaticAssets on a thread pool. Every
+ * client thread requests the chat page in a loop over keep-alive connections.
+ * <p>
+ * It measures four cases: the old handler, the cached page sent plain, the
+ * cached page sent gzip-compressed, and a revalidation that the cache answers
+ * with 304. For each it reports requests per second, the median and 99th
+ * percentile latency, and the body bytes per response.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.threads      concurrent client threads (16)
+ *   bench.seconds      seconds measured per case (5)
+ *   bench.httpThreads  threads of the StaticAssets server (4)
+ *   bench.assets       directory holding chat.html (html)
+ * </pre>
+ */
+public class HttpBenchmark {
+
+    private final int threads;
+    private final int seconds;
+    private final int httpThreads;
+    private final String assets;
+
+    /**
+     * Constructs a new HttpBenchmark from the current system properties.
+     */
+    public HttpBenchmark() {
+        threads = Integer.getInteger("bench.threads", 16);
+        seconds = Integer.getInteger("bench.seconds", 5);
+        httpThreads = Integer.getInteger("bench.httpThreads", 4);
+        assets = System.getProperty("bench.assets", "html");
+    }
+
+    /**
+     * Starts both servers, runs every case and prints one row per case.
+     *
+     * @throws Exception If a server cannot be started or a request fails.
+     */
+    public void run() throws Exception {
+        // Without TCP_NODELAY small responses wait out the client's delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        HttpServer legacy = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        legacy.createContext("/chat", exchange -> {
+            String response = readFile(assets + "/chat.html");
+            exchange.sendResponseHeaders(200, response.getBytes().length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response.getBytes());
+            os.close();
+        });
+        legacy.setExecutor(null);
+        legacy.start();
+
+        StaticAssets staticAssets = new StaticAssets(Paths.get(assets));
+        ExecutorService pool = Executors.newFixedThreadPool(httpThreads);
+        HttpServer cached = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        cached.createContext("/chat", staticAssets.handler("chat.html"));
+        cached.setExecutor(pool);
+        cached.start();
+
+        try {
+            String legacyUrl = "http://127.0.0.1:" + legacy.getAddress().getPort() + "/chat";
+            String cachedUrl = "http://127.0.0.1:" + cached.getAddress().getPort() + "/chat";
+            String etag = new URL(cachedUrl).openConnection().getHeaderField("ETag");
+
+            System.out.printf("%-14s  %10s  %10s  %10s  %10s%n", "case", "req/s", "p50 us", "p99 us", "body B");
+            measure("readFile", legacyUrl, null, null);
+            measure("cached", cachedUrl, null, null);
+            measure("cached gzip", cachedUrl, "gzip", null);
+            measure("revalidate", cachedUrl, "gzip", etag);
+        } finally {
+            legacy.stop(0);
+            cached.stop(0);
+            pool.shutdown();
+            staticAssets.close();
+        }
+    }
+
+    /**
+     * Requests a URL from every client thread for the configured time and
+     * prints the results. The first second is a warm-up and is not counted.
+     *
+     * @param name           The case name.
+     * @param url            The URL to request.
+     * @param acceptEncoding The Accept-Encoding header to send, or null.
+     * @param etag           The If-None-Match header to send, or null.
+     * @throws Exception If a request fails.
+     */
+    private void measure(String name, String url, String acceptEncoding, String etag) throws Exception {
+        long warmUpEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        long end = warmUpEnd + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<>();
+        long[] bodyBytes = new long[1];
+        for (int t = 0; t < threads; t++) {
+            results.add(clients.submit(() -> {
+                long[] latencies = new long[1 << 16];
+                int count = 0;
+                byte[] buffer = new byte[8192];
+                while (true) {
+                    long start = System.nanoTime();
+                    if (start >= end) {
+                        break;
+                    }
+                    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                    if (acceptEncoding != null) {
+                        connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+                    }
+                    if (etag != null) {
+                        connection.setRequestProperty("If-None-Match", etag);
+                    }
+                    connection.getResponseCode();
+                    long bytes = 0;
+                    // Read the body to the end so the connection is kept alive
+                    try (InputStream in = connection.getInputStream()) {
+                        int read;
+                        while ((read = in.read(buffer)) > 0) {
+                            bytes += read;
+                        }
+                    }
+                    long finished = System.nanoTime();
+                    if (start >= warmUpEnd) {
+                        if (count == latencies.length) {
+                            latencies = Arrays.copyOf(latencies, count * 2);
+                        }
+                        latencies[count++] = finished - start;
+                        bodyBytes[0] = bytes;
+                    }
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+        List<long[]> all = new ArrayList<>();
+        int total = 0;
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            all.add(latencies);
+            total += latencies.length;
+        }
+        clients.shutdown();
+
+        long[] latencies = new long[total];
+        int offset = 0;
+        for (long[] part : all) {
+            System.arraycopy(part, 0, latencies, offset, part.length);
+            offset += part.length;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-14s  %10.0f  %10d  %10d  %10d%n", name, (double) total / seconds,
+                percentile(latencies, 0.50) / 1000, percentile(latencies, 0.99) / 1000, bodyBytes[0]);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    /**
+     * Reads a file line by line, the way the server used to for every page
+     * request.
+     *
+     * @param filename The filename.
+     * @return The file contents, without line breaks.
+     */
+    private static String readFile(String filename) {
+        StringBuilder content = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                content.append(line);
+            }
+        } catch (IOException e) {
+            System.err.println("File not found: " + filename);
+        }
+        return content.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new HttpBenchmark().run();
+    }
+}
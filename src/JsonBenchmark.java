@@ -0,0 +1,320 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntSupplier;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * JsonBenchmark class compares the JSON text frames built and parsed with
+ * org.json, the way the server used to, with JsonCodec, the way it does now.
+ * It measures decoding an "add" and an "update" from a client, and encoding a
+ * new message, an update event, a participant list and a page of history.
+ * For each it reports the throughput and the heap allocated per operation
+ * both ways.
+ * <p>
+ * Before timing anything it checks that both ways agree on every frame, and
+ * it exits with status 1 if they do not.
+ * <p>
+ * Allocation is read from the thread's allocation counter, so it counts what
+ * survives the JIT's escape analysis, which is what the collector sees.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.ops           operations timed per frame and parser (200000)
+ *   bench.messageBytes  size of each message (64)
+ *   bench.participants  usernames in the participant list (100)
+ * </pre>
+ */
+public class JsonBenchmark {
+
+    /**
+     * The number of messages in a page of history, as the server sends by
+     * default.
+     */
+    private static final int HISTORY_PAGE = 50;
+
+    private final int ops;
+    private final int messageBytes;
+    private final int participants;
+
+    /**
+     * Keeps the results of the timed operations from being optimized away.
+     */
+    private long sink;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * One measured operation, done with org.json and with JsonCodec.
+     */
+    private static final class Frame {
+        private final String name;
+        private final IntSupplier orgJson;
+        private final IntSupplier codec;
+
+        Frame(String name, IntSupplier orgJson, IntSupplier codec) {
+            this.name = name;
+            this.orgJson = orgJson;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Constructs a new JsonBenchmark from the current system properties.
+     */
+    public JsonBenchmark() {
+        ops = Integer.getInteger("bench.ops", 200000);
+        messageBytes = Integer.getInteger("bench.messageBytes", 64);
+        participants = Integer.getInteger("bench.participants", 100);
+    }
+
+    /**
+     * Runs every frame both ways and prints one row per frame.
+     *
+     * @return True if both ways agreed on every frame.
+     */
+    public boolean run() {
+        Random random = new Random(42);
+        GroupChatServer.Message message = new GroupChatServer.Message(1234567, text(random), "user42",
+                System.currentTimeMillis());
+        List<GroupChatServer.Message> page = new ArrayList<>();
+        for (int i = 0; i < HISTORY_PAGE; i++) {
+            page.add(new GroupChatServer.Message(1234567 + i, text(random), "user" + random.nextInt(1000),
+                    System.currentTimeMillis()));
+        }
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < participants; i++) {
+            names.add("user" + i);
+        }
+        String content = message.getContent();
+        String add = "{\"action\":\"add\",\"message\":\"" + content + "\",\"username\":\"user42\"}";
+        String update = "{\"action\":\"update\",\"id\":1234567,\"updatedMessage\":\"" + content
+                + "\",\"username\":\"user42\"}";
+
+        boolean agree = sameRequest(add) && sameRequest(update)
+                && sameJson(writeMessage(message), JsonCodec.encodeMessage(message, 0))
+                && sameJson(writeChange("update", 1234567, "user42", content),
+                        JsonCodec.encodeChange("update", 1234567, "user42", content, 0))
+                && sameJson(writeParticipants(9, names), JsonCodec.encodeParticipants(9, names))
+                && sameJson(writeHistory(page, true), JsonCodec.encodeHistory(page, true))
+                && sameRequest("{\"action\":\"add\",\"message\":\"tab\\there \\\"quoted\\\" \\u00e9 </b>\","
+                        + "\"username\":\"user42\",\"extra\":[1,{\"a\":\"}\"}]}")
+                && sameJson(writeChange("del", 1, "a\"b", "line\nbreak </script> " + (char) 0x2028),
+                        JsonCodec.encodeChange("del", 1, "a\"b", "line\nbreak </script> " + (char) 0x2028, 0));
+        if (!agree) {
+            return false;
+        }
+
+        List<Frame> frames = new ArrayList<>();
+        frames.add(new Frame("decode add", () -> decodeOrgJson(add).getMessage().length(),
+                () -> JsonCodec.decodeRequest(add).getMessage().length()));
+        frames.add(new Frame("decode update", () -> decodeOrgJson(update).getMessage().length(),
+                () -> JsonCodec.decodeRequest(update).getMessage().length()));
+        frames.add(new Frame("encode message", () -> writeMessage(message).length(),
+                () -> JsonCodec.encodeMessage(message, 0).length()));
+        frames.add(new Frame("encode update", () -> writeChange("update", 1234567, "user42", content).length(),
+                () -> JsonCodec.encodeChange("update", 1234567, "user42", content, 0).length()));
+        frames.add(new Frame("encode participants", () -> writeParticipants(9, names).length(),
+                () -> JsonCodec.encodeParticipants(9, names).length()));
+        frames.add(new Frame("encode history", () -> writeHistory(page, true).length(),
+                () -> JsonCodec.encodeHistory(page, true).length()));
+
+        System.out.printf("%-20s  %12s  %12s  %12s  %12s%n", "frame", "org.json op/s", "codec op/s",
+                "org.json B/op", "codec B/op");
+        for (Frame frame : frames) {
+            // The first pass of each warms up the JIT; only the second is reported
+            measure(frame.orgJson);
+            measure(frame.codec);
+            long[] before = measure(frame.orgJson);
+            long[] after = measure(frame.codec);
+            System.out.printf("%-20s  %12.0f  %12.0f  %12d  %12d%n", frame.name,
+                    ops * 1e9 / before[0], ops * 1e9 / after[0], before[1] / ops, after[1] / ops);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        return true;
+    }
+
+    /**
+     * Checks that both parsers decode a frame to the same request.
+     *
+     * @param frame The JSON text.
+     * @return True if they agree.
+     */
+    private static boolean sameRequest(String frame) {
+        ClientRequest expected = decodeOrgJson(frame);
+        ClientRequest actual = JsonCodec.decodeRequest(frame);
+        boolean same = expected.getAction().equals(actual.getAction())
+                && expected.getUsername().equals(actual.getUsername())
+                && expected.getMessage().equals(actual.getMessage())
+                && expected.getId() == actual.getId();
+        if (!same) {
+            System.out.println("Decoders disagree on " + frame);
+        }
+        return same;
+    }
+
+    /**
+     * Checks that both writers produce the same JSON, ignoring key order.
+     *
+     * @param expected The org.json text.
+     * @param actual   The JsonCodec text.
+     * @return True if they agree.
+     */
+    private static boolean sameJson(String expected, String actual) {
+        boolean same = new JSONObject(expected).similar(new JSONObject(actual));
+        if (!same) {
+            System.out.println("Encoders disagree:\n  " + expected + "\n  " + actual);
+        }
+        return same;
+    }
+
+    /**
+     * Decodes a client frame the way the server did with org.json.
+     *
+     * @param frame The JSON text.
+     * @return The decoded request.
+     */
+    private static ClientRequest decodeOrgJson(String frame) {
+        JSONObject jsonMessage = new JSONObject(frame);
+        String action = jsonMessage.optString("action");
+        String message = action.equals("update")
+                ? jsonMessage.optString("updatedMessage")
+                : jsonMessage.optString("message");
+        int id = 0;
+        String idStr = jsonMessage.optString("id");
+        if (!idStr.isEmpty()) {
+            try {
+                id = Integer.parseInt(idStr);
+            } catch (NumberFormatException e) {
+                id = 0;
+            }
+        }
+        return new ClientRequest(action, jsonMessage.optString("username"), message, id,
+                jsonMessage.has("room") ? jsonMessage.optString("room") : null,
+                jsonMessage.optInt("before", Integer.MAX_VALUE), jsonMessage.optInt("limit", 0),
+                jsonMessage.optString("query"), jsonMessage.optInt("offset", 0));
+    }
+
+    /**
+     * Writes a "message" event with org.json.
+     *
+     * @param message The message.
+     * @return The JSON text.
+     */
+    private static String writeMessage(GroupChatServer.Message message) {
+        JSONObject jsonMessage = new JSONObject();
+        jsonMessage.put("ID", message.getId());
+        jsonMessage.put("action", "message");
+        jsonMessage.put("message", message.getContent());
+        jsonMessage.put("timestamp", message.getTimestamp());
+        jsonMessage.put("username", message.getUsername());
+        return jsonMessage.toString();
+    }
+
+    /**
+     * Writes a "del" or "update" event with org.json.
+     *
+     * @param action   The action.
+     * @param id       The message ID.
+     * @param username The username.
+     * @param message  The message.
+     * @return The JSON text.
+     */
+    private static String writeChange(String action, int id, String username, String message) {
+        JSONObject jsonMessage = new JSONObject();
+        jsonMessage.put("action", action);
+        jsonMessage.put("message", message);
+        jsonMessage.put("username", username);
+        jsonMessage.put("id", id);
+        return jsonMessage.toString();
+    }
+
+    /**
+     * Writes a "participants" list with org.json.
+     *
+     * @param version      The membership version.
+     * @param participants The usernames.
+     * @return The JSON text.
+     */
+    private static String writeParticipants(int version, List<String> participants) {
+        JSONArray participantsArray = new JSONArray();
+        for (String participant : participants) {
+            participantsArray.put(participant);
+        }
+        JSONObject participantsObject = new JSONObject();
+        participantsObject.put("action", "participants");
+        participantsObject.put("participants", participantsArray);
+        participantsObject.put("version", version);
+        return participantsObject.toString();
+    }
+
+    /**
+     * Writes a page of history with org.json.
+     *
+     * @param page    The messages, oldest first.
+     * @param hasMore True if older messages exist.
+     * @return The JSON text.
+     */
+    private static String writeHistory(List<GroupChatServer.Message> page, boolean hasMore) {
+        JSONArray messagesArray = new JSONArray();
+        for (GroupChatServer.Message message : page) {
+            JSONObject messageObject = new JSONObject();
+            messageObject.put("ID", message.getId());
+            messageObject.put("message", message.getContent());
+            messageObject.put("timestamp", message.getTimestamp());
+            messageObject.put("username", message.getUsername());
+            messagesArray.put(messageObject);
+        }
+        JSONObject jsonMessage = new JSONObject();
+        jsonMessage.put("action", "history");
+        jsonMessage.put("messages", messagesArray);
+        jsonMessage.put("hasMore", hasMore);
+        return jsonMessage.toString();
+    }
+
+    /**
+     * Runs an operation and measures it.
+     *
+     * @param operation The operation.
+     * @return The elapsed nanoseconds and the bytes allocated over all runs.
+     */
+    private long[] measure(IntSupplier operation) {
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long total = 0;
+        for (int i = 0; i < ops; i++) {
+            total += operation.getAsInt();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += total;
+        return new long[] { elapsed, allocated };
+    }
+
+    /**
+     * Makes up the content of a message of the configured size, in short
+     * words like chat text.
+     *
+     * @param random The source of letters.
+     * @return The content.
+     */
+    private String text(Random random) {
+        char[] text = new char[messageBytes];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = i % 6 == 5 ? ' ' : (char) ('a' + random.nextInt(26));
+        }
+        return new String(text);
+    }
+
+    public static void main(String[] args) {
+        if (!new JsonBenchmark().run()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,762 @@
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * JsonCodec class reads and writes the JSON text frames without building a
+ * JSONObject tree. The server only ever receives flat objects with a handful
+ * of known fields and only ever sends a few fixed shapes, so a pull parser
+ * that picks those fields straight out of the frame, and writers that append
+ * each shape to a reused buffer, do the same job as org.json with a fraction
+ * of the garbage.
+ * <p>
+ * Each thread keeps its own parser and output buffer, so decoding an "add"
+ * allocates only the request and its strings, and encoding an event allocates
+ * only the resulting String. Fields the server does not know are skipped,
+ * whatever their type. Strings are escaped the same way org.json does, so the
+ * frames are byte-for-byte what the JSONObject based code produced, apart from
+ * key order.
+ */
+public final class JsonCodec {
+
+    /**
+     * The largest output buffer kept between frames. A thread that encodes a
+     * bigger frame, such as a full history page of long messages, gets a fresh
+     * buffer afterwards so one large frame does not pin memory for good.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /**
+     * The actions a client may send. Decoded actions are mapped to these
+     * constants so the common case allocates no String for the action.
+     */
+    private static final String[] ACTIONS = {
+            "add", "del", "update", "username", "getParticipants", "history", "search", "joinRoom", "leaveRoom"
+    };
+
+    private static final ThreadLocal<Parser> PARSER = ThreadLocal.withInitial(Parser::new);
+    private static final ThreadLocal<StringBuilder> OUTPUT = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Decodes a client frame.
+     *
+     * @param frame The JSON text of the frame.
+     * @return The decoded request.
+     * @throws IllegalArgumentException If the frame is not a JSON object.
+     */
+    public static ClientRequest decodeRequest(String frame) {
+        return PARSER.get().parse(frame);
+    }
+
+    /**
+     * Encodes a new chat message.
+     *
+     * @param message The message.
+     * @param seq     The room's event number, or 0 to leave it out.
+     * @return The JSON text.
+     */
+    public static String encodeMessage(GroupChatServer.Message message, long seq) {
+        StringBuilder out = begin();
+        out.append("{\"action\":\"message\",");
+        writeMessageFields(out, message);
+        writeSeq(out, seq);
+        out.append('}');
+        return finish(out);
+    }
+
+    /**
+     * Encodes a "del" or "update" event.
+     *
+     * @param action   The action, "del" or "update".
+     * @param id       The message ID.
+     * @param username The username.
+     * @param message  The new content for an update, or the notice for a delete.
+     * @param seq      The room's event number, or 0 to leave it out.
+     * @return The JSON text.
+     */
+    public static String encodeChange(String action, int id, String username, String message, long seq) {
+        StringBuilder out = begin();
+        out.append("{\"action\":");
+        quote(out, action);
+        out.append(",\"message\":");
+        quote(out, message);
+        out.append(",\"username\":");
+        quote(out, username);
+        out.append(",\"id\":").append(id);
+        writeSeq(out, seq);
+        out.append('}');
+        return finish(out);
+    }
+
+    /**
+     * Encodes a "join" or "left" presence delta.
+     *
+     * @param action   The action, "join" or "left".
+     * @param version  The membership version after the change.
+     * @param username The username that joined or left.
+     * @param message  The notice shown to users.
+     * @return The JSON text.
+     */
+    public static String encodePresence(String action, int version, String username, String message) {
+        StringBuilder out = begin();
+        out.append("{\"action\":");
+        quote(out, action);
+        out.append(",\"message\":");
+        quote(out, message);
+        out.append(",\"username\":");
+        quote(out, username);
+        out.append(",\"id\":12323,\"version\":").append(version).append('}');
+        return finish(out);
+    }
+
+    /**
+     * Encodes a message shown to a single user, such as an alert.
+     *
+     * @param action  The action.
+     * @param message The message.
+     * @return The JSON text.
+     */
+    public static String encodeNotice(String action, String message) {
+        StringBuilder out = begin();
+        out.append("{\"action\":");
+        quote(out, action);
+        out.append(",\"message\":");
+        quote(out, message);
+        out.append('}');
+        return finish(out);
+    }
+
+    /**
+     * Encodes a participant list.
+     *
+     * @param version      The membership version of the list.
+     * @param participants The usernames.
+     * @return The JSON text.
+     */
+    public static String encodeParticipants(int version, Collection<String> participants) {
+        StringBuilder out = begin();
+        out.append("{\"action\":\"participants\",\"participants\":[");
+        boolean first = true;
+        for (String participant : participants) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            quote(out, participant);
+        }
+        out.append("],\"version\":").append(version).append('}');
+        return finish(out);
+    }
+
+    /**
+     * Encodes a page of history.
+     *
+     * @param page    The messages, oldest first.
+     * @param hasMore True if older messages exist.
+     * @return The JSON text.
+     */
+    public static String encodeHistory(List<GroupChatServer.Message> page, boolean hasMore) {
+        StringBuilder out = begin();
+        out.append("{\"action\":\"history\",\"messages\":");
+        writeMessages(out, page);
+        out.append(",\"hasMore\":").append(hasMore).append('}');
+        return finish(out);
+    }
+
+    /**
+     * Encodes a page of search results.
+     *
+     * @param query     The search query.
+     * @param offset    The number of best hits skipped.
+     * @param total     The number of matching messages.
+     * @param maxOffset The largest offset that still returns hits.
+     * @param results   The messages, best hit first.
+     * @return The JSON text.
+     */
+    public static String encodeSearchResults(String query, int offset, int total, int maxOffset,
+                                             List<GroupChatServer.Message> results) {
+        StringBuilder out = begin();
+        out.append("{\"action\":\"searchResults\",\"query\":");
+        quote(out, query);
+        out.append(",\"offset\":").append(offset).append(",\"total\":").append(total)
+                .append(",\"maxOffset\":").append(maxOffset).append(",\"results\":");
+        writeMessages(out, results);
+        out.append('}');
+        return finish(out);
+    }
+
+    /**
+     * Encodes the confirmation that a user is now in a room.
+     *
+     * @param room    The room name.
+     * @param epoch   The epoch of the room's event numbers.
+     * @param seq     The number of the room's last event.
+     * @param resumed True if the missed events follow instead of history.
+     * @return The JSON text.
+     */
+    public static String encodeRoomJoined(String room, long epoch, long seq, boolean resumed) {
+        StringBuilder out = begin();
+        out.append("{\"action\":\"roomJoined\",\"room\":");
+        quote(out, room);
+        out.append(",\"epoch\":").append(epoch).append(",\"seq\":").append(seq)
+                .append(",\"resumed\":").append(resumed).append('}');
+        return finish(out);
+    }
+
+    /**
+     * Encodes several events as one batch frame.
+     *
+     * @param events The JSON text of each event, oldest first.
+     * @return The JSON text.
+     */
+    public static String encodeBatch(List<String> events) {
+        StringBuilder out = begin();
+        out.append("{\"action\":\"batch\",\"events\":[");
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(events.get(i));
+        }
+        out.append("]}");
+        return finish(out);
+    }
+
+    /**
+     * Appends a message as one line of newline-delimited JSON, with the same
+     * fields as in a history page. Unlike the other writers this appends to
+     * the caller's buffer, so a stream of lines needs no String per line.
+     *
+     * @param out     The buffer to append to.
+     * @param message The message.
+     */
+    public static void appendMessageLine(StringBuilder out, GroupChatServer.Message message) {
+        out.append('{');
+        writeMessageFields(out, message);
+        out.append("}\n");
+    }
+
+    /**
+     * Returns the calling thread's output buffer, emptied.
+     */
+    private static StringBuilder begin() {
+        StringBuilder out = OUTPUT.get();
+        out.setLength(0);
+        return out;
+    }
+
+    /**
+     * Turns the output buffer into the frame text, dropping the buffer if a
+     * large frame made it grow past the retained capacity.
+     */
+    private static String finish(StringBuilder out) {
+        String text = out.toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            OUTPUT.set(new StringBuilder(256));
+        }
+        return text;
+    }
+
+    /**
+     * Writes a JSON array of messages.
+     */
+    private static void writeMessages(StringBuilder out, List<GroupChatServer.Message> messages) {
+        out.append('[');
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append('{');
+            writeMessageFields(out, messages.get(i));
+            out.append('}');
+        }
+        out.append(']');
+    }
+
+    /**
+     * Writes the event number field, unless the event has none.
+     */
+    private static void writeSeq(StringBuilder out, long seq) {
+        if (seq > 0) {
+            out.append(",\"seq\":").append(seq);
+        }
+    }
+
+    /**
+     * Writes the fields of one message, without the surrounding braces.
+     */
+    private static void writeMessageFields(StringBuilder out, GroupChatServer.Message message) {
+        out.append("\"ID\":").append(message.getId()).append(",\"message\":");
+        quote(out, message.getContent());
+        out.append(",\"timestamp\":").append(message.getTimestamp()).append(",\"username\":");
+        quote(out, message.getUsername());
+    }
+
+    /**
+     * Writes a string as a quoted JSON string, escaped the same way as
+     * org.json's JSONObject.quote.
+     *
+     * @param out   The output buffer.
+     * @param value The string, or null for an empty string.
+     */
+    private static void quote(StringBuilder out, String value) {
+        out.append('"');
+        if (value == null) {
+            out.append('"');
+            return;
+        }
+        int length = value.length();
+        int start = 0;
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String escape = null;
+            switch (c) {
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        escape = "\\/";
+                    }
+                    break;
+                case '\b':
+                    escape = "\\b";
+                    break;
+                case '\t':
+                    escape = "\\t";
+                    break;
+                case '\n':
+                    escape = "\\n";
+                    break;
+                case '\f':
+                    escape = "\\f";
+                    break;
+                case '\r':
+                    escape = "\\r";
+                    break;
+                default:
+                    break;
+            }
+            boolean unicode = escape == null
+                    && (c < 0x20 || (c >= 0x80 && c < 0xA0) || (c >= 0x2000 && c < 0x2100));
+            if (escape != null || unicode) {
+                // Copy the run of plain characters before this one in one go
+                out.append(value, start, i);
+                if (escape != null) {
+                    out.append(escape);
+                } else {
+                    out.append("\\u");
+                    String hex = Integer.toHexString(c);
+                    for (int pad = hex.length(); pad < 4; pad++) {
+                        out.append('0');
+                    }
+                    out.append(hex);
+                }
+                start = i + 1;
+            }
+            previous = c;
+        }
+        out.append(value, start, length);
+        out.append('"');
+    }
+
+    /**
+     * Parser class pulls the known request fields out of one JSON object.
+     * Each thread reuses one instance; a parse resets every field first.
+     */
+    private static final class Parser {
+
+        /**
+         * Decodes strings that contain escapes.
+         */
+        private final StringBuilder scratch = new StringBuilder(64);
+
+        private String text;
+        private int pos;
+
+        /**
+         * The start and end of the last value read, and its kind: '"' for a
+         * string, 'n' for a number, 'b' for true or false, '0' for null and
+         * '{' for an object or array.
+         */
+        private int valueStart;
+        private int valueEnd;
+        private char valueKind;
+        private boolean valueEscaped;
+
+        ClientRequest parse(String frame) {
+            text = frame;
+            pos = 0;
+            String action = "";
+            String username = "";
+            String message = "";
+            String updatedMessage = "";
+            int id = 0;
+            String room = null;
+            int before = Integer.MAX_VALUE;
+            int limit = 0;
+            String query = "";
+            int offset = 0;
+            long epoch = 0;
+            long since = -1;
+            try {
+                skipWhitespace();
+                expect('{');
+                skipWhitespace();
+                if (peek() == '}') {
+                    pos++;
+                } else {
+                    while (true) {
+                        skipWhitespace();
+                        expect('"');
+                        int keyStart = pos;
+                        boolean keyEscaped = skipString();
+                        int keyEnd = pos - 1;
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                        readValue();
+                        // Keys with escapes are never one of ours in practice, so they are
+                        // skipped like unknown keys
+                        if (!keyEscaped) {
+                            switch (keyEnd - keyStart) {
+                                case 2:
+                                    if (keyIs(keyStart, "id")) {
+                                        id = idValue();
+                                    }
+                                    break;
+                                case 4:
+                                    if (keyIs(keyStart, "room")) {
+                                        room = valueKind == '0' ? "" : stringValue();
+                                    }
+                                    break;
+                                case 5:
+                                    if (keyIs(keyStart, "limit")) {
+                                        limit = intValue(0);
+                                    } else if (keyIs(keyStart, "query")) {
+                                        query = stringValue();
+                                    } else if (keyIs(keyStart, "epoch")) {
+                                        epoch = longValue(0);
+                                    } else if (keyIs(keyStart, "since")) {
+                                        since = longValue(-1);
+                                    }
+                                    break;
+                                case 6:
+                                    if (keyIs(keyStart, "action")) {
+                                        action = actionValue();
+                                    } else if (keyIs(keyStart, "before")) {
+                                        before = intValue(Integer.MAX_VALUE);
+                                    } else if (keyIs(keyStart, "offset")) {
+                                        offset = intValue(0);
+                                    }
+                                    break;
+                                case 7:
+                                    if (keyIs(keyStart, "message")) {
+                                        message = stringValue();
+                                    }
+                                    break;
+                                case 8:
+                                    if (keyIs(keyStart, "username")) {
+                                        username = stringValue();
+                                    }
+                                    break;
+                                case 14:
+                                    if (keyIs(keyStart, "updatedMessage")) {
+                                        updatedMessage = stringValue();
+                                    }
+                                    break;
+                                default:
+                                    break;
+                            }
+                        }
+                        skipWhitespace();
+                        char c = next();
+                        if (c == '}') {
+                            break;
+                        }
+                        if (c != ',') {
+                            throw new IllegalArgumentException("Expected ',' or '}' at " + (pos - 1));
+                        }
+                    }
+                }
+                skipWhitespace();
+                if (pos != text.length()) {
+                    throw new IllegalArgumentException("Trailing characters at " + pos);
+                }
+            } finally {
+                text = null; // Do not keep the frame alive until the next one
+            }
+            // Edits carry their new text in a field of their own
+            return new ClientRequest(action, username, action.equals("update") ? updatedMessage : message, id,
+                    room, before, limit, query, offset, epoch, since);
+        }
+
+        private char peek() {
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("Unexpected end of frame");
+            }
+            return text.charAt(pos);
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char expected) {
+            if (next() != expected) {
+                throw new IllegalArgumentException("Expected '" + expected + "' at " + (pos - 1));
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        /**
+         * Moves past a string whose opening quote was already read.
+         *
+         * @return True if the string contains escapes.
+         */
+        private boolean skipString() {
+            boolean escaped = false;
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return escaped;
+                }
+                if (c == '\\') {
+                    escaped = true;
+                    next();
+                }
+            }
+        }
+
+        /**
+         * Reads the next value and records where it is, skipping over nested
+         * objects and arrays.
+         */
+        private void readValue() {
+            char c = peek();
+            if (c == '"') {
+                pos++;
+                valueStart = pos;
+                valueEscaped = skipString();
+                valueEnd = pos - 1;
+                valueKind = '"';
+                return;
+            }
+            valueStart = pos;
+            if (c == '{' || c == '[') {
+                skipNested();
+                valueKind = '{';
+            } else if (text.startsWith("true", pos) || text.startsWith("false", pos)) {
+                pos += c == 't' ? 4 : 5;
+                valueKind = 'b';
+            } else if (text.startsWith("null", pos)) {
+                pos += 4;
+                valueKind = '0';
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                while (pos < text.length() && "+-.eE0123456789".indexOf(text.charAt(pos)) >= 0) {
+                    pos++;
+                }
+                valueKind = 'n';
+            } else {
+                throw new IllegalArgumentException("Unexpected '" + c + "' at " + pos);
+            }
+            valueEnd = pos;
+        }
+
+        /**
+         * Moves past an object or array, including everything nested in it.
+         */
+        private void skipNested() {
+            int depth = 0;
+            do {
+                char c = next();
+                if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        }
+
+        private boolean keyIs(int keyStart, String name) {
+            return text.regionMatches(keyStart, name, 0, name.length());
+        }
+
+        /**
+         * Returns the last value as a string the way optString would: the
+         * text of a string, the literal of a number or boolean, and an empty
+         * string for null.
+         */
+        private String stringValue() {
+            if (valueKind == '0') {
+                return "";
+            }
+            if (valueKind != '"' || !valueEscaped) {
+                return text.substring(valueStart, valueEnd);
+            }
+            scratch.setLength(0);
+            for (int i = valueStart; i < valueEnd; i++) {
+                char c = text.charAt(i);
+                if (c != '\\') {
+                    scratch.append(c);
+                    continue;
+                }
+                c = text.charAt(++i);
+                switch (c) {
+                    case 'b':
+                        scratch.append('\b');
+                        break;
+                    case 't':
+                        scratch.append('\t');
+                        break;
+                    case 'n':
+                        scratch.append('\n');
+                        break;
+                    case 'f':
+                        scratch.append('\f');
+                        break;
+                    case 'r':
+                        scratch.append('\r');
+                        break;
+                    case 'u':
+                        if (i + 4 >= valueEnd) {
+                            throw new IllegalArgumentException("Malformed escape at " + i);
+                        }
+                        try {
+                            scratch.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Malformed escape at " + i, e);
+                        }
+                        i += 4;
+                        break;
+                    default:
+                        scratch.append(c); // \" \\ \/
+                        break;
+                }
+            }
+            String value = scratch.toString();
+            if (scratch.capacity() > MAX_RETAINED_CAPACITY) {
+                scratch.setLength(0);
+                scratch.trimToSize();
+            }
+            return value;
+        }
+
+        /**
+         * Returns the last value as one of the known action constants, or as a
+         * new string if it is not one of them.
+         */
+        private String actionValue() {
+            if (valueKind == '"' && !valueEscaped) {
+                int length = valueEnd - valueStart;
+                for (String action : ACTIONS) {
+                    if (action.length() == length && text.regionMatches(valueStart, action, 0, length)) {
+                        return action;
+                    }
+                }
+            }
+            return stringValue();
+        }
+
+        /**
+         * Returns the last value as an int the way optInt would: numbers and
+         * numeric strings are converted, anything else gives the default.
+         */
+        private int intValue(int defaultValue) {
+            if (valueKind == 'n') {
+                int value = parseInt(valueStart, valueEnd);
+                if (value != Integer.MIN_VALUE) {
+                    return value;
+                }
+                return toInt(text.substring(valueStart, valueEnd), defaultValue);
+            }
+            if (valueKind == '"') {
+                return toInt(stringValue().trim(), defaultValue);
+            }
+            return defaultValue;
+        }
+
+        /**
+         * Returns the last value as a long: numbers and numeric strings are
+         * converted, anything else gives the default.
+         */
+        private long longValue(long defaultValue) {
+            if (valueKind != 'n' && valueKind != '"') {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(stringValue().trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        /**
+         * Returns the last value as a message ID. Clients send it as a number
+         * or as a string of digits; anything else is logged and gives 0.
+         */
+        private int idValue() {
+            String value = stringValue();
+            if (value.isEmpty()) {
+                return 0;
+            }
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                // Handle invalid message ID format
+                System.out.println("Invalid message ID format: " + value);
+                return 0;
+            }
+        }
+
+        /**
+         * Parses a plain decimal int in place.
+         *
+         * @return The value, or Integer.MIN_VALUE if the text is not a plain
+         *         int that fits.
+         */
+        private int parseInt(int start, int end) {
+            boolean negative = text.charAt(start) == '-';
+            int i = negative ? start + 1 : start;
+            if (i == end || end - i > 9) {
+                return Integer.MIN_VALUE; // Longer numbers take the slow path
+            }
+            int value = 0;
+            for (; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') {
+                    return Integer.MIN_VALUE;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return negative ? -value : value;
+        }
+
+        private static int toInt(String number, int defaultValue) {
+            try {
+                return (int) Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+    }
+}
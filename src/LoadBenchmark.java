@@ -0,0 +1,678 @@
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * LoadBenchmark class starts a GroupChatServer in-process and drives it with
+ * many simulated WebSocket clients over loopback. A driver thread sends a
+ * fixed rate of operations, each one from a random client and drawn from a
+ * configurable mix of room joins, adds, edits, deletes and participant
+ * queries, so the load does not slow down when the server does.
+ * <p>
+ * Every added message carries the time it was sent. Every client that
+ * receives it records the time from publish to receive, so the latency covers
+ * parsing, the room executor, fan-out, the outbound queues and the socket.
+ * After a warm-up it reports the p50, p99 and p99.9 latency, the operations
+ * sent per second and the messages delivered per second.
+ * <p>
+ * The server uses its normal settings, except that persistence is off and
+ * the data directory is a temporary one unless the matching "chat."
+ * properties are given. Other "chat." properties pass through, so for
+ * example -Dchat.batch.windowMillis=10 measures batched broadcasts.
+ * <p>
+ * With more than one node it starts that many servers, connected by a
+ * {@link TcpEventBus} over loopback, and spreads the clients over them in
+ * turn, so most deliveries cross from one node to another.
+ * <p>
+ * With bench.sweep it runs the load once for each of the given client
+ * counts against the same servers, and ends with a table of the messages
+ * delivered per second and the latency at each count, which shows how
+ * broadcast fan-out scales with the size of the rooms.
+ * <p>
+ * With bench.roomSweep it instead runs the load once for each of the given
+ * room counts, with bench.clientsPerRoom clients pinned to each room and
+ * bench.roomRate operations per second sent to each room. Rooms run on the
+ * shared pool of chat.room.threads threads, so the table it ends with shows
+ * how throughput scales with the number of rooms over the cores.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.clients        simulated clients (1000)
+ *   bench.nodes          servers in the cluster (1)
+ *   bench.rooms          rooms the clients move between (4)
+ *   bench.rate           operations sent per second over all clients (2000)
+ *   bench.seconds        seconds measured (30)
+ *   bench.warmupSeconds  seconds run before measuring (5)
+ *   bench.messageBytes   size of each message (64)
+ *   bench.mix            operation weights (add=70,update=10,del=5,participants=10,join=5)
+ *   bench.compression    whether clients offer permessage-deflate (false)
+ *   bench.sweep          client counts to run one after another, such as
+ *                        10,100,1000, instead of bench.clients
+ *   bench.roomSweep      room counts to run one after another, such as
+ *                        1,2,4,8, with the clients pinned to their rooms
+ *   bench.clientsPerRoom clients in each room of a room sweep (50)
+ *   bench.roomRate       operations sent per second to each room of a room
+ *                        sweep (500)
+ * </pre>
+ */
+public class LoadBenchmark {
+
+    /**
+     * Marks the content of messages sent by this benchmark; the send time
+     * follows it.
+     */
+    private static final String STAMP = "t=";
+
+    /**
+     * The number of own message IDs a client remembers for edits and deletes.
+     */
+    private static final int OWN_IDS = 16;
+
+    private final int[] clientCounts;
+    private final int[] roomCounts;
+    private final int clientsPerRoom;
+    private final int roomRate;
+    private final int nodeCount;
+    private final int roomCount;
+    private final int rate;
+    private final int seconds;
+    private final int warmupSeconds;
+    private final int messageBytes;
+    private final boolean compression;
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private final int totalWeight;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private volatile boolean measuring;
+
+    /**
+     * True while the clients stay in the rooms they were put in, so joins in
+     * the mix are skipped.
+     */
+    private volatile boolean pinned;
+
+    /**
+     * The number of clients connected so far, so every client gets a
+     * username of its own even across the runs of a sweep.
+     */
+    private int connectedClients;
+
+    /**
+     * LatencyHistogram class records latencies into log-linear buckets: 16
+     * linear buckets per power of two, so every value is kept to within about
+     * 6%. Recording is a single lock-free increment.
+     */
+    private static final class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(1, nanos)));
+        }
+
+        private static int index(long value) {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent < 4) {
+                return (int) value; // Small values get a bucket each
+            }
+            int sub = (int) ((value >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+            return exponent * SUB_BUCKETS + sub;
+        }
+
+        private static long lowerBound(int index) {
+            int exponent = index / SUB_BUCKETS;
+            if (exponent < 4) {
+                return index;
+            }
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 4);
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        long percentile(double fraction) {
+            long total = count();
+            long target = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target && seen > 0) {
+                    return lowerBound(i);
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * SimulatedClient class is one chat user on its own WebSocket connection.
+     */
+    private final class SimulatedClient extends WebSocketClient {
+        private final String username;
+
+        /**
+         * The IDs of this client's own messages, newest last. Guarded by the
+         * deque's monitor, since the receive thread adds and the driver takes.
+         */
+        private final ArrayDeque<Integer> ownIds = new ArrayDeque<>();
+
+        SimulatedClient(URI uri, String username) {
+            super(uri, compression ? new DeflateDraft(new PerMessageDeflate(
+                    Integer.getInteger("chat.compression.thresholdBytes", 256), 6)) : new Draft_6455());
+            this.username = username;
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            send("{\"action\":\"username\",\"username\":\"" + username + "\"}");
+        }
+
+        @Override
+        public void onMessage(String frame) {
+            long received = System.nanoTime();
+            if (frame.startsWith("{\"action\":\"batch\"")) {
+                forEachBatchedEvent(frame, event -> onEvent(event, received));
+            } else {
+                onEvent(frame, received);
+            }
+        }
+
+        /**
+         * Handles one event, received on its own or in a batch.
+         *
+         * @param frame    The JSON text of the event.
+         * @param received When the frame holding it arrived.
+         */
+        private void onEvent(String frame, long received) {
+            // Server events have the same flat shape as client requests
+            ClientRequest event = JsonCodec.decodeRequest(frame);
+            if (!event.getAction().equals("message")) {
+                return;
+            }
+            String content = event.getMessage();
+            if (content.startsWith(STAMP)) {
+                int end = content.indexOf(' ');
+                long sentAt = Long.parseLong(content.substring(STAMP.length(), end < 0 ? content.length() : end));
+                if (measuring) {
+                    latency.record(received - sentAt);
+                    delivered.increment();
+                }
+            }
+            if (event.getUsername().equals(username)) {
+                rememberOwnMessage(frame);
+            }
+        }
+
+        /**
+         * Keeps the ID of a message this client sent, read from the "ID" field
+         * the request decoder does not know.
+         */
+        private void rememberOwnMessage(String frame) {
+            int start = frame.indexOf("\"ID\":");
+            if (start < 0) {
+                return;
+            }
+            start += 5;
+            int end = start;
+            while (end < frame.length() && Character.isDigit(frame.charAt(end))) {
+                end++;
+            }
+            int id = Integer.parseInt(frame.substring(start, end));
+            synchronized (ownIds) {
+                if (ownIds.size() == OWN_IDS) {
+                    ownIds.pollFirst();
+                }
+                ownIds.addLast(id);
+            }
+        }
+
+        /**
+         * Returns one of this client's message IDs.
+         *
+         * @param remove True to forget it, as for a delete.
+         * @return The ID, or null if the client has none.
+         */
+        Integer ownId(boolean remove) {
+            synchronized (ownIds) {
+                return remove ? ownIds.pollLast() : ownIds.peekLast();
+            }
+        }
+
+        /**
+         * Forgets this client's message IDs.
+         */
+        void forgetOwnIds() {
+            synchronized (ownIds) {
+                ownIds.clear();
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+
+    /**
+     * Splits a batch frame into its events.
+     *
+     * @param frame  The JSON text of the batch.
+     * @param action Called with the JSON text of each event, oldest first.
+     */
+    private static void forEachBatchedEvent(String frame, Consumer<String> action) {
+        int start = frame.indexOf('[') + 1;
+        int depth = 0;
+        boolean inString = false;
+        for (int i = start; i < frame.length(); i++) {
+            char c = frame.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                if (depth++ == 0) {
+                    start = i;
+                }
+            } else if (c == '}' && --depth == 0) {
+                action.accept(frame.substring(start, i + 1));
+            }
+        }
+    }
+
+    /**
+     * Constructs a new LoadBenchmark from the current system properties.
+     */
+    public LoadBenchmark() {
+        String sweep = System.getProperty("bench.sweep", "").trim();
+        clientCounts = sweep.isEmpty() ? new int[] {Integer.getInteger("bench.clients", 1000)}
+                : Arrays.stream(sweep.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+        String roomSweep = System.getProperty("bench.roomSweep", "").trim();
+        roomCounts = roomSweep.isEmpty() ? new int[0]
+                : Arrays.stream(roomSweep.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+        clientsPerRoom = Integer.getInteger("bench.clientsPerRoom", 50);
+        roomRate = Integer.getInteger("bench.roomRate", 500);
+        nodeCount = Math.max(1, Integer.getInteger("bench.nodes", 1));
+        roomCount = Integer.getInteger("bench.rooms", 4);
+        rate = Integer.getInteger("bench.rate", 2000);
+        seconds = Integer.getInteger("bench.seconds", 30);
+        warmupSeconds = Integer.getInteger("bench.warmupSeconds", 5);
+        messageBytes = Integer.getInteger("bench.messageBytes", 64);
+        compression = Boolean.getBoolean("bench.compression");
+        for (String weight : System.getProperty("bench.mix", "add=70,update=10,del=5,participants=10,join=5")
+                .split(",")) {
+            String[] parts = weight.trim().split("=");
+            mix.put(parts[0], Integer.parseInt(parts[1]));
+        }
+        totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Starts the server, then for each client or room count connects the
+     * clients, runs the load and prints the results.
+     *
+     * @throws Exception If the server cannot be started or a client cannot
+     *                   connect.
+     */
+    public void run() throws Exception {
+        Path dataDirectory = Files.createTempDirectory("chat-load");
+        if (System.getProperty("chat.persistence") == null) {
+            System.setProperty("chat.persistence", "false");
+        }
+        String dataRoot = System.getProperty("chat.data.dir", dataDirectory.toString());
+        int[] ports = freePorts(nodeCount);
+        int[] busPorts = freePorts(nodeCount);
+        List<GroupChatServer> servers = new ArrayList<>();
+        List<URI> uris = new ArrayList<>();
+        int roomThreads = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            // Each node reads its own share of the IDs and its own directory
+            System.setProperty("chat.data.dir", nodeCount == 1 ? dataRoot : dataRoot + "/node" + node);
+            System.setProperty("chat.node.index", Integer.toString(node));
+            System.setProperty("chat.node.count", Integer.toString(nodeCount));
+            System.setProperty("chat.node.id", "node" + node);
+            ServerConfig config = new ServerConfig();
+            roomThreads = config.roomThreads;
+            EventBus bus = null;
+            if (nodeCount > 1) {
+                List<InetSocketAddress> peers = new ArrayList<>();
+                for (int peer = 0; peer < nodeCount; peer++) {
+                    if (peer != node) {
+                        peers.add(new InetSocketAddress("127.0.0.1", busPorts[peer]));
+                    }
+                }
+                bus = new TcpEventBus(config.nodeId, new InetSocketAddress("127.0.0.1", busPorts[node]), peers,
+                        config.busQueueCapacity, config.busSecret);
+            }
+            GroupChatServer server = new GroupChatServer(new InetSocketAddress("127.0.0.1", ports[node]), config, bus);
+            server.setReuseAddr(true);
+            server.start();
+            awaitListening(ports[node]);
+            servers.add(server);
+            uris.add(new URI("ws://127.0.0.1:" + ports[node]));
+        }
+
+        if (roomCounts.length > 0) {
+            sweepRooms(uris, roomThreads);
+            for (GroupChatServer server : servers) {
+                server.stop(1000);
+            }
+            return;
+        }
+
+        List<String> rows = new ArrayList<>();
+        for (int clientCount : clientCounts) {
+            List<SimulatedClient> clients = connect(uris, clientCount);
+            System.out.printf("Connected %d clients in %d rooms on %d nodes%n", clients.size(), roomCount, nodeCount);
+            rows.add(measure(clients, rate));
+            for (SimulatedClient client : clients) {
+                client.closeBlocking();
+            }
+        }
+        if (clientCounts.length > 1) {
+            System.out.printf("%n%8s  %10s  %16s  %10s  %10s%n", "clients", "ops/s", "delivered msgs/s", "p50 ms",
+                    "p99 ms");
+            for (String row : rows) {
+                System.out.println(row);
+            }
+        }
+
+        for (GroupChatServer server : servers) {
+            server.stop(1000);
+        }
+    }
+
+    /**
+     * Runs the load once per room count, with the same number of clients
+     * pinned to each room and the same rate sent to each, and prints a table
+     * of the results.
+     *
+     * @param uris        The URIs of the nodes.
+     * @param roomThreads The threads the rooms of a node share.
+     * @throws Exception If a client cannot connect.
+     */
+    private void sweepRooms(List<URI> uris, int roomThreads) throws Exception {
+        pinned = true;
+        List<String> rows = new ArrayList<>();
+        for (int rooms : roomCounts) {
+            List<SimulatedClient> clients = connect(uris, rooms * clientsPerRoom);
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).send("{\"action\":\"joinRoom\",\"room\":\"" + roomName(i % rooms) + "\"}");
+            }
+            System.out.printf("Connected %d clients in %d rooms on %d nodes%n", clients.size(), rooms, nodeCount);
+            rows.add(String.format("%6d  %12d  %5d", rooms, roomThreads, Runtime.getRuntime().availableProcessors())
+                    + measure(clients, rooms * roomRate));
+            for (SimulatedClient client : clients) {
+                client.closeBlocking();
+            }
+        }
+        pinned = false;
+        System.out.printf("%n%6s  %12s  %5s%8s  %10s  %16s  %10s  %10s%n", "rooms", "room threads", "cores",
+                "clients", "ops/s", "delivered msgs/s", "p50 ms", "p99 ms");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    /**
+     * Returns the name of one of the benchmark's rooms.
+     *
+     * @param room The room number, 0 for the default room.
+     * @return The room name.
+     */
+    private static String roomName(int room) {
+        return room == 0 ? GroupChatServer.DEFAULT_ROOM : "load" + room;
+    }
+
+    /**
+     * Runs the load with the given clients and prints the results.
+     *
+     * @param clients The connected clients.
+     * @param rate    The operations sent per second over all clients.
+     * @return The results as a row of the sweep table.
+     * @throws InterruptedException If interrupted while pacing the load.
+     */
+    private String measure(List<SimulatedClient> clients, int rate) throws InterruptedException {
+        Random random = new Random(42);
+        String padding = padding(random);
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        double perTick = rate / 1000.0;
+        double owed = 0;
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+        long measuredSent = 0;
+        long next = start;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (now < next) {
+                TimeUnit.NANOSECONDS.sleep(next - now);
+                continue;
+            }
+            if (!measuring && now >= measureStart) {
+                latency.reset();
+                delivered.reset();
+                measuredSent = sent.sum();
+                measuring = true;
+            }
+            // Open loop: operations owed for this tick are sent even if the server is behind
+            owed += perTick;
+            for (; owed >= 1; owed--) {
+                operate(clients.get(random.nextInt(clients.size())), random, padding);
+            }
+            next += tickNanos;
+        }
+        long operations = sent.sum() - measuredSent;
+        // Give messages still in flight a moment to arrive before reading the results
+        Thread.sleep(500);
+        measuring = false;
+
+        System.out.printf("Sent %.0f ops/s, delivered %.0f messages/s%n", (double) operations / seconds,
+                (double) delivered.sum() / seconds);
+        System.out.printf("Publish-to-receive latency over %d deliveries: p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms%n",
+                latency.count(), latency.percentile(0.50) / 1e6, latency.percentile(0.99) / 1e6,
+                latency.percentile(0.999) / 1e6);
+        return String.format("%8d  %10.0f  %16.0f  %10.2f  %10.2f", clients.size(), (double) operations / seconds,
+                (double) delivered.sum() / seconds, latency.percentile(0.50) / 1e6, latency.percentile(0.99) / 1e6);
+    }
+
+    /**
+     * Waits until a server started on its own thread accepts connections, so
+     * the first clients are not refused.
+     *
+     * @param port The port.
+     * @throws IOException If nothing listens on the port within ten seconds.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void awaitListening(int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Server on port " + port + " did not start", e);
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Finds local ports that are free right now.
+     *
+     * @param count The number of ports.
+     * @return The ports.
+     * @throws IOException If no port can be opened.
+     */
+    private static int[] freePorts(int count) throws IOException {
+        int[] ports = new int[count];
+        List<ServerSocket> probes = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                // Held open together, so the same port is not handed out twice
+                ServerSocket probe = new ServerSocket(0);
+                probes.add(probe);
+                ports[i] = probe.getLocalPort();
+            }
+        } finally {
+            for (ServerSocket probe : probes) {
+                probe.close();
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * Connects every client, each to the next node in turn, and waits until
+     * each has joined.
+     *
+     * @param uris        The URIs of the nodes.
+     * @param clientCount The number of clients.
+     * @return The connected clients.
+     * @throws Exception If a client cannot connect.
+     */
+    private List<SimulatedClient> connect(List<URI> uris, int clientCount) throws Exception {
+        ExecutorService connector = Executors.newFixedThreadPool(32);
+        List<Future<SimulatedClient>> pending = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            String username = "load" + (connectedClients + i);
+            URI uri = uris.get(i % uris.size());
+            pending.add(connector.submit(() -> {
+                SimulatedClient client = new SimulatedClient(uri, username);
+                if (!client.connectBlocking()) {
+                    throw new IOException("Could not connect " + username);
+                }
+                return client;
+            }));
+        }
+        List<SimulatedClient> clients = new ArrayList<>(clientCount);
+        for (Future<SimulatedClient> client : pending) {
+            clients.add(client.get());
+        }
+        connector.shutdown();
+        connectedClients += clientCount;
+        return clients;
+    }
+
+    /**
+     * Sends one operation drawn from the mix.
+     *
+     * @param client  The client that sends it.
+     * @param random  The source of randomness.
+     * @param padding Text that brings messages up to the configured size.
+     */
+    private void operate(SimulatedClient client, Random random, String padding) {
+        int pick = random.nextInt(totalWeight);
+        String operation = null;
+        for (Map.Entry<String, Integer> weight : mix.entrySet()) {
+            pick -= weight.getValue();
+            if (pick < 0) {
+                operation = weight.getKey();
+                break;
+            }
+        }
+        String frame;
+        Integer id;
+        switch (operation) {
+            case "add":
+                frame = "{\"action\":\"add\",\"username\":\"" + client.username + "\",\"message\":\"" + STAMP
+                        + System.nanoTime() + " " + padding + "\"}";
+                break;
+            case "update":
+                id = client.ownId(false);
+                if (id == null) {
+                    return;
+                }
+                frame = "{\"action\":\"update\",\"id\":" + id + ",\"username\":\"" + client.username
+                        + "\",\"updatedMessage\":\"edited " + padding + "\"}";
+                break;
+            case "del":
+                id = client.ownId(true);
+                if (id == null) {
+                    return;
+                }
+                frame = "{\"action\":\"del\",\"id\":" + id + ",\"username\":\"" + client.username + "\"}";
+                break;
+            case "participants":
+                frame = "{\"action\":\"getParticipants\"}";
+                break;
+            case "join":
+                if (pinned) {
+                    return;
+                }
+                // Message IDs are per room, so the old room's IDs mean nothing in the new one
+                client.forgetOwnIds();
+                frame = "{\"action\":\"joinRoom\",\"room\":\"" + roomName(random.nextInt(roomCount)) + "\"}";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation in bench.mix: " + operation);
+        }
+        if (client.isOpen()) {
+            client.send(frame);
+            sent.increment();
+        }
+    }
+
+    /**
+     * Makes up filler text in short words like chat text.
+     *
+     * @param random The source of letters.
+     * @return The filler.
+     */
+    private String padding(Random random) {
+        // The stamp takes about 18 characters of the message
+        char[] text = new char[Math.max(0, messageBytes - 18)];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = i % 6 == 5 ? ' ' : (char) ('a' + random.nextInt(26));
+        }
+        return new String(text);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadBenchmark().run();
+        System.exit(0); // The client threads are not daemons
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.util.function.IntSupplier;
+
+/**
+ * LogCompactor class periodically folds the message log into a snapshot of
+ * the live messages. Repeated updates and deletes of the same message then no
+ * longer make the log, and with it the recovery time, grow without bound.
+ * Compaction runs on its own thread and never blocks senders: the log is
+ * rolled, the store is read through its weakly consistent view, and the
+ * snapshot is written off to the side before the obsolete segments go away.
+ */
+public class LogCompactor implements Runnable {
+
+    private final MessageLog log;
+    private final MessageStore store;
+    private final IntSupplier lastId;
+    private final long minBytes;
+
+    private volatile long lastCompactionMillis;
+    private volatile long compactions;
+
+    /**
+     * Constructs a new LogCompactor.
+     *
+     * @param log      The message log to compact.
+     * @param store    The store holding the live messages.
+     * @param lastId   Supplies the last message ID handed out.
+     * @param minBytes The number of log bytes since the last snapshot that
+     *                 triggers a compaction.
+     */
+    public LogCompactor(MessageLog log, MessageStore store, IntSupplier lastId, long minBytes) {
+        this.log = log;
+        this.store = store;
+        this.lastId = lastId;
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * Compacts the log if enough has been written since the last snapshot.
+     */
+    @Override
+    public void run() {
+        if (log.getBytesSinceSnapshot() < minBytes) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            System.err.println("Log compaction failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the live messages and deletes the log segments it
+     * replaces.
+     *
+     * @throws IOException If the log cannot be rolled or the snapshot written.
+     */
+    public void compact() throws IOException {
+        long start = System.nanoTime();
+        long firstSegment = log.roll();
+        // Read after the roll, so the snapshot holds at least every change in the
+        // older segments
+        int snapshotLastId = lastId.getAsInt();
+        int deleted;
+        store.pauseRetention();
+        try {
+            deleted = log.writeSnapshot(firstSegment, snapshotLastId, store.values());
+        } finally {
+            store.resumeRetention();
+        }
+        lastCompactionMillis = (System.nanoTime() - start) / 1_000_000;
+        compactions++;
+        System.out.println("Compacted message log into a snapshot of " + store.size() + " messages in "
+                + lastCompactionMillis + " ms, deleted " + deleted + " segments");
+    }
+
+    /**
+     * Returns how long the last compaction took.
+     *
+     * @return The compaction time in milliseconds.
+     */
+    public long getLastCompactionMillis() {
+        return lastCompactionMillis;
+    }
+
+    /**
+     * Returns the number of compactions run since startup.
+     *
+     * @return The number of compactions.
+     */
+    public long getCompactions() {
+        return compactions;
+    }
+}
@@ -0,0 +1,838 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * MessageLog class is an append-only, segmented write-ahead log of message
+ * events. Appends only encode the event and queue it; a single writer thread
+ * writes everything queued so far in one batch (group commit) and forces it
+ * to disk at most once per fsync interval, so no broadcast ever waits on an
+ * fsync.
+ * <p>
+ * Every record is laid out as length, CRC32, type, message ID, timestamp,
+ * username and content. On startup {@link #replay(MessageStore)} loads the
+ * newest snapshot, memory-maps each segment written after it, rebuilds the
+ * store and cuts off a torn record at the tail.
+ * <p>
+ * A snapshot named snapshot-N.snap holds the live messages as of the moment
+ * segment N was started, so every segment before N is obsolete once it
+ * exists. Replaying segment N and later on top of it is safe because add,
+ * update and delete records are idempotent when applied in order.
+ */
+public class MessageLog {
+
+    /**
+     * Event type of a new message.
+     */
+    static final byte ADD = 1;
+
+    /**
+     * Event type of an edited message.
+     */
+    static final byte UPDATE = 2;
+
+    /**
+     * Event type of a deleted message.
+     */
+    static final byte DELETE = 3;
+
+    /**
+     * The size of the length and CRC32 fields in front of every record body.
+     */
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    /**
+     * The largest write handed to the channel in one call.
+     */
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Marks the start of a snapshot file.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x43484154; // "CHAT"
+
+    /**
+     * A request, queued between records, to start a new segment at exactly that
+     * point in the event order.
+     */
+    private static class Roll {
+        private final CompletableFuture<Long> started = new CompletableFuture<>();
+    }
+
+    /**
+     * How often a backup lists the log files again when a compaction deletes
+     * one of them before it is opened.
+     */
+    private static final int BACKUP_ATTEMPTS = 5;
+
+    /**
+     * Backup class is a consistent copy of the log as one snapshot file: the
+     * newest snapshot's records followed by those of every finished segment
+     * after it. The files are held open, so a compaction that deletes them
+     * meanwhile does not cut the copy short.
+     */
+    public static final class Backup implements Closeable {
+        private final ByteBuffer header;
+        private final List<FileChannel> files;
+        private final List<Long> offsets;
+        private final long size;
+
+        Backup(int lastId, List<FileChannel> files, List<Long> offsets) throws IOException {
+            this.header = ByteBuffer.allocate(8).putInt(SNAPSHOT_MAGIC).putInt(lastId);
+            this.header.flip();
+            this.files = files;
+            this.offsets = offsets;
+            long total = header.remaining();
+            for (int i = 0; i < files.size(); i++) {
+                total += files.get(i).size() - offsets.get(i);
+            }
+            this.size = total;
+        }
+
+        /**
+         * Returns the number of bytes of the copy.
+         *
+         * @return The size.
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Writes the copy to a channel, handing each file's bytes to the
+         * channel with {@link FileChannel#transferTo} rather than reading them
+         * through the heap.
+         *
+         * @param target The channel to write to.
+         * @throws IOException If a file cannot be read or the channel written.
+         */
+        public void transferTo(WritableByteChannel target) throws IOException {
+            while (header.hasRemaining()) {
+                target.write(header);
+            }
+            for (int i = 0; i < files.size(); i++) {
+                FileChannel file = files.get(i);
+                long position = offsets.get(i);
+                long end = file.size();
+                while (position < end) {
+                    position += file.transferTo(position, end - position, target);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FileChannel file : files) {
+                file.close();
+            }
+        }
+    }
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long fsyncIntervalMillis;
+
+    /**
+     * Encoded records and roll requests waiting for the writer thread.
+     */
+    private final BlockingQueue<Object> pending = new LinkedBlockingQueue<>();
+
+    /**
+     * Store mutations hold the read side while they log and apply a change; a
+     * roll takes the write side just long enough to queue its marker, so every
+     * change is either entirely before or entirely after the roll.
+     */
+    private final ReentrantReadWriteLock rollLock = new ReentrantReadWriteLock();
+
+    /**
+     * The number of bytes in segments that the newest snapshot does not cover.
+     */
+    private final AtomicLong bytesSinceSnapshot = new AtomicLong();
+
+    /**
+     * The number of batches that could not be written.
+     */
+    private final AtomicLong writeFailures = new AtomicLong();
+
+    /**
+     * The writer's reusable buffer. Only touched by the writer thread.
+     */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+
+    private final Thread writer;
+    private FileChannel segment;
+
+    /**
+     * The bytes of whole records written to the current segment. Only touched
+     * by the writer thread.
+     */
+    private long segmentEnd;
+    private long segmentIndex;
+    private volatile boolean running = true;
+    private volatile long lastRecoveryMillis;
+
+    /**
+     * Opens the log in the given directory, creating it if needed. Call
+     * {@link #replay(MessageStore)} before appending anything.
+     *
+     * @param directory           The directory holding the segment files.
+     * @param segmentBytes        The size after which a new segment is started.
+     * @param fsyncIntervalMillis The longest time a written event may stay
+     *                            unsynced; 0 syncs after every batch.
+     * @throws IOException If the directory cannot be created.
+     */
+    public MessageLog(Path directory, long segmentBytes, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        Files.createDirectories(directory);
+        this.writer = new Thread(this::writeLoop, "chat-log-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Rebuilds the store from the newest snapshot and every segment written
+     * after it, then opens a fresh segment for new events and starts the writer
+     * thread.
+     *
+     * @param store The store to fill.
+     * @return The highest message ID found in the log, or 0 if it is empty.
+     * @throws IOException If a segment cannot be read, or a segment other than
+     *                     the last one is damaged.
+     */
+    public int replay(MessageStore store) throws IOException {
+        long start = System.nanoTime();
+        int maxId = 0;
+        long firstSegment = 0;
+        Path snapshot = latestSnapshot();
+        if (snapshot != null) {
+            firstSegment = indexOf(snapshot, "snapshot-", ".snap");
+            maxId = loadSnapshot(snapshot, store);
+        }
+        List<Path> segments = listSegments();
+        long lastSegment = firstSegment;
+        boolean lastSegmentEmpty = false;
+        // A torn record is only expected where writing stopped, which may be
+        // followed by segments left empty by restarts
+        int lastWritten = segments.size() - 1;
+        while (lastWritten > 0 && Files.size(segments.get(lastWritten)) == 0) {
+            lastWritten--;
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            long index = indexOf(path, "segment-", ".wal");
+            if (index >= firstSegment) {
+                maxId = Math.max(maxId, replaySegment(path, store, i >= lastWritten));
+                bytesSinceSnapshot.addAndGet(Files.size(path));
+            }
+            lastSegment = Math.max(lastSegment, index);
+            lastSegmentEmpty = Files.size(path) == 0;
+        }
+        // Keep appending to an empty last segment instead of leaving one behind on
+        // every restart
+        segmentIndex = lastSegmentEmpty ? lastSegment - 1 : lastSegment;
+        openNextSegment();
+        writer.start();
+        lastRecoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        return maxId;
+    }
+
+    /**
+     * Loads the messages of a snapshot into the store.
+     *
+     * @param path  The snapshot file.
+     * @param store The store to fill.
+     * @return The last message ID handed out when the snapshot was taken.
+     * @throws IOException If the snapshot cannot be read or is damaged.
+     */
+    private int loadSnapshot(Path path, MessageStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+            int lastId = buffer.getInt();
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    throw new IOException("Truncated snapshot file: " + path);
+                }
+                ByteBuffer body = buffer.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Corrupt snapshot file: " + path);
+                }
+                apply(body, store);
+                buffer.position(buffer.position() + length);
+            }
+            return lastId;
+        }
+    }
+
+    /**
+     * Applies every intact record of one segment to the store. In the last
+     * segment, a record that was only partly written when the server stopped
+     * is cut off. Anywhere else a bad record is damage, since newer segments
+     * follow it, and recovery stops there rather than apply them over the gap.
+     *
+     * @param path  The segment file.
+     * @param store The store to fill.
+     * @param last  True if nothing was written to a later segment.
+     * @return The highest message ID in the segment.
+     * @throws IOException If the segment cannot be read, or is damaged and
+     *                     not the last one.
+     */
+    private int replaySegment(Path path, MessageStore store, boolean last) throws IOException {
+        int maxId = 0;
+        long size;
+        int validEnd = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer body = buffer.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                maxId = Math.max(maxId, apply(body, store));
+                buffer.position(buffer.position() + length);
+                validEnd = buffer.position();
+            }
+        }
+        if (validEnd < size) {
+            if (!last) {
+                System.err.println("Damaged record at byte " + validEnd + " of " + path
+                        + ", which is not the last segment");
+                throw new IOException("Damaged log segment " + path + " at byte " + validEnd);
+            }
+            System.err.println("Truncating torn record at " + path + ":" + validEnd);
+            // Truncated through a new channel once the mapping's channel is closed;
+            // the mapping itself is not read again
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+        return maxId;
+    }
+
+    /**
+     * Applies one record body to the store.
+     *
+     * @param body  The record body.
+     * @param store The store to update.
+     * @return The message ID of the record.
+     */
+    static int apply(ByteBuffer body, MessageStore store) {
+        byte type = body.get();
+        int id = body.getInt();
+        long timestamp = body.getLong();
+        String username = readString(body);
+        String content = readString(body);
+        switch (type) {
+            case ADD:
+                store.add(new GroupChatServer.Message(id, content, username, timestamp));
+                break;
+            case UPDATE:
+                store.update(id, content);
+                break;
+            case DELETE:
+                store.remove(id);
+                break;
+            default:
+                System.err.println("Unknown log record type: " + type);
+                break;
+        }
+        return id;
+    }
+
+    /**
+     * Queues an event for the writer thread. Never blocks on disk I/O.
+     *
+     * @param type      The event type.
+     * @param id        The message ID.
+     * @param timestamp The message timestamp, or 0.
+     * @param username  The username, or null.
+     * @param content   The message content, or null.
+     */
+    public void append(byte type, int id, long timestamp, String username, String content) {
+        if (running) {
+            pending.add(encode(type, id, timestamp, username, content));
+        }
+    }
+
+    /**
+     * Returns the lock a store mutation holds while it logs and applies a change.
+     *
+     * @return The shared side of the roll lock.
+     */
+    public Lock mutationLock() {
+        return rollLock.readLock();
+    }
+
+    /**
+     * Starts a new segment. Every change made before this call is in an older
+     * segment and every change made after it is in the new one or later.
+     *
+     * @return The index of the new segment.
+     * @throws IOException If the writer could not start the segment.
+     */
+    public long roll() throws IOException {
+        if (!running) {
+            throw new IOException("The log is closed");
+        }
+        Roll roll = new Roll();
+        rollLock.writeLock().lock();
+        try {
+            pending.add(roll);
+        } finally {
+            rollLock.writeLock().unlock();
+        }
+        try {
+            return roll.started.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rolling the log", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not roll the log", e.getCause());
+        }
+    }
+
+    /**
+     * Rolls the log and opens a copy of everything written before the roll,
+     * without writing anything new. Loaded as a snapshot, the copy restores
+     * the store as of the roll.
+     *
+     * @param lastId Supplies the last message ID handed out, read after the
+     *               roll.
+     * @return The copy, which the caller must close.
+     * @throws IOException If the log cannot be rolled or its files opened.
+     */
+    public Backup openBackup(IntSupplier lastId) throws IOException {
+        long rolledAt = roll();
+        int backupLastId = lastId.getAsInt();
+        for (int attempt = 1; ; attempt++) {
+            List<FileChannel> files = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            try {
+                long firstSegment = 0;
+                Path snapshot = latestSnapshot();
+                if (snapshot != null) {
+                    firstSegment = indexOf(snapshot, "snapshot-", ".snap");
+                    files.add(FileChannel.open(snapshot, StandardOpenOption.READ));
+                    offsets.add(8L); // Past the magic and last ID, which the copy writes itself
+                }
+                // A compaction after the roll leaves a snapshot that already
+                // covers these segments and more, which is just as consistent
+                for (Path path : listSegments()) {
+                    long index = indexOf(path, "segment-", ".wal");
+                    if (index >= firstSegment && index < rolledAt) {
+                        files.add(FileChannel.open(path, StandardOpenOption.READ));
+                        offsets.add(0L);
+                    }
+                }
+                return new Backup(backupLastId, files, offsets);
+            } catch (NoSuchFileException e) {
+                for (FileChannel file : files) {
+                    file.close();
+                }
+                if (attempt == BACKUP_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given messages that replaces every segment before
+     * firstSegment, then deletes those segments and any older snapshot.
+     *
+     * @param firstSegment The segment the snapshot was taken at, from
+     *                     {@link #roll()}.
+     * @param lastId       The last message ID handed out at that point.
+     * @param messages     The live messages, read after the roll.
+     * @return The number of obsolete segments deleted.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public int writeSnapshot(long firstSegment, int lastId, Iterable<GroupChatServer.Message> messages)
+            throws IOException {
+        Path target = directory.resolve(String.format("snapshot-%012d.snap", firstSegment));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(lastId);
+            for (GroupChatServer.Message message : messages) {
+                byte[] record = encode(ADD, message.getId(), message.getTimestamp(), message.getUsername(),
+                        message.getContent());
+                if (record.length > buffer.remaining()) {
+                    writeFully(channel, buffer);
+                }
+                if (record.length > buffer.capacity()) {
+                    channel.write(ByteBuffer.wrap(record));
+                } else {
+                    buffer.put(record);
+                }
+            }
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+        // The rename is what makes the snapshot count; a crash before it leaves
+        // only a .tmp file that is ignored on startup
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        int deleted = 0;
+        for (Path path : listSegments()) {
+            if (indexOf(path, "segment-", ".wal") < firstSegment) {
+                bytesSinceSnapshot.addAndGet(-Files.size(path));
+                Files.delete(path);
+                deleted++;
+            }
+        }
+        for (Path path : listFiles("snapshot-", ".snap")) {
+            if (!path.equals(target)) {
+                Files.delete(path);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes out and clears a buffer.
+     *
+     * @param channel The channel to write to.
+     * @param buffer  The buffer to write.
+     * @throws IOException If the write fails.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the number of log bytes a recovery would replay on top of the
+     * newest snapshot.
+     *
+     * @return The number of bytes written since the newest snapshot.
+     */
+    public long getBytesSinceSnapshot() {
+        return bytesSinceSnapshot.get();
+    }
+
+    /**
+     * Returns the number of batches of events that could not be written, and
+     * may be missing from the log.
+     *
+     * @return The number of failed writes.
+     */
+    public long getWriteFailures() {
+        return writeFailures.get();
+    }
+
+    /**
+     * Returns how long the last startup recovery took.
+     *
+     * @return The recovery time in milliseconds.
+     */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    /**
+     * Encodes an event as a complete record, header included.
+     *
+     * @param type      The event type.
+     * @param id        The message ID.
+     * @param timestamp The message timestamp, or 0.
+     * @param username  The username, or null.
+     * @param content   The message content, or null.
+     * @return The encoded record.
+     */
+    static byte[] encode(byte type, int id, long timestamp, String username, String content) {
+        byte[] user = username == null ? new byte[0] : username.getBytes(StandardCharsets.UTF_8);
+        byte[] text = content == null ? new byte[0] : content.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + 8 + 4 + user.length + 4 + text.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+        record.putInt(length);
+        record.putInt(0); // CRC32, filled in below
+        record.put(type).putInt(id).putLong(timestamp);
+        record.putInt(user.length).put(user);
+        record.putInt(text.length).put(text);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_BYTES, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     *
+     * @param buffer The buffer to read from.
+     * @return The decoded string.
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The writer thread: waits for events, writes every queued event as one
+     * batch and forces the segment once the fsync interval has passed.
+     */
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        long lastSync = System.currentTimeMillis();
+        boolean dirty = false;
+        while (running || !pending.isEmpty()) {
+            try {
+                Object first = pending.poll(Math.max(1, fsyncIntervalMillis), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch);
+                    try {
+                        writeBatch(batch);
+                    } catch (IOException e) {
+                        abandonBatch(batch, e);
+                    } finally {
+                        batch.clear();
+                    }
+                    dirty = true;
+                }
+                long now = System.currentTimeMillis();
+                if (dirty && now - lastSync >= fsyncIntervalMillis) {
+                    segment.force(false);
+                    lastSync = now;
+                    dirty = false;
+                }
+                if (segment.position() >= segmentBytes) {
+                    segment.force(false);
+                    openNextSegment();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                System.err.println("Error writing message log: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of records to the current segment, starting new segments
+     * wherever a roll was requested.
+     *
+     * @param batch The encoded records and roll requests.
+     * @throws IOException If the write fails.
+     */
+    private void writeBatch(List<Object> batch) throws IOException {
+        for (Object item : batch) {
+            if (item instanceof Roll) {
+                flushWriteBuffer();
+                segment.force(false);
+                openNextSegment();
+                ((Roll) item).started.complete(segmentIndex);
+                continue;
+            }
+            byte[] record = (byte[]) item;
+            bytesSinceSnapshot.addAndGet(record.length);
+            if (record.length > writeBuffer.remaining()) {
+                flushWriteBuffer();
+            }
+            if (record.length > writeBuffer.capacity()) {
+                ByteBuffer large = ByteBuffer.wrap(record);
+                while (large.hasRemaining()) {
+                    segment.write(large);
+                }
+                segmentEnd += record.length;
+            } else {
+                writeBuffer.put(record);
+            }
+        }
+        flushWriteBuffer();
+    }
+
+    /**
+     * Gives up on a batch whose write failed. Its records are not retried,
+     * which would write the ones that did get out a second time; rolls still
+     * waiting fail with the error. The segment may end in part of a record,
+     * which is cut off before writing goes on in a new segment, since replay
+     * only forgives a torn record at the end of the last segment.
+     *
+     * @param batch The encoded records and roll requests of the batch.
+     * @param error The error the write failed with.
+     */
+    private void abandonBatch(List<Object> batch, IOException error) {
+        writeFailures.incrementAndGet();
+        int records = 0;
+        for (Object item : batch) {
+            if (item instanceof Roll) {
+                ((Roll) item).started.completeExceptionally(error);
+            } else {
+                records++;
+            }
+        }
+        System.err.println("Error writing message log, up to " + records + " events may be lost: " + error);
+        writeBuffer.clear();
+        try {
+            segment.truncate(segmentEnd);
+        } catch (IOException e) {
+            System.err.println("Could not cut the log segment " + segmentName(segmentIndex) + " back to byte "
+                    + segmentEnd + ", recovery will stop there: " + e);
+        }
+        try {
+            openNextSegment();
+        } catch (IOException e) {
+            System.err.println("Could not start a new log segment: " + e);
+        }
+    }
+
+    /**
+     * Writes out whatever is in the write buffer.
+     *
+     * @throws IOException If the write fails.
+     */
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        int length = writeBuffer.remaining();
+        while (writeBuffer.hasRemaining()) {
+            segment.write(writeBuffer);
+        }
+        segmentEnd += length;
+        writeBuffer.clear();
+    }
+
+    /**
+     * Closes the current segment, if any, and starts the next one.
+     *
+     * @throws IOException If the new segment cannot be created.
+     */
+    private void openNextSegment() throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        segmentIndex++;
+        segment = FileChannel.open(directory.resolve(segmentName(segmentIndex)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentEnd = segment.size();
+    }
+
+    /**
+     * Lists the segment files in the order they were written.
+     *
+     * @return The segment paths, oldest first.
+     * @throws IOException If the directory cannot be listed.
+     */
+    List<Path> listSegments() throws IOException {
+        return listFiles("segment-", ".wal");
+    }
+
+    /**
+     * Returns the newest snapshot file.
+     *
+     * @return The snapshot path, or null if there is no snapshot.
+     */
+    private Path latestSnapshot() {
+        List<Path> snapshots = listFiles("snapshot-", ".snap");
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * Lists the files in the log directory with the given prefix and suffix.
+     *
+     * @param prefix The file name prefix.
+     * @param suffix The file name suffix.
+     * @return The matching paths, oldest first.
+     */
+    private List<Path> listFiles(String prefix, String suffix) {
+        List<Path> paths = new ArrayList<>();
+        File[] files = directory.toFile().listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        if (files != null) {
+            for (File file : files) {
+                paths.add(file.toPath());
+            }
+        }
+        paths.sort(null); // Zero-padded names sort in write order
+        return paths;
+    }
+
+    /**
+     * Returns the file name of the segment with the given index.
+     *
+     * @param index The segment index.
+     * @return The segment file name.
+     */
+    static String segmentName(long index) {
+        return String.format("segment-%012d.wal", index);
+    }
+
+    /**
+     * Returns the segment index encoded in a segment or snapshot file name.
+     *
+     * @param path   The file path.
+     * @param prefix The file name prefix.
+     * @param suffix The file name suffix.
+     * @return The segment index.
+     */
+    static long indexOf(Path path, String prefix, String suffix) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    /**
+     * Writes and syncs everything still queued, then stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        try {
+            writer.join();
+            if (segment != null) {
+                segment.force(false);
+                segment.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Error closing message log: " + e);
+        }
+    }
+}
@@ -0,0 +1,592 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * MessageStore class keeps the chat history indexed by message ID.
+ * Lookups, updates and deletions by ID run in constant time, and messages can
+ * still be iterated in the order they were sent.
+ * The store is safe to use from the WebSocket worker threads without any
+ * global lock: the ID index locks per hash bin and the ordered index is a
+ * lock-free skip list.
+ * <p>
+ * With a {@link ColdTier} attached, only the hot window of recent messages
+ * stays on the heap as objects; older ones are moved off-heap and decoded on
+ * demand. Every cold message has a lower ID than every hot one: a message
+ * that arrives late, such as from a peer server, with an ID no higher than the
+ * newest cold one goes straight to the cold tier.
+ */
+public class MessageStore {
+
+    /**
+     * A ConcurrentHashMap from message ID to message for constant-time lookups.
+     */
+    private final ConcurrentHashMap<Integer, GroupChatServer.Message> messagesById = new ConcurrentHashMap<>();
+
+    /**
+     * A ConcurrentSkipListMap of the same messages ordered by ID. Message IDs are
+     * handed out in increasing order, so ID order is also time order.
+     */
+    private final ConcurrentSkipListMap<Integer, GroupChatServer.Message> messagesInOrder = new ConcurrentSkipListMap<>();
+
+    /**
+     * The inverted index over message content.
+     */
+    private final SearchIndex searchIndex = new SearchIndex();
+
+    /**
+     * The write-ahead log that records every change, or null while the store is
+     * being rebuilt from that log.
+     */
+    private volatile MessageLog log;
+
+    /**
+     * The off-heap tier for messages outside the hot window, or null if every
+     * message stays on the heap.
+     */
+    private volatile ColdTier cold;
+
+    /**
+     * The most messages kept on the heap, or 0 for no count limit.
+     */
+    private volatile int hotMessages;
+
+    /**
+     * The oldest a message may get before it leaves the heap, or 0 for no age
+     * limit.
+     */
+    private volatile long hotMaxAgeMillis;
+
+    /**
+     * Demotion holds the write side while it moves messages to the cold tier;
+     * a full scan such as a snapshot holds the read side, so no message can slip
+     * between the two tiers while it is being read.
+     */
+    private final ReentrantReadWriteLock tierLock = new ReentrantReadWriteLock();
+
+    /**
+     * The estimated heap held by the hot messages, kept up to date on every
+     * change so reading it never walks the store.
+     */
+    private final LongAdder heapBytes = new LongAdder();
+
+    /**
+     * The estimated heap of a hot message apart from its strings: the message
+     * object, its boxed ID, and its entries in both indexes.
+     */
+    private static final int MESSAGE_OVERHEAD_BYTES = 160;
+
+    /**
+     * Keeps only a hot window of messages on the heap and moves the rest to the
+     * given cold tier.
+     *
+     * @param cold            The cold tier.
+     * @param hotMessages     The most messages kept on the heap, or 0 for no
+     *                        count limit.
+     * @param hotMaxAgeMillis The oldest a message may get before it leaves the
+     *                        heap, or 0 for no age limit.
+     */
+    public void setColdTier(ColdTier cold, int hotMessages, long hotMaxAgeMillis) {
+        this.hotMessages = hotMessages;
+        this.hotMaxAgeMillis = hotMaxAgeMillis;
+        this.cold = cold;
+    }
+
+    /**
+     * Starts recording every change to the given write-ahead log.
+     *
+     * @param log The write-ahead log.
+     */
+    public void setLog(MessageLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Adds a message to the store.
+     *
+     * @param message The message to add.
+     */
+    public void add(GroupChatServer.Message message) {
+        ColdTier coldTier = cold;
+        if (coldTier != null) {
+            // Held so no demotion can raise the cold tier's highest ID between
+            // choosing a tier and adding to it
+            tierLock.readLock().lock();
+            try {
+                if (message.getId() <= coldTier.getMaxId()) {
+                    addCold(coldTier, message);
+                    return;
+                }
+                addHot(message);
+            } finally {
+                tierLock.readLock().unlock();
+            }
+        } else {
+            addHot(message);
+        }
+        int limit = hotMessages;
+        if (coldTier != null && limit > 0 && messagesById.size() > 2 * limit) {
+            // Hard cap for when the background task falls behind, such as during
+            // startup replay
+            enforceRetention();
+        }
+    }
+
+    /**
+     * Adds a message to the hot window.
+     */
+    private void addHot(GroupChatServer.Message message) {
+        Lock guard = lockForMutation();
+        try {
+            MessageLog currentLog = log;
+            if (currentLog != null) {
+                // Logged before the message becomes visible, so its add record always
+                // precedes any update or delete record for it
+                currentLog.append(MessageLog.ADD, message.getId(), message.getTimestamp(), message.getUsername(),
+                        message.getContent());
+            }
+            // Both indexes are written under the bin lock that remove takes, so a
+            // concurrent remove sees the message in both or in neither
+            messagesById.compute(message.getId(), (key, old) -> {
+                // Indexed before the message becomes visible, so a following update or
+                // delete always finds its terms in the index
+                indexAdded(message, old);
+                messagesInOrder.put(key, message);
+                heapBytes.add(estimateHeapBytes(message) - (old == null ? 0 : estimateHeapBytes(old)));
+                return message;
+            });
+        } finally {
+            unlock(guard);
+        }
+    }
+
+    /**
+     * Indexes the content of an added message. Replay can add a message the
+     * snapshot already loaded, when its add record went to the segment the
+     * compactor rolled to, and then the message is re-indexed instead so it
+     * is not counted twice.
+     *
+     * @param message The added message.
+     * @param old     The message it replaces, or null if it is new.
+     */
+    private void indexAdded(GroupChatServer.Message message, GroupChatServer.Message old) {
+        if (old == null) {
+            searchIndex.add(message.getId(), message.getContent());
+        } else {
+            searchIndex.update(message.getId(), old.getContent(), message.getContent());
+        }
+    }
+
+    /**
+     * Adds a message older than the hot window straight to the cold tier, so
+     * every cold ID stays below every hot one.
+     */
+    private void addCold(ColdTier coldTier, GroupChatServer.Message message) {
+        Lock guard = lockForMutation();
+        try {
+            MessageLog currentLog = log;
+            if (currentLog != null) {
+                currentLog.append(MessageLog.ADD, message.getId(), message.getTimestamp(), message.getUsername(),
+                        message.getContent());
+            }
+            synchronized (coldTier) {
+                indexAdded(message, coldTier.get(message.getId()));
+                coldTier.add(message);
+            }
+        } catch (IOException e) {
+            System.err.println("Error adding message " + message.getId() + " to the cold tier: " + e);
+        } finally {
+            unlock(guard);
+        }
+    }
+
+    /**
+     * Returns the message with the given ID.
+     *
+     * @param id The message ID.
+     * @return The message, or null if no message has that ID.
+     */
+    public GroupChatServer.Message get(int id) {
+        GroupChatServer.Message message = messagesById.get(id);
+        ColdTier coldTier = cold;
+        if (message == null && coldTier != null) {
+            message = coldTier.get(id);
+        }
+        return message;
+    }
+
+    /**
+     * Removes the message with the given ID.
+     *
+     * @param id The message ID.
+     * @return The removed message, or null if no message has that ID.
+     */
+    public GroupChatServer.Message remove(int id) {
+        GroupChatServer.Message[] removed = new GroupChatServer.Message[1];
+        Lock guard = lockForMutation();
+        try {
+            messagesById.computeIfPresent(id, (key, message) -> {
+                logChange(MessageLog.DELETE, id, null);
+                searchIndex.remove(id, message.getContent());
+                heapBytes.add(-estimateHeapBytes(message));
+                messagesInOrder.remove(key);
+                removed[0] = message;
+                return null;
+            });
+            if (removed[0] == null && cold != null) {
+                ColdTier coldTier = cold;
+                synchronized (coldTier) {
+                    removed[0] = coldTier.remove(id);
+                    if (removed[0] != null) {
+                        logChange(MessageLog.DELETE, id, null);
+                        searchIndex.remove(id, removed[0].getContent());
+                    }
+                }
+            }
+        } finally {
+            unlock(guard);
+        }
+        return removed[0];
+    }
+
+    /**
+     * Replaces the content of the message with the given ID.
+     *
+     * @param id      The message ID.
+     * @param content The new message content.
+     * @return True if the message was found and updated, false otherwise.
+     */
+    public boolean update(int id, String content) {
+        Lock guard = lockForMutation();
+        try {
+            // computeIfPresent locks only the bin holding this ID, so concurrent
+            // updates to the same message are applied one after another
+            boolean updated = messagesById.computeIfPresent(id, (key, message) -> {
+                // Appended under the same bin lock, so the log sees updates to one
+                // message in the order they were applied
+                logChange(MessageLog.UPDATE, id, content);
+                searchIndex.update(id, message.getContent(), content);
+                heapBytes.add(stringBytes(content) - stringBytes(message.getContent()));
+                message.setContent(content);
+                return message;
+            }) != null;
+            ColdTier coldTier = cold;
+            if (!updated && coldTier != null) {
+                synchronized (coldTier) {
+                    GroupChatServer.Message old = coldTier.update(id, content);
+                    if (old != null) {
+                        logChange(MessageLog.UPDATE, id, content);
+                        searchIndex.update(id, old.getContent(), content);
+                        updated = true;
+                    }
+                }
+            }
+            return updated;
+        } catch (IOException e) {
+            System.err.println("Error updating cold message " + id + ": " + e);
+            return false;
+        } finally {
+            unlock(guard);
+        }
+    }
+
+    /**
+     * Records an update or delete in the write-ahead log, if there is one.
+     *
+     * @param type    The event type.
+     * @param id      The message ID.
+     * @param content The new content, or null.
+     */
+    private void logChange(byte type, int id, String content) {
+        MessageLog currentLog = log;
+        if (currentLog != null) {
+            currentLog.append(type, id, 0, null, content);
+        }
+    }
+
+    /**
+     * Moves the oldest messages to the cold tier until the hot window is back
+     * within its count and age limits. Does nothing while a full scan holds the
+     * tiers still.
+     *
+     * @return The number of messages moved.
+     */
+    public int enforceRetention() {
+        ColdTier coldTier = cold;
+        if (coldTier == null || !tierLock.writeLock().tryLock()) {
+            return 0;
+        }
+        int moved = 0;
+        try {
+            long cutoff = hotMaxAgeMillis > 0 ? System.currentTimeMillis() - hotMaxAgeMillis : Long.MIN_VALUE;
+            while (true) {
+                Map.Entry<Integer, GroupChatServer.Message> oldest = messagesInOrder.firstEntry();
+                if (oldest == null) {
+                    break;
+                }
+                boolean overCount = hotMessages > 0 && messagesById.size() > hotMessages;
+                if (!overCount && oldest.getValue().getTimestamp() >= cutoff) {
+                    break;
+                }
+                // Moved under the bin lock, so a concurrent edit or delete of this
+                // message sees it in exactly one tier
+                messagesById.computeIfPresent(oldest.getKey(), (key, message) -> {
+                    try {
+                        coldTier.add(message);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    heapBytes.add(-estimateHeapBytes(message));
+                    return null;
+                });
+                messagesInOrder.remove(oldest.getKey());
+                moved++;
+            }
+        } catch (UncheckedIOException e) {
+            System.err.println("Error moving messages to the cold tier: " + e.getCause());
+        } finally {
+            tierLock.writeLock().unlock();
+        }
+        return moved;
+    }
+
+    /**
+     * Stops messages from moving between tiers until
+     * {@link #resumeRetention()} is called, so a full scan sees every message
+     * exactly once. Writers are not blocked.
+     */
+    public void pauseRetention() {
+        tierLock.readLock().lock();
+    }
+
+    /**
+     * Lets messages move between tiers again after
+     * {@link #pauseRetention()}.
+     */
+    public void resumeRetention() {
+        tierLock.readLock().unlock();
+    }
+
+    /**
+     * Returns the number of messages held on the heap.
+     *
+     * @return The number of hot messages.
+     */
+    public int getHotSize() {
+        return messagesById.size();
+    }
+
+    /**
+     * Returns the estimated heap held by the messages on the heap, not counting
+     * the search index.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long getHeapBytes() {
+        return heapBytes.sum();
+    }
+
+    /**
+     * Estimates the heap a hot message holds.
+     *
+     * @param message The message.
+     * @return The estimated size in bytes.
+     */
+    private static long estimateHeapBytes(GroupChatServer.Message message) {
+        return MESSAGE_OVERHEAD_BYTES + stringBytes(message.getContent()) + stringBytes(message.getUsername());
+    }
+
+    /**
+     * Estimates the heap a string holds, assuming two bytes per character as
+     * the worst case of compact strings.
+     *
+     * @param value The string.
+     * @return The estimated size in bytes.
+     */
+    private static long stringBytes(String value) {
+        return 40 + 2L * value.length();
+    }
+
+    /**
+     * Returns the number of bytes the cold tier has grown to.
+     *
+     * @return The size of the cold tier, or 0 if there is none.
+     */
+    public long getColdBytes() {
+        ColdTier coldTier = cold;
+        return coldTier == null ? 0 : coldTier.getBytes();
+    }
+
+    /**
+     * Searches the message content.
+     *
+     * @param query  The search query.
+     * @param offset The number of best hits to skip.
+     * @param limit  The maximum number of hits to return.
+     * @return The requested page of hits and the total number of matches.
+     */
+    public SearchIndex.Result search(String query, int offset, int limit) {
+        return searchIndex.search(query, offset, limit);
+    }
+
+    /**
+     * Takes the log's shared mutation lock, so a change is never split across a
+     * log roll.
+     *
+     * @return The lock that was taken, or null if there is no log.
+     */
+    private Lock lockForMutation() {
+        MessageLog currentLog = log;
+        if (currentLog == null) {
+            return null;
+        }
+        Lock guard = currentLog.mutationLock();
+        guard.lock();
+        return guard;
+    }
+
+    /**
+     * Releases a lock taken by {@link #lockForMutation()}.
+     *
+     * @param guard The lock, or null.
+     */
+    private static void unlock(Lock guard) {
+        if (guard != null) {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of stored messages.
+     *
+     * @return The number of stored messages.
+     */
+    public int size() {
+        ColdTier coldTier = cold;
+        return messagesById.size() + (coldTier == null ? 0 : coldTier.size());
+    }
+
+    /**
+     * Returns all stored messages, oldest first.
+     *
+     * @return A list of all messages in the order they were sent.
+     */
+    public List<GroupChatServer.Message> getAll() {
+        List<GroupChatServer.Message> all = new ArrayList<>();
+        pauseRetention();
+        try {
+            for (GroupChatServer.Message message : values()) {
+                all.add(message);
+            }
+        } finally {
+            resumeRetention();
+        }
+        return all;
+    }
+
+    /**
+     * Returns a live, weakly consistent view of the stored messages, oldest
+     * first: the cold tier followed by the hot window. Iterating it never blocks
+     * writers; hold {@link #pauseRetention()} while iterating to keep messages
+     * from moving between tiers mid-scan.
+     *
+     * @return The stored messages in the order they were sent.
+     */
+    public Iterable<GroupChatServer.Message> values() {
+        ColdTier coldTier = cold;
+        if (coldTier == null) {
+            return messagesInOrder.values();
+        }
+        return () -> new Iterator<GroupChatServer.Message>() {
+            private final Iterator<GroupChatServer.Message> coldMessages = coldTier.iterator();
+            private Iterator<GroupChatServer.Message> hotWindow;
+
+            private Iterator<GroupChatServer.Message> current() {
+                if (coldMessages.hasNext()) {
+                    return coldMessages;
+                }
+                if (hotWindow == null) {
+                    hotWindow = messagesInOrder.values().iterator();
+                }
+                return hotWindow;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return current().hasNext();
+            }
+
+            @Override
+            public GroupChatServer.Message next() {
+                return current().next();
+            }
+        };
+    }
+
+    /**
+     * Returns up to limit of the oldest messages whose ID is above the given
+     * cursor, oldest first. Paging through the store with this holds no more
+     * than one page at a time, and keeps messages from moving between tiers
+     * only while a page is read.
+     *
+     * @param afterId The exclusive lower bound on message IDs.
+     * @param limit   The maximum number of messages to return.
+     * @return A list of at most limit messages in the order they were sent.
+     */
+    public List<GroupChatServer.Message> getAfter(int afterId, int limit) {
+        List<GroupChatServer.Message> page;
+        pauseRetention();
+        try {
+            ColdTier coldTier = cold;
+            // Cold IDs are all below the hot ones, so the cold tier comes first
+            page = coldTier == null ? new ArrayList<>(Math.min(limit, 64)) : coldTier.getAfter(afterId, limit);
+            for (GroupChatServer.Message message : messagesInOrder.tailMap(afterId, false).values()) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                page.add(message);
+            }
+        } finally {
+            resumeRetention();
+        }
+        return page;
+    }
+
+    /**
+     * Returns up to limit of the newest messages whose ID is below the given
+     * cursor, oldest first. Only the requested page is walked, so the cost does
+     * not depend on how much history is stored.
+     *
+     * @param beforeId The exclusive upper bound on message IDs.
+     * @param limit    The maximum number of messages to return.
+     * @return A list of at most limit messages in the order they were sent.
+     */
+    public List<GroupChatServer.Message> getBefore(int beforeId, int limit) {
+        List<GroupChatServer.Message> page = new ArrayList<>(Math.min(limit, 64));
+        for (GroupChatServer.Message message : messagesInOrder.headMap(beforeId, false).descendingMap().values()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(message);
+        }
+        Collections.reverse(page);
+        ColdTier coldTier = cold;
+        if (page.size() < limit && coldTier != null) {
+            // Cold IDs are all below the hot ones, so continue below this page
+            int coldBefore = page.isEmpty() ? beforeId : Math.min(beforeId, page.get(0).getId());
+            List<GroupChatServer.Message> older = coldTier.getBefore(coldBefore, limit - page.size());
+            older.addAll(page);
+            page = older;
+        }
+        return page;
+    }
+}
@@ -0,0 +1,299 @@
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Metrics class collects the server's counters, latency histograms and
+ * gauges and renders them in the Prometheus text exposition format.
+ * <p>
+ * Recording never takes a lock: counters and histogram buckets are
+ * {@link LongAdder}s, which spread contended increments over per-thread
+ * cells, so the hot paths pay a few nanoseconds per event. Gauges cost
+ * nothing until the metrics are scraped, because they are read from the
+ * server's own state at that point.
+ */
+public class Metrics {
+
+    /**
+     * The actions counted under their own label. Anything else a client sends
+     * is counted as "other", so a misbehaving client cannot create labels.
+     */
+    private static final String[] ACTIONS = {
+            "username", "add", "del", "update", "getParticipants", "history", "search", "joinRoom", "leaveRoom"
+    };
+
+    /**
+     * The upper bounds of the latency histogram buckets, in nanoseconds.
+     */
+    private static final long[] LATENCY_BOUNDS_NANOS = {
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 50_000_000, 100_000_000
+    };
+
+    private final Map<String, LongAdder> inbound = new ConcurrentHashMap<>();
+    private final LongAdder otherInbound = new LongAdder();
+    private final Histogram fanOutLatency = new Histogram(LATENCY_BOUNDS_NANOS);
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder heartbeatEvictions = new LongAdder();
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder compressedMessages = new LongAdder();
+    private final LongAdder compressionInputBytes = new LongAdder();
+    private final LongAdder compressionOutputBytes = new LongAdder();
+    private final LongAdder[] rateLimited = new LongAdder[RateLimiter.SLOT_NAMES.length];
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * Histogram class counts observations into fixed buckets. Only the bucket
+     * an observation falls into is incremented; the cumulative counts
+     * Prometheus expects are summed up when the histogram is rendered.
+     */
+    static final class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets; // One more than bounds, for +Inf
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records one observation.
+         *
+         * @param value The observed value.
+         */
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(value);
+        }
+    }
+
+    /**
+     * Gauge class is a value read from the server when the metrics are
+     * scraped, either a single one or one per label value.
+     */
+    private static final class Gauge {
+        private final String name;
+        private final String help;
+        private final String label;
+        private final Supplier<Map<String, ? extends Number>> values;
+
+        Gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Constructs a new Metrics with every known action at zero.
+     */
+    public Metrics() {
+        for (String action : ACTIONS) {
+            inbound.put(action, new LongAdder());
+        }
+        for (int i = 0; i < rateLimited.length; i++) {
+            rateLimited[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a message received from a client.
+     *
+     * @param action The action of the message.
+     */
+    public void inbound(String action) {
+        LongAdder counter = inbound.get(action);
+        (counter != null ? counter : otherInbound).increment();
+    }
+
+    /**
+     * Records how long a broadcast took to reach every recipient's outbox.
+     *
+     * @param nanos The fan-out time in nanoseconds.
+     */
+    public void fanOut(long nanos) {
+        fanOutLatency.record(nanos);
+    }
+
+    /**
+     * Counts a frame that could not be queued for or written to a client.
+     */
+    public void sendFailure() {
+        sendFailures.increment();
+    }
+
+    /**
+     * Counts a connection closed because it stopped answering pings or sent
+     * nothing for too long.
+     *
+     * @param idle True if it was idle, false if it stopped answering.
+     */
+    public void evicted(boolean idle) {
+        (idle ? idleEvictions : heartbeatEvictions).increment();
+    }
+
+    /**
+     * Counts a compressed message. A broadcast is counted once, however many
+     * clients it is sent to.
+     *
+     * @param inputBytes  The size before compression.
+     * @param outputBytes The size after compression.
+     */
+    public void compressed(long inputBytes, long outputBytes) {
+        compressedMessages.increment();
+        compressionInputBytes.add(inputBytes);
+        compressionOutputBytes.add(outputBytes);
+    }
+
+    /**
+     * Counts a frame dropped because it was over its rate limit.
+     *
+     * @param slot The rate limiter bucket it was over.
+     */
+    public void rateLimited(int slot) {
+        rateLimited[slot].increment();
+    }
+
+    /**
+     * Adds a gauge read when the metrics are scraped.
+     *
+     * @param name  The metric name.
+     * @param help  The description.
+     * @param value Reads the current value.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, null, () -> Map.of("", value.getAsLong())));
+    }
+
+    /**
+     * Adds a gauge with one value per label value, read when the metrics are
+     * scraped.
+     *
+     * @param name   The metric name.
+     * @param help   The description.
+     * @param label  The label name.
+     * @param values Reads the current value for each label value.
+     */
+    public void gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+        gauges.add(new Gauge(name, help, label, values));
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     *
+     * @return The metrics text.
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "chat_inbound_messages_total", "Messages received from clients, by action.", "counter");
+        for (String action : ACTIONS) {
+            sample(out, "chat_inbound_messages_total", "action", action, inbound.get(action).sum());
+        }
+        sample(out, "chat_inbound_messages_total", "action", "other", otherInbound.sum());
+
+        header(out, "chat_broadcast_fanout_seconds",
+                "Time to queue a broadcast for every member of a room.", "histogram");
+        long cumulative = 0;
+        for (int i = 0; i < fanOutLatency.buckets.length; i++) {
+            cumulative += fanOutLatency.buckets[i].sum();
+            String le = i < LATENCY_BOUNDS_NANOS.length ? Double.toString(LATENCY_BOUNDS_NANOS[i] / 1e9) : "+Inf";
+            sample(out, "chat_broadcast_fanout_seconds_bucket", "le", le, cumulative);
+        }
+        sample(out, "chat_broadcast_fanout_seconds_sum", null, null, fanOutLatency.sum.sum() / 1e9);
+        sample(out, "chat_broadcast_fanout_seconds_count", null, null, cumulative);
+
+        header(out, "chat_send_failures_total", "Frames that could not be sent to a client.", "counter");
+        sample(out, "chat_send_failures_total", null, null, sendFailures.sum());
+
+        header(out, "chat_evicted_connections_total", "Connections closed as dead or idle, by reason.", "counter");
+        sample(out, "chat_evicted_connections_total", "reason", "heartbeat", heartbeatEvictions.sum());
+        sample(out, "chat_evicted_connections_total", "reason", "idle", idleEvictions.sum());
+
+        header(out, "chat_compressed_messages_total", "Messages compressed, each broadcast once.", "counter");
+        sample(out, "chat_compressed_messages_total", null, null, compressedMessages.sum());
+        header(out, "chat_compression_input_bytes_total", "Bytes of the compressed messages before compression.",
+                "counter");
+        sample(out, "chat_compression_input_bytes_total", null, null, compressionInputBytes.sum());
+        header(out, "chat_compression_output_bytes_total", "Bytes of the compressed messages after compression.",
+                "counter");
+        sample(out, "chat_compression_output_bytes_total", null, null, compressionOutputBytes.sum());
+
+        header(out, "chat_rate_limited_total", "Frames dropped for being over a rate limit, by limit.", "counter");
+        for (int i = 0; i < rateLimited.length; i++) {
+            sample(out, "chat_rate_limited_total", "limit", RateLimiter.SLOT_NAMES[i], rateLimited[i].sum());
+        }
+
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name, gauge.help, "gauge");
+            for (Map.Entry<String, ? extends Number> value : gauge.values.get().entrySet()) {
+                sample(out, gauge.name, gauge.label, value.getKey(), value.getValue());
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns a handler that answers scrapes with the rendered metrics.
+     *
+     * @return The handler.
+     */
+    public HttpHandler handler() {
+        return exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        };
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String labelValue, Number value) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"");
+            // Label values are usernames and room names, so escape them as the format requires
+            for (int i = 0; i < labelValue.length(); i++) {
+                char c = labelValue.charAt(i);
+                if (c == '\\' || c == '"') {
+                    out.append('\\').append(c);
+                } else if (c == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append("\"}");
+        }
+        out.append(' ');
+        if (value instanceof Double || value instanceof Float) {
+            out.append(value.doubleValue());
+        } else {
+            out.append(value.longValue());
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,148 @@
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.Framedata;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * OutboxOrderTest class checks that a coalesced frame never overtakes the
+ * frames queued before it. It fills a full COALESCE outbox of a connection
+ * that is not draining with add(seq 1), edit of 1 (seq 2) and add(seq 3),
+ * then queues another edit of 1 (seq 4), which replaces the first edit. Once
+ * the connection drains it replays what was sent through the chat page's
+ * rule of skipping any event numbered at or below the last one seen, and
+ * checks that:
+ * <ul>
+ *   <li>events go out in increasing seq order;</li>
+ *   <li>the client applies both adds and the newest edit, so only the
+ *       superseded edit is missing.</li>
+ * </ul>
+ * It prints every failed check and exits with status 1 if there was one.
+ */
+public class OutboxOrderTest {
+
+    private static final Pattern SEQ = Pattern.compile("\"seq\":(\\d+)");
+
+    private final List<String> failures = new ArrayList<>();
+
+    /**
+     * The frames handed to the connection, in order.
+     */
+    private final List<String> sent = new ArrayList<>();
+
+    /**
+     * Keeps the connection from taking frames until the checks let it.
+     */
+    private volatile boolean saturated = true;
+
+    /**
+     * Runs every check.
+     *
+     * @return True if all checks passed.
+     * @throws InterruptedException If interrupted while waiting for the drain.
+     */
+    public boolean run() throws InterruptedException {
+        ScheduledExecutorService sender = new ScheduledThreadPoolExecutor(1);
+        ClientOutbox outbox = new ClientOutbox(connection(), 3, ClientOutbox.OverflowPolicy.COALESCE, sender,
+                new Metrics());
+        GroupChatServer.Message first = new GroupChatServer.Message(1, "first", "alice", 1);
+        GroupChatServer.Message second = new GroupChatServer.Message(2, "second", "bob", 2);
+        outbox.offer(frames(JsonCodec.encodeMessage(first, 1)), null);
+        outbox.offer(frames(JsonCodec.encodeChange("update", 1, "alice", "first, edited", 2)), "update:1");
+        outbox.offer(frames(JsonCodec.encodeMessage(second, 3)), null);
+        outbox.offer(frames(JsonCodec.encodeChange("update", 1, "alice", "first, edited again", 4)), "update:1");
+
+        saturated = false;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outbox.depth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        sender.shutdown();
+        sender.awaitTermination(1, TimeUnit.SECONDS);
+
+        List<Long> order = new ArrayList<>();
+        List<Long> applied = new ArrayList<>();
+        long lastSeq = 0;
+        synchronized (sent) {
+            for (String frame : sent) {
+                Matcher matcher = SEQ.matcher(frame);
+                if (!matcher.find()) {
+                    fail("Frame without a seq: " + frame);
+                    continue;
+                }
+                long seq = Long.parseLong(matcher.group(1));
+                order.add(seq);
+                // As handleEvent in chat.html does
+                if (seq > lastSeq) {
+                    applied.add(seq);
+                    lastSeq = seq;
+                }
+            }
+        }
+        if (!order.equals(List.of(1L, 3L, 4L))) {
+            fail("Events went out as seq " + order + " instead of [1, 3, 4]");
+        }
+        if (!applied.equals(List.of(1L, 3L, 4L))) {
+            fail("The client applied seq " + applied + " instead of [1, 3, 4]");
+        }
+
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " check(s) failed");
+        return failures.isEmpty();
+    }
+
+    /**
+     * Returns a connection that records the text of every frame it is given
+     * and reports buffered data while saturated.
+     */
+    private WebSocket connection() {
+        return (WebSocket) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {WebSocket.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "hasBufferedData":
+                            return saturated;
+                        case "sendFrame":
+                            @SuppressWarnings("unchecked")
+                            Collection<Framedata> frames = (Collection<Framedata>) args[0];
+                            synchronized (sent) {
+                                for (Framedata frame : frames) {
+                                    sent.add(StandardCharsets.UTF_8.decode(frame.getPayloadData()).toString());
+                                }
+                            }
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static List<Framedata> frames(String text) {
+        return new Draft_6455().createFrames(text, false);
+    }
+
+    /**
+     * Records a failed check.
+     *
+     * @param failure What went wrong.
+     */
+    private void fail(String failure) {
+        failures.add(failure);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new OutboxOrderTest().run() ? 0 : 1);
+    }
+}
@@ -0,0 +1,298 @@
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.extensions.CompressionExtension;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PerMessageDeflate class is the permessage-deflate WebSocket extension
+ * (RFC 7692), which browsers offer on their own. A text or binary message at
+ * least as large as the threshold is sent as one raw deflate block, marked
+ * with the RSV1 bit; smaller ones, where the saving would not be worth the
+ * CPU, are sent as they are.
+ * <p>
+ * Both sides agree to start every message with an empty window ("no context
+ * takeover"). That gives up a little compression, but makes a compressed
+ * message independent of what was sent before it on the same connection, so
+ * a broadcast can be compressed once and the same frame queued for every
+ * recipient. It also means no connection holds a deflate window between
+ * messages: the deflaters and inflaters belong to the threads.
+ * <p>
+ * Java-WebSocket 1.3.8 does not write the RSV1 bit of outgoing frames, so the
+ * extension has to be used with a {@link DeflateDraft}.
+ */
+public class PerMessageDeflate extends CompressionExtension {
+
+    /**
+     * The extension token in the Sec-WebSocket-Extensions header.
+     */
+    private static final String EXTENSION_NAME = "permessage-deflate";
+
+    /**
+     * The parameters this side answers or offers with.
+     */
+    private static final String PARAMETERS = "; server_no_context_takeover; client_no_context_takeover";
+
+    /**
+     * The largest message accepted after inflating, so a small frame cannot
+     * expand into an unbounded one.
+     */
+    private static final int MAX_INFLATED_BYTES = 1024 * 1024;
+
+    /**
+     * The end of an empty stored block, which every compressed message ends
+     * with before the sender strips it.
+     */
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    /**
+     * The deflaters of each thread, by level. Changing the level of a
+     * deflater only takes effect part way through its next call, so each
+     * level has its own.
+     */
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[10]);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final int thresholdBytes;
+    private final int level;
+
+    /**
+     * The inflater of a compressed message that arrives in several frames, or
+     * null between such messages.
+     */
+    private Inflater fragmented;
+    private long inflatedBytes;
+
+    /**
+     * Constructs a new PerMessageDeflate.
+     *
+     * @param thresholdBytes The smallest payload that is compressed.
+     * @param level          The deflate level, from 1 (fastest) to 9 (smallest).
+     */
+    public PerMessageDeflate(int thresholdBytes, int level) {
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+    }
+
+    /**
+     * Compresses a frame in place if it is a whole text or binary message at
+     * least as large as the threshold. A frame that is already compressed is
+     * left alone, so frames compressed once and shared by many connections
+     * are never touched again when each of them is sent.
+     *
+     * @param frame The frame.
+     * @return True if the frame was compressed.
+     */
+    public boolean compress(Framedata frame) {
+        if (frame.isRSV1() || !frame.isFin() || !(frame instanceof FramedataImpl1)) {
+            return false;
+        }
+        if (frame.getOpcode() != Framedata.Opcode.TEXT && frame.getOpcode() != Framedata.Opcode.BINARY) {
+            return false;
+        }
+        ByteBuffer payload = frame.getPayloadData();
+        if (payload.remaining() < thresholdBytes) {
+            return false;
+        }
+        // Even a payload that does not shrink stays compressed, so that the
+        // RSV1 bit alone tells whether a shared frame is done
+        FramedataImpl1 data = (FramedataImpl1) frame;
+        data.setPayload(deflate(payload, level));
+        data.setRSV1(true);
+        return true;
+    }
+
+    /**
+     * Compresses a payload as one permessage-deflate message.
+     *
+     * @param payload The payload, which is not consumed.
+     * @param level   The deflate level.
+     * @return The compressed payload.
+     */
+    static ByteBuffer deflate(ByteBuffer payload, int level) {
+        Deflater[] deflaters = DEFLATERS.get();
+        Deflater deflater = deflaters[level];
+        if (deflater == null) {
+            deflater = deflaters[level] = new Deflater(level, true);
+        } else {
+            deflater.reset();
+        }
+        deflater.setInput(payload.duplicate());
+        // Deflate adds a few bytes per block to what does not compress, so
+        // this is nearly always enough for a single call
+        byte[] out = new byte[payload.remaining() + 64];
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            if (length < out.length) {
+                break; // A sync flush that does not fill the buffer has written everything
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        // The flush ends with TAIL, which the receiver adds back
+        return ByteBuffer.wrap(out, 0, length - TAIL.length);
+    }
+
+    @Override
+    public void encodeFrame(Framedata frame) {
+        compress(frame);
+    }
+
+    @Override
+    public void decodeFrame(Framedata frame) throws InvalidDataException {
+        Inflater inflater;
+        if (frame.getOpcode() == Framedata.Opcode.CONTINUOUS) {
+            if (fragmented == null) {
+                return;
+            }
+            inflater = fragmented;
+        } else if (frame.getOpcode() != Framedata.Opcode.TEXT && frame.getOpcode() != Framedata.Opcode.BINARY) {
+            return;
+        } else {
+            if (!frame.isRSV1()) {
+                return;
+            }
+            // A message in one frame, which is nearly every message, needs no
+            // inflater of its own
+            inflater = frame.isFin() ? INFLATERS.get() : (fragmented = new Inflater(true));
+            inflater.reset();
+            inflatedBytes = 0;
+        }
+        FramedataImpl1 data = (FramedataImpl1) frame;
+        try {
+            ByteBuffer out = ByteBuffer.allocate(Math.max(64, frame.getPayloadData().remaining() * 4));
+            inflater.setInput(frame.getPayloadData().duplicate());
+            out = inflate(inflater, out);
+            if (frame.isFin()) {
+                inflater.setInput(TAIL);
+                out = inflate(inflater, out);
+            }
+            out.flip();
+            data.setPayload(out);
+            data.setRSV1(false);
+        } finally {
+            if (frame.isFin() && fragmented != null) {
+                fragmented.end();
+                fragmented = null;
+            }
+        }
+    }
+
+    /**
+     * Inflates all the input an inflater was given.
+     *
+     * @return The buffer holding the output, which is a larger one than the
+     *         one given if that filled up.
+     */
+    private ByteBuffer inflate(Inflater inflater, ByteBuffer out) throws InvalidDataException {
+        try {
+            while (true) {
+                inflatedBytes += inflater.inflate(out);
+                if (inflatedBytes > MAX_INFLATED_BYTES) {
+                    throw new InvalidDataException(CloseFrame.TOOBIG, "Inflated message is too large");
+                }
+                if (out.hasRemaining()) {
+                    break; // Only a full buffer can leave output behind
+                }
+                ByteBuffer larger = ByteBuffer.allocate(out.capacity() * 2);
+                out.flip();
+                out = larger.put(out);
+            }
+            if (inflater.needsDictionary()) {
+                throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR, "Compressed message needs a dictionary");
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR, "Malformed compressed message: " + e.getMessage());
+        }
+        return out;
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsServer(String inputExtension) {
+        if (inputExtension == null) {
+            return false;
+        }
+        // The header may list several offers, in order of preference
+        for (String offer : inputExtension.split(",")) {
+            String[] parameters = offer.split(";");
+            if (parameters[0].trim().equalsIgnoreCase(EXTENSION_NAME) && acceptsParameters(parameters)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether an offer asks for nothing this side cannot do.
+     */
+    private static boolean acceptsParameters(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String[] parameter = parameters[i].split("=", 2);
+            switch (parameter[0].trim().toLowerCase()) {
+                case "server_no_context_takeover":
+                case "client_no_context_takeover":
+                case "client_max_window_bits":
+                    // The inflaters always use the largest window, so the
+                    // client may use any smaller one
+                    break;
+                case "server_max_window_bits":
+                    // java.util.zip always compresses with the largest window
+                    if (parameter.length < 2 || !parameter[1].trim().replace("\"", "").equals("15")) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsClient(String inputExtension) {
+        if (inputExtension == null) {
+            return false;
+        }
+        String[] parameters = inputExtension.split(";");
+        // The server has to reset its window, or a message could not be
+        // inflated on its own
+        return parameters[0].trim().equalsIgnoreCase(EXTENSION_NAME)
+                && inputExtension.toLowerCase().contains("server_no_context_takeover")
+                && acceptsParameters(parameters);
+    }
+
+    @Override
+    public String getProvidedExtensionAsServer() {
+        return EXTENSION_NAME + PARAMETERS;
+    }
+
+    @Override
+    public String getProvidedExtensionAsClient() {
+        return EXTENSION_NAME + PARAMETERS;
+    }
+
+    @Override
+    public IExtension copyInstance() {
+        return new PerMessageDeflate(thresholdBytes, level);
+    }
+
+    @Override
+    public void reset() {
+        if (fragmented != null) {
+            fragmented.end();
+            fragmented = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PerMessageDeflate";
+    }
+}
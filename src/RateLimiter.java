@@ -0,0 +1,193 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * RateLimiter class holds one token bucket per kind of frame for a single
+ * connection or user. Each bucket refills at a fixed rate up to a burst size,
+ * and a frame is allowed if its bucket has a token left.
+ * <p>
+ * A bucket is kept as a single number, the time at which it will be full
+ * again (the generic cell rate algorithm). Taking a token moves that time on
+ * by one refill interval, and the token is refused if the time would end up
+ * further ahead than the burst allows. Checking a bucket therefore allocates
+ * nothing and is one compare-and-set on a slot that, in practice, only the
+ * connection's own thread touches.
+ */
+public class RateLimiter {
+
+    /**
+     * What happens to a frame that is over its limit.
+     */
+    public enum BreachPolicy {
+        /**
+         * Drop the frame and tell the client to slow down.
+         */
+        REJECT,
+        /**
+         * Drop the frame without a word.
+         */
+        DROP,
+        /**
+         * Close the connection.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * The bucket every frame is counted against before it is decoded.
+     */
+    public static final int FRAMES = 0;
+
+    /**
+     * The bucket names, in slot order. Every action has its own bucket.
+     */
+    static final String[] SLOT_NAMES = {
+            "frames", "username", "add", "del", "update", "getParticipants", "history", "search", "joinRoom",
+            "leaveRoom"
+    };
+
+    /**
+     * Limits class holds the refill interval and burst of every bucket, shared
+     * by all limiters.
+     */
+    public static final class Limits {
+        private final long[] intervalNanos = new long[SLOT_NAMES.length];
+        private final long[] toleranceNanos = new long[SLOT_NAMES.length];
+
+        /**
+         * Sets the limit of one bucket.
+         *
+         * @param slot      The bucket.
+         * @param perSecond The frames allowed per second, or 0 for no limit.
+         * @param burst     The frames allowed at once after a quiet spell.
+         * @return These limits.
+         */
+        public Limits set(int slot, double perSecond, int burst) {
+            if (perSecond <= 0) {
+                intervalNanos[slot] = 0;
+                toleranceNanos[slot] = 0;
+            } else {
+                intervalNanos[slot] = Math.max(1, (long) (1e9 / perSecond));
+                toleranceNanos[slot] = intervalNanos[slot] * (Math.max(1, burst) - 1);
+            }
+            return this;
+        }
+
+        /**
+         * Sets the limit of one bucket from text such as "10/20", meaning 10
+         * frames per second with bursts of up to 20, or "0" for no limit.
+         *
+         * @param slot The bucket.
+         * @param spec The limit.
+         * @return These limits.
+         * @throws IllegalArgumentException If the text is not a limit.
+         */
+        public Limits parse(int slot, String spec) {
+            String[] parts = spec.trim().split("/");
+            try {
+                double perSecond = Double.parseDouble(parts[0]);
+                int burst = parts.length > 1 ? Integer.parseInt(parts[1]) : (int) Math.ceil(perSecond);
+                return set(slot, perSecond, burst);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Rate limit of " + SLOT_NAMES[slot]
+                        + " must look like 10/20: " + spec, e);
+            }
+        }
+    }
+
+    private final Limits limits;
+
+    /**
+     * The time each bucket is full again, in System.nanoTime() terms. Only
+     * ever compared by difference, so the clock may wrap.
+     */
+    private final AtomicLongArray fullAt;
+
+    /**
+     * Constructs a new RateLimiter with every bucket full.
+     *
+     * @param limits The limits of the buckets.
+     */
+    public RateLimiter(Limits limits) {
+        this.limits = limits;
+        this.fullAt = new AtomicLongArray(SLOT_NAMES.length);
+        long now = System.nanoTime();
+        for (int i = 0; i < SLOT_NAMES.length; i++) {
+            fullAt.set(i, now);
+        }
+    }
+
+    /**
+     * Returns the bucket of an action.
+     *
+     * @param action The action.
+     * @return The bucket, or -1 for an action that has none.
+     */
+    public static int slot(String action) {
+        switch (action) {
+            case "username":
+                return 1;
+            case "add":
+                return 2;
+            case "del":
+                return 3;
+            case "update":
+                return 4;
+            case "getParticipants":
+                return 5;
+            case "history":
+                return 6;
+            case "search":
+                return 7;
+            case "joinRoom":
+                return 8;
+            case "leaveRoom":
+                return 9;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Takes a token from a bucket.
+     *
+     * @param slot The bucket, or -1 for none.
+     * @param now  The current System.nanoTime().
+     * @return True if the frame is within its limit.
+     */
+    public boolean tryAcquire(int slot, long now) {
+        if (slot < 0) {
+            return true;
+        }
+        long interval = limits.intervalNanos[slot];
+        if (interval == 0) {
+            return true;
+        }
+        long tolerance = limits.toleranceNanos[slot];
+        while (true) {
+            long current = fullAt.get(slot);
+            long start = current - now > 0 ? current : now;
+            if (start - now > tolerance) {
+                return false;
+            }
+            if (fullAt.compareAndSet(slot, current, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns whether every bucket is full, so forgetting this limiter would
+     * change nothing.
+     *
+     * @param now The current System.nanoTime().
+     * @return True if the limiter is idle.
+     */
+    public boolean isIdle(long now) {
+        for (int i = 0; i < SLOT_NAMES.length; i++) {
+            if (fullAt.get(i) - now > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,129 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * RateLimiterBenchmark class measures what the per-connection rate limit
+ * check costs on the path every frame takes. It times a check that is
+ * allowed, one that is refused because its bucket is empty, and the mix of
+ * both a flooding client produces, and reports the nanoseconds and heap bytes
+ * per check.
+ * <p>
+ * It then runs the allowed check on many threads at once, each with its own
+ * limiter as every connection has, to show that the checks do not slow each
+ * other down.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.ops      checks timed per case and thread (20000000)
+ *   bench.threads  threads of the parallel case (available processors)
+ * </pre>
+ */
+public class RateLimiterBenchmark {
+
+    private final int ops;
+    private final int threadCount;
+
+    /**
+     * Keeps the results of the timed checks from being optimized away.
+     */
+    private long sink;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Constructs a new RateLimiterBenchmark from the current system properties.
+     */
+    public RateLimiterBenchmark() {
+        ops = Integer.getInteger("bench.ops", 20_000_000);
+        threadCount = Integer.getInteger("bench.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs every case and prints one row per case.
+     *
+     * @throws Exception If a parallel run fails.
+     */
+    public void run() throws Exception {
+        // A limit far above the check rate never refuses, one of 1 per second
+        // refuses everything after the first
+        RateLimiter.Limits open = new RateLimiter.Limits().set(RateLimiter.FRAMES, 1e12, 1_000_000);
+        RateLimiter.Limits closed = new RateLimiter.Limits().set(RateLimiter.FRAMES, 1, 1);
+        RateLimiter.Limits flood = new RateLimiter.Limits().set(RateLimiter.FRAMES, 1e7, 100);
+
+        System.out.printf("%-22s  %10s  %8s%n", "case", "ns/check", "B/check");
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT; only the second is reported
+            boolean report = pass == 1;
+            measure("allowed", new RateLimiter(open), report);
+            measure("refused", new RateLimiter(closed), report);
+            measure("flood (mixed)", new RateLimiter(flood), report);
+        }
+        measureParallel(open);
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Times one limiter on this thread and prints the result.
+     */
+    private void measure(String name, RateLimiter limiter, boolean report) {
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long allowed = checks(limiter);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += allowed;
+        if (report) {
+            System.out.printf("%-22s  %10.1f  %8d   (%.1f%% allowed)%n", name, (double) elapsed / ops,
+                    allocated / ops, 100.0 * allowed / ops);
+        }
+    }
+
+    /**
+     * Times the allowed check on every thread at once, each with its own
+     * limiter, and prints the time per check.
+     */
+    private void measureParallel(RateLimiter.Limits limits) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        for (int pass = 0; pass < 2; pass++) {
+            List<Future<Long>> results = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                results.add(pool.submit(() -> {
+                    RateLimiter limiter = new RateLimiter(limits);
+                    long start = System.nanoTime();
+                    sink += checks(limiter);
+                    return System.nanoTime() - start;
+                }));
+            }
+            long slowest = 0;
+            for (Future<Long> result : results) {
+                slowest = Math.max(slowest, result.get());
+            }
+            if (pass == 1) {
+                System.out.printf("%-22s  %10.1f%n", "allowed x" + threadCount + " threads", (double) slowest / ops);
+            }
+        }
+        pool.shutdown();
+    }
+
+    private long checks(RateLimiter limiter) {
+        long allowed = 0;
+        for (int i = 0; i < ops; i++) {
+            if (limiter.tryAcquire(RateLimiter.FRAMES, System.nanoTime())) {
+                allowed++;
+            }
+        }
+        return allowed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new RateLimiterBenchmark().run();
+    }
+}
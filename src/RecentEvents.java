@@ -0,0 +1,164 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RecentEvents class numbers the message events of a room and keeps the most
+ * recent ones in a ring buffer. A client that reconnects presents the number
+ * of the last event it saw and is sent only what it missed, instead of the
+ * history all over again. When the gap is larger than the buffer, or the
+ * numbers come from before a restart, the client gets a fresh history page
+ * instead.
+ * <p>
+ * Event numbers only mean something together with the epoch of the buffer,
+ * which is new every time the room is opened.
+ * <p>
+ * A room's events are only added and read on the room's executor, so the
+ * buffer needs no locking.
+ */
+public class RecentEvents {
+
+    /**
+     * Event class is one add, update or delete as it was broadcast.
+     */
+    public static final class Event {
+        private final long seq;
+        private final String action;
+        private final int id;
+        private final String username;
+        private final String message;
+        private final long timestamp;
+
+        Event(long seq, String action, int id, String username, String message, long timestamp) {
+            this.seq = seq;
+            this.action = action;
+            this.id = id;
+            this.username = username;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Returns the event number.
+         *
+         * @return The event number.
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * Returns the action, "message", "update" or "del".
+         *
+         * @return The action.
+         */
+        public String getAction() {
+            return action;
+        }
+
+        /**
+         * Returns the ID of the message the event is about.
+         *
+         * @return The message ID.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns the username the event was broadcast with.
+         *
+         * @return The username.
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Returns the message content of an add or update, or the notice of a
+         * delete.
+         *
+         * @return The message.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Returns the timestamp of an added message.
+         *
+         * @return The timestamp, or 0 for updates and deletes.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private final Event[] ring;
+    private final long epoch;
+    private long lastSeq;
+
+    /**
+     * Constructs a new RecentEvents.
+     *
+     * @param capacity The number of events kept.
+     */
+    public RecentEvents(int capacity) {
+        this.ring = new Event[Math.max(1, capacity)];
+        // Unique enough to tell a restarted or reopened room from the old one
+        this.epoch = System.currentTimeMillis() * 1000 + (System.nanoTime() & 0x3FF);
+    }
+
+    /**
+     * Numbers an event and keeps it, dropping the oldest one if the buffer is
+     * full.
+     *
+     * @param action    The action, "message", "update" or "del".
+     * @param id        The message ID.
+     * @param username  The username.
+     * @param message   The content, or the notice of a delete.
+     * @param timestamp The timestamp of an added message, or 0.
+     * @return The event number.
+     */
+    public long append(String action, int id, String username, String message, long timestamp) {
+        long seq = ++lastSeq;
+        ring[(int) (seq % ring.length)] = new Event(seq, action, id, username, message, timestamp);
+        return seq;
+    }
+
+    /**
+     * Returns the events after the given one.
+     *
+     * @param epoch The epoch the client's event number belongs to.
+     * @param since The number of the last event the client saw.
+     * @return The events, oldest first, or null if they are no longer all
+     *         kept or the client's number is from another epoch.
+     */
+    public List<Event> since(long epoch, long since) {
+        if (epoch != this.epoch || since < 0 || since > lastSeq || lastSeq - since > ring.length) {
+            return null;
+        }
+        List<Event> events = new ArrayList<>((int) (lastSeq - since));
+        for (long seq = since + 1; seq <= lastSeq; seq++) {
+            events.add(ring[(int) (seq % ring.length)]);
+        }
+        return events;
+    }
+
+    /**
+     * Returns the epoch of the event numbers.
+     *
+     * @return The epoch.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of the last event.
+     *
+     * @return The last event number, or 0 if there was none.
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+}
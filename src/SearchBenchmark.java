@@ -0,0 +1,166 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * SearchBenchmark class compares server-side search through the SearchIndex
+ * with a linear scan over the message content, the way the chat page used to
+ * search what it had loaded. Message content is drawn from a vocabulary with
+ * a Zipf distribution, so some words are common and most are rare, as in real
+ * text. For each history size it reports the time to index a message and the
+ * time per query for a common word, a rare word and a two-word query.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.sizes    history sizes to measure (100000,1000000)
+ *   bench.queries  queries timed per kind and size (200)
+ * </pre>
+ */
+public class SearchBenchmark {
+
+    /**
+     * The number of distinct words message content is made of.
+     */
+    private static final int VOCABULARY = 20000;
+
+    /**
+     * The number of words in each message.
+     */
+    private static final int WORDS = 8;
+
+    private final int[] sizes;
+    private final int queries;
+
+    /**
+     * The cumulative probability of each word rank, for drawing words.
+     */
+    private final double[] cumulative = new double[VOCABULARY];
+
+    /**
+     * Constructs a new SearchBenchmark from the current system properties.
+     */
+    public SearchBenchmark() {
+        String[] parts = System.getProperty("bench.sizes", "100000,1000000").split(",");
+        sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        queries = Integer.getInteger("bench.queries", 200);
+        double sum = 0;
+        for (int rank = 0; rank < VOCABULARY; rank++) {
+            sum += 1.0 / (rank + 1);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < VOCABULARY; rank++) {
+            cumulative[rank] /= sum;
+        }
+    }
+
+    /**
+     * Runs the benchmark for every size and prints one block per size.
+     */
+    public void run() {
+        // Ranks 0, 5000 and 200 are a very common, a rare and a middling word
+        String[][] kinds = {{"w0"}, {"w5000"}, {"w200", "w5000"}};
+        String[] names = {"common word", "rare word", "two words"};
+        for (int size : sizes) {
+            Random random = new Random(42);
+            String[] contents = new String[size];
+            for (int i = 0; i < size; i++) {
+                contents[i] = content(random);
+            }
+            SearchIndex index = new SearchIndex();
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                index.add(i + 1, contents[i]);
+            }
+            long indexing = System.nanoTime() - start;
+            System.out.printf("%n%d messages, indexed at %.2f us per message, %d terms%n", size,
+                    indexing / 1e3 / size, index.getTermCount());
+            System.out.printf("%14s  %8s  %12s  %12s  %8s%n", "query", "matches", "index", "scan", "speedup");
+            for (int k = 0; k < kinds.length; k++) {
+                String query = String.join(" ", kinds[k]);
+                // The first pass of each warms up the JIT; only the second is reported
+                timeIndex(index, query, queries);
+                double indexed = timeIndex(index, query, queries);
+                int scanQueries = Math.max(3, queries / 20);
+                timeScan(contents, kinds[k], scanQueries);
+                double scanned = timeScan(contents, kinds[k], scanQueries);
+                System.out.printf("%14s  %8d  %9.3f ms  %9.3f ms  %7.0fx%n", names[k],
+                        index.search(query, 0, 20).getTotal(), indexed / 1e6, scanned / 1e6, scanned / indexed);
+            }
+            System.gc();
+        }
+    }
+
+    /**
+     * Times a query against the index, asking for the first page of 20 hits.
+     *
+     * @param index The index.
+     * @param query The query.
+     * @param count The number of times to run it.
+     * @return The average nanoseconds per query.
+     */
+    private static double timeIndex(SearchIndex index, String query, int count) {
+        long start = System.nanoTime();
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            total += index.search(query, 0, 20).getHits().size();
+        }
+        if (total < 0) {
+            System.out.println(); // Keeps the searches from being optimized away
+        }
+        return (double) (System.nanoTime() - start) / count;
+    }
+
+    /**
+     * Times a scan that checks every message for every query word, the way
+     * the chat page searched with includes() over lower-cased text.
+     *
+     * @param contents The message content.
+     * @param words    The query words.
+     * @param count    The number of times to run it.
+     * @return The average nanoseconds per scan.
+     */
+    private static double timeScan(String[] contents, String[] words, int count) {
+        // Padded with spaces, so "w20" does not match inside "w200"
+        String[] needles = Arrays.stream(words).map(word -> " " + word + " ").toArray(String[]::new);
+        long start = System.nanoTime();
+        int matches = 0;
+        for (int i = 0; i < count; i++) {
+            for (String content : contents) {
+                String text = " " + content.toLowerCase() + " ";
+                boolean all = true;
+                for (String needle : needles) {
+                    all &= text.contains(needle);
+                }
+                if (all) {
+                    matches++;
+                }
+            }
+        }
+        if (matches < 0) {
+            System.out.println();
+        }
+        return (double) (System.nanoTime() - start) / count;
+    }
+
+    /**
+     * Makes up the content of a message.
+     *
+     * @param random The source of words.
+     * @return A few words drawn from the vocabulary.
+     */
+    private String content(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < WORDS; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+            rank = Math.min(rank < 0 ? -(rank + 1) : rank, VOCABULARY - 1);
+            text.append(i == 0 ? "" : " ").append('w').append(rank);
+        }
+        return text.toString();
+    }
+
+    public static void main(String[] args) {
+        new SearchBenchmark().run();
+    }
+}
@@ -0,0 +1,380 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SearchIndex class is an in-memory inverted index over message content. Each
+ * term maps to a compact posting list of message IDs with the number of times
+ * the term occurs in that message. The index is kept up to date on every add,
+ * update and delete, so searches cover the whole history and not only what a
+ * client happens to have loaded.
+ * <p>
+ * A query matches messages that contain every query term. Hits are ranked by
+ * TF-IDF, newest first on ties. Only the rarest term's postings are walked;
+ * the others are probed by binary search.
+ */
+public class SearchIndex {
+
+    /**
+     * The largest page of hits a single search may return.
+     */
+    public static final int MAX_RESULTS = 100;
+
+    /**
+     * The most best hits a search may skip. Skipping hits still means ranking
+     * them, so a deeper page would cost a heap the size of the offset; a
+     * larger offset gets an empty page and the total.
+     */
+    public static final int MAX_OFFSET = 1000;
+
+    /**
+     * A posting list: message IDs in increasing order with a term frequency for
+     * each. Every list has its own lock, so writers only contend on shared terms.
+     */
+    private static class PostingList {
+        private int[] ids = new int[4];
+        private short[] frequencies = new short[4];
+        private int size;
+
+        /**
+         * Adds or replaces the posting for a message.
+         *
+         * @param id        The message ID.
+         * @param frequency The number of occurrences of the term.
+         */
+        synchronized void add(int id, int frequency) {
+            short tf = (short) Math.min(frequency, Short.MAX_VALUE);
+            // IDs grow over time, so new messages almost always append at the end
+            int index = size > 0 && ids[size - 1] < id ? -(size + 1) : Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                frequencies[index] = tf;
+                return;
+            }
+            index = -(index + 1);
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            System.arraycopy(frequencies, index, frequencies, index + 1, size - index);
+            ids[index] = id;
+            frequencies[index] = tf;
+            size++;
+        }
+
+        /**
+         * Removes the posting for a message.
+         *
+         * @param id The message ID.
+         */
+        synchronized void remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                return;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            System.arraycopy(frequencies, index + 1, frequencies, index, size - index - 1);
+            size--;
+            if (ids.length > 16 && size < ids.length / 4) {
+                // Give back the room of a list that has mostly been deleted
+                ids = Arrays.copyOf(ids, ids.length / 2);
+                frequencies = Arrays.copyOf(frequencies, frequencies.length / 2);
+            }
+        }
+
+        /**
+         * Returns the term frequency for a message.
+         *
+         * @param id The message ID.
+         * @return The term frequency, or 0 if the message does not contain the term.
+         */
+        synchronized int frequency(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            return index < 0 ? 0 : frequencies[index];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Returns a copy of the postings, so a search can walk them without
+         * holding the lock.
+         *
+         * @return An array of IDs followed by an array of frequencies.
+         */
+        synchronized Object[] snapshot() {
+            return new Object[] { Arrays.copyOf(ids, size), Arrays.copyOf(frequencies, size) };
+        }
+    }
+
+    /**
+     * A ranked search hit.
+     */
+    public static class Hit {
+        private final int id;
+        private final double score;
+
+        Hit(int id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        /**
+         * Returns the message ID.
+         *
+         * @return The message ID.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns the relevance score.
+         *
+         * @return The relevance score.
+         */
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * A page of search hits together with the total number of matches.
+     */
+    public static class Result {
+        private final List<Hit> hits;
+        private final int total;
+
+        Result(List<Hit> hits, int total) {
+            this.hits = hits;
+            this.total = total;
+        }
+
+        /**
+         * Returns the hits on this page, best first.
+         *
+         * @return The hits.
+         */
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        /**
+         * Returns the number of messages matching the query.
+         *
+         * @return The total number of matches.
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * A ConcurrentHashMap from term to its posting list. Lists are only changed
+     * inside the map's compute methods, so a list that becomes empty can be
+     * removed without racing an add to the same term.
+     */
+    private final Map<String, PostingList> postings = new ConcurrentHashMap<>();
+
+    /**
+     * The number of indexed messages, used for the IDF weights.
+     */
+    private final AtomicInteger documents = new AtomicInteger();
+
+    /**
+     * Indexes a new message.
+     *
+     * @param id      The message ID.
+     * @param content The message content.
+     */
+    public void add(int id, String content) {
+        for (Map.Entry<String, Integer> term : termFrequencies(content).entrySet()) {
+            addPosting(term.getKey(), id, term.getValue());
+        }
+        documents.incrementAndGet();
+    }
+
+    /**
+     * Re-indexes an edited message.
+     *
+     * @param id         The message ID.
+     * @param oldContent The content before the edit.
+     * @param newContent The content after the edit.
+     */
+    public void update(int id, String oldContent, String newContent) {
+        Map<String, Integer> oldTerms = termFrequencies(oldContent);
+        Map<String, Integer> newTerms = termFrequencies(newContent);
+        for (String term : oldTerms.keySet()) {
+            if (!newTerms.containsKey(term)) {
+                removePosting(term, id);
+            }
+        }
+        for (Map.Entry<String, Integer> term : newTerms.entrySet()) {
+            if (!term.getValue().equals(oldTerms.get(term.getKey()))) {
+                addPosting(term.getKey(), id, term.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes a deleted message from the index.
+     *
+     * @param id      The message ID.
+     * @param content The content of the deleted message.
+     */
+    public void remove(int id, String content) {
+        for (String term : termFrequencies(content).keySet()) {
+            removePosting(term, id);
+        }
+        documents.decrementAndGet();
+    }
+
+    /**
+     * Adds or replaces a message's posting for a term, creating the term's
+     * list if needed.
+     *
+     * @param term      The term.
+     * @param id        The message ID.
+     * @param frequency The number of occurrences of the term.
+     */
+    private void addPosting(String term, int id, int frequency) {
+        postings.compute(term, (key, list) -> {
+            PostingList target = list == null ? new PostingList() : list;
+            target.add(id, frequency);
+            return target;
+        });
+    }
+
+    /**
+     * Removes a message's posting for a term, and the term itself once no
+     * message contains it, so terms of deleted messages do not pile up.
+     *
+     * @param term The term.
+     * @param id   The message ID.
+     */
+    private void removePosting(String term, int id) {
+        postings.computeIfPresent(term, (key, list) -> {
+            list.remove(id);
+            return list.size() == 0 ? null : list;
+        });
+    }
+
+    /**
+     * Returns the number of distinct terms in the index.
+     *
+     * @return The number of terms.
+     */
+    public int getTermCount() {
+        return postings.size();
+    }
+
+    /**
+     * Searches for messages containing every term of the query.
+     *
+     * @param query  The search query.
+     * @param offset The number of best hits to skip. Beyond
+     *               {@link #MAX_OFFSET} no hits are returned.
+     * @param limit  The maximum number of hits to return.
+     * @return The requested page of hits and the total number of matches.
+     */
+    public Result search(String query, int offset, int limit) {
+        List<String> terms = new ArrayList<>(termFrequencies(query).keySet());
+        limit = Math.max(1, Math.min(limit, MAX_RESULTS));
+        offset = Math.max(0, offset);
+        if (terms.isEmpty()) {
+            return new Result(new ArrayList<>(), 0);
+        }
+
+        List<PostingList> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            PostingList list = postings.get(term);
+            if (list == null || list.size() == 0) {
+                return new Result(new ArrayList<>(), 0);
+            }
+            lists.add(list);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        double[] idf = new double[lists.size()];
+        int documentCount = Math.max(documents.get(), 1);
+        for (int i = 0; i < lists.size(); i++) {
+            idf[i] = Math.log(1 + (double) documentCount / Math.max(lists.get(i).size(), 1));
+        }
+
+        // Keep only the best offset + limit hits in a min-heap, or none at all
+        // past the deepest page, where only the total is counted
+        int keep = offset > MAX_OFFSET ? 0 : offset + limit;
+        PriorityQueue<Hit> best = new PriorityQueue<>(keep + 1, SearchIndex::compareHits);
+        Object[] rarest = lists.get(0).snapshot();
+        int[] ids = (int[]) rarest[0];
+        short[] frequencies = (short[]) rarest[1];
+        int total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            double score = frequencies[i] * idf[0];
+            boolean matchesAll = true;
+            for (int t = 1; t < lists.size() && matchesAll; t++) {
+                int frequency = lists.get(t).frequency(ids[i]);
+                matchesAll = frequency > 0;
+                score += frequency * idf[t];
+            }
+            if (!matchesAll) {
+                continue;
+            }
+            total++;
+            if (keep == 0) {
+                continue;
+            }
+            best.add(new Hit(ids[i], score));
+            if (best.size() > keep) {
+                best.poll();
+            }
+        }
+
+        List<Hit> page = new ArrayList<>(best);
+        page.sort((a, b) -> compareHits(b, a));
+        List<Hit> hits = offset >= page.size() ? new ArrayList<>() : page.subList(offset, page.size());
+        return new Result(hits, total);
+    }
+
+    /**
+     * Orders hits from worst to best: by score, then by recency.
+     *
+     * @param a The first hit.
+     * @param b The second hit.
+     * @return The comparison result.
+     */
+    private static int compareHits(Hit a, Hit b) {
+        int byScore = Double.compare(a.score, b.score);
+        return byScore != 0 ? byScore : Integer.compare(a.id, b.id);
+    }
+
+    /**
+     * Splits text into lower-case terms made of letters and digits and counts
+     * how often each occurs.
+     *
+     * @param text The text to tokenize.
+     * @return A map from term to number of occurrences.
+     */
+    static Map<String, Integer> termFrequencies(String text) {
+        Map<String, Integer> terms = new HashMap<>();
+        if (text == null) {
+            return terms;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                terms.merge(text.substring(start, i).toLowerCase(), 1, Integer::sum);
+                start = -1;
+            }
+        }
+        return terms;
+    }
+}
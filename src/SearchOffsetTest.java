@@ -0,0 +1,114 @@
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SearchOffsetTest class checks that a search request cannot make the server
+ * rank an unbounded number of hits. It decodes search frames with offsets up
+ * to Integer.MAX_VALUE, as a client may send them, runs them against a store
+ * of matching messages and checks that:
+ * <ul>
+ *   <li>no search throws;</li>
+ *   <li>an offset past SearchIndex.MAX_OFFSET returns no hits but the right
+ *       total;</li>
+ *   <li>offsets up to MAX_OFFSET still return the right page;</li>
+ *   <li>a client that pages with "More results" the way the chat page
+ *       does stops at MAX_OFFSET instead of asking for the same empty page
+ *       forever.</li>
+ * </ul>
+ * It prints every failed check and exits with status 1 if there was one.
+ */
+public class SearchOffsetTest {
+
+    private static final int MESSAGES = 5000;
+
+    private final List<String> failures = new ArrayList<>();
+
+    /**
+     * Runs every check.
+     *
+     * @return True if all checks passed.
+     */
+    public boolean run() {
+        MessageStore store = new MessageStore();
+        for (int i = 1; i <= MESSAGES; i++) {
+            store.add(new GroupChatServer.Message(i, "hello number " + i, "user", i));
+        }
+
+        for (String offset : new String[] {"2147483647", "2147483600", "99999999999", "1001"}) {
+            ClientRequest request = JsonCodec.decodeRequest(
+                    "{\"action\":\"search\",\"query\":\"hello\",\"offset\":" + offset + ",\"limit\":100}");
+            try {
+                SearchIndex.Result result = store.search(request.getQuery(), request.getOffset(),
+                        request.getLimit(20));
+                if (!result.getHits().isEmpty()) {
+                    fail("Offset " + offset + " returned " + result.getHits().size() + " hits instead of none");
+                }
+                if (result.getTotal() != MESSAGES) {
+                    fail("Offset " + offset + " counted " + result.getTotal() + " matches instead of " + MESSAGES);
+                }
+            } catch (RuntimeException | OutOfMemoryError e) {
+                fail("Offset " + offset + " failed: " + e);
+            }
+        }
+
+        // Equal scores rank newest first, so each page is a run of IDs
+        for (int offset : new int[] {0, 500, SearchIndex.MAX_OFFSET}) {
+            SearchIndex.Result result = store.search("hello", offset, 10);
+            List<SearchIndex.Hit> hits = result.getHits();
+            if (hits.size() != 10 || hits.get(0).getId() != MESSAGES - offset) {
+                fail("Offset " + offset + " returned " + hits.size() + " hits starting at "
+                        + (hits.isEmpty() ? "nothing" : String.valueOf(hits.get(0).getId())) + " instead of 10 at "
+                        + (MESSAGES - offset));
+            }
+        }
+
+        // Follow "More results" as displaySearchResults in chat.html does
+        int offset = 0;
+        int pages = 0;
+        int lastOffset = 0;
+        while (pages < MESSAGES) {
+            pages++;
+            SearchIndex.Result result = store.search("hello", offset, 100);
+            List<GroupChatServer.Message> hits = new ArrayList<>();
+            for (SearchIndex.Hit hit : result.getHits()) {
+                hits.add(store.get(hit.getId()));
+            }
+            JSONObject data = new JSONObject(JsonCodec.encodeSearchResults("hello", offset, result.getTotal(),
+                    SearchIndex.MAX_OFFSET, hits));
+            lastOffset = data.getInt("offset");
+            int nextOffset = lastOffset + data.getJSONArray("results").length();
+            if (data.getJSONArray("results").length() == 0 || nextOffset >= data.getInt("total")
+                    || nextOffset > data.getInt("maxOffset")) {
+                break;
+            }
+            offset = nextOffset;
+        }
+        if (pages >= MESSAGES) {
+            fail("Paging never stopped, last asked for offset " + lastOffset);
+        } else if (lastOffset > SearchIndex.MAX_OFFSET || lastOffset < SearchIndex.MAX_OFFSET - 100) {
+            fail("Paging stopped at offset " + lastOffset + " instead of the last page up to "
+                    + SearchIndex.MAX_OFFSET);
+        }
+
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " check(s) failed");
+        return failures.isEmpty();
+    }
+
+    /**
+     * Records a failed check.
+     *
+     * @param failure What went wrong.
+     */
+    private void fail(String failure) {
+        failures.add(failure);
+    }
+
+    public static void main(String[] args) {
+        System.exit(new SearchOffsetTest().run() ? 0 : 1);
+    }
+}
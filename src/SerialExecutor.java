@@ -0,0 +1,78 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SerialExecutor class runs tasks one at a time, in submission order, on a
+ * shared thread pool. Each chat room has one, so a room's work never runs in
+ * parallel with itself but never ties up more than one pool thread either: a
+ * busy room cannot starve quiet rooms of threads. After a bounded batch of
+ * tasks the executor yields its thread and queues itself again.
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * The number of tasks run before the executor gives its thread back.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private final Executor pool;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Constructs a new SerialExecutor on top of the given pool.
+     *
+     * @param pool The shared thread pool.
+     */
+    public SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Queues a task behind every task submitted before it.
+     *
+     * @param task The task to run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (scheduled.compareAndSet(false, true)) {
+            pool.execute(this::runBatch);
+        }
+    }
+
+    /**
+     * Runs up to one batch of tasks, then reschedules itself if more are waiting.
+     */
+    private void runBatch() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                break;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Error running room task: " + e);
+                e.printStackTrace();
+            }
+        }
+        scheduled.set(false);
+        // A task may have been added after the last poll but before the flag was
+        // cleared; whoever wins the flag now runs it
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            pool.execute(this::runBatch);
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to run.
+     *
+     * @return The queue length.
+     */
+    public int getQueueLength() {
+        return tasks.size();
+    }
+}
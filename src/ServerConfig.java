@@ -0,0 +1,274 @@
+/**
+ * ServerConfig class holds the tunable settings of the chat server.
+ * Every setting can be overridden with a "chat."-prefixed Java system
+ * property, for example -Dchat.outbox.capacity=2048.
+ */
+public class ServerConfig {
+
+    /**
+     * The WebSocket port. The HTTP port is the one after it.
+     */
+    public final int port;
+
+    /**
+     * The maximum number of frames queued for a single client.
+     */
+    public final int outboxCapacity;
+
+    /**
+     * What to do when a client's outbound queue is full.
+     */
+    public final ClientOutbox.OverflowPolicy outboxOverflowPolicy;
+
+    /**
+     * The number of threads that drain the outbound queues.
+     */
+    public final int senderThreads;
+
+    /**
+     * True if message history is persisted to the write-ahead log.
+     */
+    public final boolean persistenceEnabled;
+
+    /**
+     * The directory holding the write-ahead log segments.
+     */
+    public final String dataDirectory;
+
+    /**
+     * The size in bytes after which a new log segment is started.
+     */
+    public final long logSegmentBytes;
+
+    /**
+     * The longest time in milliseconds a logged event may stay unsynced.
+     */
+    public final long logFsyncIntervalMillis;
+
+    /**
+     * The number of log bytes written since the last snapshot that triggers a
+     * compaction.
+     */
+    public final long compactionMinBytes;
+
+    /**
+     * How often, in seconds, the compactor checks whether to run.
+     */
+    public final long compactionCheckSeconds;
+
+    /**
+     * The most messages kept on the heap before older ones move to the cold
+     * tier, or 0 for no count limit.
+     */
+    public final int retentionHotMessages;
+
+    /**
+     * The age in minutes after which a message moves to the cold tier, or 0 for
+     * no age limit.
+     */
+    public final long retentionHotMinutes;
+
+    /**
+     * The number of threads shared by all rooms to process client actions.
+     */
+    public final int roomThreads;
+
+    /**
+     * The most rooms that may exist at once.
+     */
+    public final int maxRooms;
+
+    /**
+     * The number of threads that answer requests on the HTTP port.
+     */
+    public final int httpThreads;
+
+    /**
+     * The most history exports that may run at once. Each holds one HTTP
+     * thread for as long as it streams, so this keeps some free for pages and
+     * metrics.
+     */
+    public final int exportMaxConcurrent;
+
+    /**
+     * The directory holding the HTML pages.
+     */
+    public final String assetDirectory;
+
+    /**
+     * How long, in milliseconds, a room collects broadcasts before sending
+     * them as one frame, or 0 to send every broadcast right away.
+     */
+    public final long batchWindowMillis;
+
+    /**
+     * The number of collected broadcasts that sends a batch before its window
+     * is over.
+     */
+    public final int batchMaxEvents;
+
+    /**
+     * The number of recent message events each room keeps for clients that
+     * reconnect and ask for what they missed.
+     */
+    public final int resyncEvents;
+
+    /**
+     * How long, in seconds, a connection may stay silent before it is sent a
+     * ping, or 0 to send none.
+     */
+    public final long heartbeatIntervalSeconds;
+
+    /**
+     * How long, in seconds, a connection has to answer a ping before it is
+     * closed as dead.
+     */
+    public final long heartbeatTimeoutSeconds;
+
+    /**
+     * How long, in seconds, a connection may go without sending a message
+     * before it is closed, or 0 to keep idle connections. Answering pings
+     * does not count.
+     */
+    public final long idleTimeoutSeconds;
+
+    /**
+     * The tick of the timing wheel that checks on connections, in
+     * milliseconds. Heartbeats and idle timeouts fire up to one tick late.
+     */
+    public final long heartbeatTickMillis;
+
+    /**
+     * Whether clients that offer permessage-deflate get compressed messages.
+     */
+    public final boolean compressionEnabled;
+
+    /**
+     * The smallest message, in bytes, that is compressed. Smaller messages
+     * save too little to be worth the CPU.
+     */
+    public final int compressionThresholdBytes;
+
+    /**
+     * The deflate level, from 1 (fastest) to 9 (smallest).
+     */
+    public final int compressionLevel;
+
+    /**
+     * The ID of this node in a cluster, unique among its nodes.
+     */
+    public final String nodeId;
+
+    /**
+     * The position of this node in the cluster, from 0 to nodeCount - 1. Each
+     * node hands out only the message IDs that leave this remainder when
+     * divided by nodeCount, so IDs never collide across nodes.
+     */
+    public final int nodeIndex;
+
+    /**
+     * The number of nodes message IDs are divided among, which may be larger
+     * than the number running to leave room for more.
+     */
+    public final int nodeCount;
+
+    /**
+     * The port the event bus listens on for the other nodes, or 0 to run as a
+     * single node.
+     */
+    public final int busPort;
+
+    /**
+     * The address the event bus listens on, loopback unless the other nodes
+     * run on other machines.
+     */
+    public final String busHost;
+
+    /**
+     * The secret every node of the cluster shares to prove itself on the
+     * event bus, or an empty string to accept only the hosts of busPeers.
+     */
+    public final String busSecret;
+
+    /**
+     * The bus addresses of the other nodes, as comma-separated host:port.
+     */
+    public final String busPeers;
+
+    /**
+     * The number of events queued for each other node before new ones are
+     * dropped.
+     */
+    public final int busQueueCapacity;
+
+    /**
+     * The frame limits of every connection and user, set per action as
+     * chat.limit.&lt;action&gt;=perSecond/burst and for all frames together as
+     * chat.limit.frames. A limit of 0 turns it off.
+     */
+    public final RateLimiter.Limits rateLimits;
+
+    /**
+     * What to do with a frame over its limit.
+     */
+    public final RateLimiter.BreachPolicy rateLimitPolicy;
+
+    /**
+     * Constructs a new ServerConfig from the current system properties, falling
+     * back to the defaults for anything that is not set.
+     */
+    public ServerConfig() {
+        port = Integer.getInteger("chat.port", 8080);
+        outboxCapacity = Integer.getInteger("chat.outbox.capacity", 1024);
+        outboxOverflowPolicy = ClientOutbox.OverflowPolicy.valueOf(
+                System.getProperty("chat.outbox.overflow", "DROP_OLDEST").toUpperCase());
+        senderThreads = Integer.getInteger("chat.sender.threads", Runtime.getRuntime().availableProcessors());
+        persistenceEnabled = Boolean.parseBoolean(System.getProperty("chat.persistence", "true"));
+        dataDirectory = System.getProperty("chat.data.dir", "data");
+        logSegmentBytes = Long.getLong("chat.log.segmentBytes", 64L * 1024 * 1024);
+        logFsyncIntervalMillis = Long.getLong("chat.log.fsyncMillis", 50);
+        compactionMinBytes = Long.getLong("chat.compaction.minBytes", 128L * 1024 * 1024);
+        compactionCheckSeconds = Long.getLong("chat.compaction.checkSeconds", 30);
+        retentionHotMessages = Integer.getInteger("chat.retention.hotMessages", 0);
+        retentionHotMinutes = Long.getLong("chat.retention.hotMinutes", 0);
+        roomThreads = Integer.getInteger("chat.room.threads", Runtime.getRuntime().availableProcessors());
+        maxRooms = Integer.getInteger("chat.rooms.max", 1000);
+        httpThreads = Integer.getInteger("chat.http.threads", 4);
+        exportMaxConcurrent = Integer.getInteger("chat.export.maxConcurrent", Math.max(1, httpThreads / 2));
+        assetDirectory = System.getProperty("chat.assets.dir", "html");
+        batchWindowMillis = Long.getLong("chat.batch.windowMillis", 0);
+        batchMaxEvents = Integer.getInteger("chat.batch.maxEvents", 64);
+        resyncEvents = Integer.getInteger("chat.resync.events", 1024);
+        heartbeatIntervalSeconds = Long.getLong("chat.heartbeat.intervalSeconds", 30);
+        heartbeatTimeoutSeconds = Long.getLong("chat.heartbeat.timeoutSeconds", 10);
+        idleTimeoutSeconds = Long.getLong("chat.idle.timeoutSeconds", 0);
+        heartbeatTickMillis = Math.max(1, Long.getLong("chat.heartbeat.tickMillis", 100));
+        compressionEnabled = Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+        compressionThresholdBytes = Integer.getInteger("chat.compression.thresholdBytes", 256);
+        compressionLevel = Integer.getInteger("chat.compression.level", 6);
+        if (compressionLevel < 1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("chat.compression.level must be between 1 and 9");
+        }
+        nodeId = System.getProperty("chat.node.id", "node-" + port);
+        nodeCount = Math.max(1, Integer.getInteger("chat.node.count", 1));
+        nodeIndex = Integer.getInteger("chat.node.index", 0);
+        if (nodeIndex < 0 || nodeIndex >= nodeCount) {
+            throw new IllegalArgumentException("chat.node.index must be between 0 and chat.node.count - 1");
+        }
+        busPort = Integer.getInteger("chat.bus.port", 0);
+        busHost = System.getProperty("chat.bus.host", "127.0.0.1");
+        busSecret = System.getProperty("chat.bus.secret", "");
+        busPeers = System.getProperty("chat.bus.peers", "");
+        busQueueCapacity = Integer.getInteger("chat.bus.queue", 65536);
+        String[] defaultLimits = {
+                "100/200", "2/5", "20/40", "10/20", "10/20", "5/20", "10/20", "5/10", "2/10", "2/10"
+        };
+        rateLimits = new RateLimiter.Limits();
+        for (int slot = 0; slot < defaultLimits.length; slot++) {
+            rateLimits.parse(slot, System.getProperty("chat.limit." + RateLimiter.SLOT_NAMES[slot],
+                    defaultLimits[slot]));
+        }
+        rateLimitPolicy = RateLimiter.BreachPolicy.valueOf(
+                System.getProperty("chat.limit.policy", "REJECT").toUpperCase());
+    }
+}
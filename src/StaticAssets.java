@@ -0,0 +1,281 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * StaticAssets class serves the HTML pages from memory. Each file is read from
+ * disk once, when it is first asked for, together with a gzip-compressed copy
+ * and an ETag of its content. Later requests are answered from the cache: with
+ * 304 Not Modified if the browser already has the current version, with the
+ * compressed copy if the browser accepts gzip, and with the plain bytes
+ * otherwise.
+ * <p>
+ * A watcher thread listens for changes in the asset directory and drops the
+ * cached copy of any file that changes, so edits show up on the next request
+ * without a restart.
+ */
+public class StaticAssets implements Closeable {
+
+    private final Path root;
+    private final Map<String, Asset> cache = new ConcurrentHashMap<>();
+    private final WatchService watcher;
+
+    /**
+     * Asset class holds one file as it is sent over the wire.
+     */
+    private static final class Asset {
+        private final byte[] plain;
+        private final byte[] gzip; // null if compressing does not make it smaller
+        private final String etag;
+        private final String contentType;
+
+        Asset(byte[] plain, byte[] gzip, String etag, String contentType) {
+            this.plain = plain;
+            this.gzip = gzip;
+            this.etag = etag;
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * Constructs a new StaticAssets for the files in a directory and starts
+     * watching the directory for changes.
+     *
+     * @param root The directory holding the assets.
+     * @throws IOException If the directory cannot be watched.
+     */
+    public StaticAssets(Path root) throws IOException {
+        this.root = root;
+        this.watcher = root.getFileSystem().newWatchService();
+        root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        Thread thread = new Thread(this::watch, "chat-assets");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns a handler that answers every GET or HEAD request with one file.
+     *
+     * @param fileName The name of the file in the asset directory.
+     * @return The handler.
+     */
+    public HttpHandler handler(String fileName) {
+        return exchange -> serve(exchange, fileName);
+    }
+
+    /**
+     * Stops watching the asset directory.
+     *
+     * @throws IOException If the watcher cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    /**
+     * Answers one request with a file.
+     *
+     * @param exchange The HTTP exchange.
+     * @param fileName The name of the file in the asset directory.
+     * @throws IOException If the response cannot be written.
+     */
+    private void serve(HttpExchange exchange, String fileName) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            boolean head = method.equalsIgnoreCase("HEAD");
+            if (!head && !method.equalsIgnoreCase("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Asset asset;
+            try {
+                asset = cache.computeIfAbsent(fileName, this::load);
+            } catch (UncheckedIOException e) {
+                if (!(e.getCause() instanceof NoSuchFileException)) {
+                    System.err.println("Could not read " + fileName + ": " + e.getCause());
+                }
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            Headers request = exchange.getRequestHeaders();
+            Headers response = exchange.getResponseHeaders();
+            response.set("ETag", asset.etag);
+            response.set("Cache-Control", "no-cache"); // Cache, but check the ETag every time
+            response.set("Vary", "Accept-Encoding");
+            if (matches(request.getFirst("If-None-Match"), asset.etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            byte[] body = asset.plain;
+            if (asset.gzip != null && acceptsGzip(request.getFirst("Accept-Encoding"))) {
+                body = asset.gzip;
+                response.set("Content-Encoding", "gzip");
+            }
+            response.set("Content-Type", asset.contentType);
+            if (head) {
+                response.set("Content-Length", Integer.toString(body.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads a file and prepares it for sending.
+     *
+     * @param fileName The name of the file in the asset directory.
+     * @return The prepared asset.
+     * @throws UncheckedIOException If the file cannot be read.
+     */
+    private Asset load(String fileName) {
+        try {
+            byte[] plain = Files.readAllBytes(root.resolve(fileName));
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 3 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(plain);
+            }
+            byte[] gzip = compressed.size() < plain.length ? compressed.toByteArray() : null;
+            return new Asset(plain, gzip, etag(plain), contentType(fileName));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for changes in the asset directory and drops the cached copies of
+     * the files that changed.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        cache.clear(); // Some events were lost, so nothing cached can be trusted
+                    } else {
+                        cache.remove(event.context().toString());
+                    }
+                }
+                if (!key.reset()) {
+                    cache.clear();
+                    System.err.println("Asset directory " + root + " is no longer watched");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Checks whether an If-None-Match header names the given ETag.
+     *
+     * @param header The header value, or null.
+     * @param etag   The current ETag.
+     * @return True if the browser already has the current version.
+     */
+    private static boolean matches(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2); // Weak comparison, as RFC 7232 asks for here
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an Accept-Encoding header allows gzip.
+     *
+     * @param header The header value, or null.
+     * @return True if a gzip body may be sent.
+     */
+    private static boolean acceptsGzip(String header) {
+        if (header == null) {
+            return false;
+        }
+        for (String coding : header.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                // "gzip;q=0" means the browser explicitly refuses it
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes a strong ETag from the file content.
+     *
+     * @param content The file content.
+     * @return The quoted ETag.
+     */
+    private static String etag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder etag = new StringBuilder(18).append('"');
+            for (int i = 0; i < 8; i++) {
+                etag.append(Character.forDigit((digest[i] >> 4) & 0xF, 16))
+                        .append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Returns the content type of a file from its extension.
+     *
+     * @param fileName The file name.
+     * @return The content type.
+     */
+    private static String contentType(String fileName) {
+        if (fileName.endsWith(".html")) {
+            return "text/html; charset=UTF-8";
+        }
+        if (fileName.endsWith(".css")) {
+            return "text/css; charset=UTF-8";
+        }
+        if (fileName.endsWith(".js")) {
+            return "application/javascript; charset=UTF-8";
+        }
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * StoreBenchmark class measures the cost of the operations behind "update"
+ * and "del" as the history grows: the author check, the edit and the delete.
+ * It runs them against a MessageStore and, for comparison, against the plain
+ * list the server used before, which found a message by walking the history.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.sizes    history sizes to measure (10000,100000,1000000)
+ *   bench.ops      store operations timed per size (100000)
+ *   bench.scanOps  list operations timed per size (200)
+ * </pre>
+ * Message content is drawn from a fixed vocabulary, so, as in a real chat,
+ * each word occurs in a small share of the messages. The store keeps its
+ * search index, so a million messages need a heap of about 2 GB (-Xmx2g).
+ */
+public class StoreBenchmark {
+
+    /**
+     * The number of distinct words message content is made of.
+     */
+    private static final int VOCABULARY = 5000;
+
+    /**
+     * The number of words in each message.
+     */
+    private static final int WORDS = 6;
+
+    private final int[] sizes;
+    private final int ops;
+    private final int scanOps;
+
+    /**
+     * Constructs a new StoreBenchmark from the current system properties.
+     */
+    public StoreBenchmark() {
+        String[] parts = System.getProperty("bench.sizes", "10000,100000,1000000").split(",");
+        sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        ops = Integer.getInteger("bench.ops", 100000);
+        scanOps = Integer.getInteger("bench.scanOps", 200);
+    }
+
+    /**
+     * Runs the benchmark for every size and prints one line per size.
+     */
+    public void run() {
+        System.out.printf("%10s  %14s  %14s  %14s  %14s%n", "messages", "store check", "store update",
+                "store delete", "list update");
+        for (int size : sizes) {
+            // The first pass warms up the JIT; only the second is reported
+            measure(size, true);
+            double[] store = measure(size, false);
+            double list = measureList(size);
+            System.out.printf("%10d  %11.0f ns  %11.0f ns  %11.0f ns  %11.0f ns%n", size, store[0], store[1],
+                    store[2], list);
+            System.gc();
+        }
+    }
+
+    /**
+     * Times author checks, edits and deletes of random messages in a store.
+     * Every deleted message is replaced by a new one, so the size holds.
+     *
+     * @param size   The number of messages.
+     * @param warmup True to run a short pass whose results are thrown away.
+     * @return The average nanoseconds of a check, an update and a delete.
+     */
+    private double[] measure(int size, boolean warmup) {
+        Random random = new Random(42);
+        MessageStore store = new MessageStore();
+        for (int id = 1; id <= size; id++) {
+            store.add(new GroupChatServer.Message(id, content(random), "user" + (id % 100), id));
+        }
+        int count = warmup ? Math.min(ops, 20000) : ops;
+        // Pick the targets and new content up front, so only the store is timed
+        int[] ids = new int[count];
+        String[] texts = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = 1 + random.nextInt(size);
+            texts[i] = content(random);
+        }
+
+        long start = System.nanoTime();
+        int owned = 0;
+        for (int i = 0; i < count; i++) {
+            GroupChatServer.Message message = store.get(ids[i]);
+            if (message != null && message.getUsername().equals("user7")) {
+                owned++;
+            }
+        }
+        long check = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            store.update(ids[i], texts[i]);
+        }
+        long update = System.nanoTime() - start;
+
+        int nextId = size + 1;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (store.remove(ids[i]) != null) {
+                store.add(new GroupChatServer.Message(nextId, texts[i], "user1", nextId));
+                nextId++;
+            }
+        }
+        long delete = System.nanoTime() - start;
+        if (owned < 0) {
+            System.out.println(); // Keeps the lookups from being optimized away
+        }
+        return new double[]{(double) check / count, (double) update / count, (double) delete / count};
+    }
+
+    /**
+     * Times edits in a list of messages the way the server made them before
+     * it had a store: one walk to check the author and one to apply the edit.
+     *
+     * @param size The number of messages.
+     * @return The average nanoseconds of an update.
+     */
+    private double measureList(int size) {
+        Random random = new Random(42);
+        List<GroupChatServer.Message> messages = new ArrayList<>(size);
+        for (int id = 1; id <= size; id++) {
+            messages.add(new GroupChatServer.Message(id, content(random), "user" + (id % 100), id));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < scanOps; i++) {
+            int id = 1 + random.nextInt(size);
+            String author = null;
+            for (GroupChatServer.Message message : messages) {
+                if (message.getId() == id) {
+                    author = message.getUsername();
+                    break;
+                }
+            }
+            for (GroupChatServer.Message message : messages) {
+                if (message.getId() == id && message.getUsername().equals(author)) {
+                    message.setContent("edited");
+                    break;
+                }
+            }
+        }
+        return (double) (System.nanoTime() - start) / scanOps;
+    }
+
+    /**
+     * Makes up the content of a message.
+     *
+     * @param random The source of words.
+     * @return A few words from the vocabulary.
+     */
+    private static String content(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < WORDS; i++) {
+            text.append(i == 0 ? "" : " ").append('w').append(random.nextInt(VOCABULARY));
+        }
+        return text.toString();
+    }
+
+    public static void main(String[] args) {
+        new StoreBenchmark().run();
+    }
+}
@@ -0,0 +1,314 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StoreStressTest class hammers one room's ID counter and message store from
+ * many threads at once and then checks that nothing was lost or duplicated.
+ * Each thread adds messages with IDs from ChatRoom.nextMessageId, edits and
+ * deletes its own messages, and edits a small set of messages every thread
+ * shares. Meanwhile a background thread keeps moving messages to the cold
+ * tier, so changes also race with demotion.
+ * <p>
+ * Afterwards it checks that:
+ * <ul>
+ *   <li>no message ID was handed out twice;</li>
+ *   <li>the store holds exactly the messages added and not deleted;</li>
+ *   <li>every message holds the last content its thread wrote, and every
+ *       shared message the last content one of the threads wrote;</li>
+ *   <li>the search index finds exactly the messages holding each term.</li>
+ * </ul>
+ * It prints every failed check and exits with status 1 if there was one.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.threads     threads changing the store (8)
+ *   bench.ops         changes per thread (50000)
+ *   bench.shared      messages every thread edits (64)
+ *   bench.hotMessages hot window of the cold tier, 0 for none (1000)
+ * </pre>
+ */
+public class StoreStressTest {
+
+    private final int threads;
+    private final int ops;
+    private final int shared;
+    private final int hotMessages;
+    private final List<String> failures = new ArrayList<>();
+
+    /**
+     * The changes made by one thread, kept by that thread alone until it ends.
+     */
+    private static final class Worker {
+        private final List<Integer> allocated = new ArrayList<>();
+        private final Map<Integer, String> live = new HashMap<>();
+        private final Set<Integer> deleted = new HashSet<>();
+        private final String[] lastShared;
+
+        Worker(int shared) {
+            lastShared = new String[shared];
+        }
+    }
+
+    /**
+     * Constructs a new StoreStressTest from the current system properties.
+     */
+    public StoreStressTest() {
+        threads = Integer.getInteger("bench.threads", 8);
+        ops = Integer.getInteger("bench.ops", 50000);
+        shared = Integer.getInteger("bench.shared", 64);
+        hotMessages = Integer.getInteger("bench.hotMessages", 1000);
+    }
+
+    /**
+     * Runs the stress test and the checks.
+     *
+     * @return True if every check passed.
+     * @throws Exception If the room cannot be opened.
+     */
+    public boolean run() throws Exception {
+        Path directory = Files.createTempDirectory("chat-stress");
+        System.setProperty("chat.persistence", "false");
+        System.setProperty("chat.retention.hotMessages", Integer.toString(hotMessages));
+        ServerConfig config = new ServerConfig();
+        ChatRoom room = new ChatRoom("stress", directory, config, Runnable::run);
+        MessageStore store = room.getMessages();
+        int[] sharedIds = new int[shared];
+        for (int i = 0; i < shared; i++) {
+            sharedIds[i] = room.nextMessageId();
+            store.add(new GroupChatServer.Message(sharedIds[i], "shared start", "main", System.currentTimeMillis()));
+        }
+
+        Worker[] workers = new Worker[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Worker worker = workers[t] = new Worker(shared);
+            int number = t;
+            Thread thread = new Thread(() -> work(number, worker, room, sharedIds, start), "stress-" + t);
+            thread.start();
+            running.add(thread);
+        }
+        AtomicInteger passes = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread maintenance = new Thread(() -> {
+            while (!done.get()) {
+                room.enforceRetention();
+                passes.incrementAndGet();
+            }
+        }, "stress-maintenance");
+
+        long began = System.nanoTime();
+        maintenance.start();
+        start.countDown();
+        for (Thread thread : running) {
+            thread.join();
+        }
+        done.set(true);
+        maintenance.join();
+        long elapsed = System.nanoTime() - began;
+        System.out.printf("%d threads made %d changes in %.2f s (%.0f changes/s), %d maintenance passes%n",
+                threads, (long) threads * ops, elapsed / 1e9, (double) threads * ops / (elapsed / 1e9),
+                passes.get());
+
+        checkIds(workers);
+        Map<Integer, String> expected = expectedHistory(workers, sharedIds, store);
+        checkStore(store, expected);
+        checkIndex(store, expected);
+        room.close();
+
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " check(s) failed");
+        return failures.isEmpty();
+    }
+
+    /**
+     * Makes random changes as one thread.
+     *
+     * @param number    The thread's number.
+     * @param worker    The thread's record of its changes.
+     * @param room      The room under test.
+     * @param sharedIds The IDs of the shared messages.
+     * @param start     Released when every thread may begin.
+     */
+    private void work(int number, Worker worker, ChatRoom room, int[] sharedIds, CountDownLatch start) {
+        MessageStore store = room.getMessages();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Integer> own = new ArrayList<>();
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            return;
+        }
+        for (int n = 0; n < ops; n++) {
+            String content = "t" + number + " n" + n;
+            int pick = random.nextInt(100);
+            if (pick < 50 || own.isEmpty()) {
+                int id = room.nextMessageId();
+                worker.allocated.add(id);
+                store.add(new GroupChatServer.Message(id, content, "t" + number, System.currentTimeMillis()));
+                worker.live.put(id, content);
+                own.add(id);
+            } else if (pick < 75) {
+                int id = own.get(random.nextInt(own.size()));
+                if (!store.update(id, content)) {
+                    fail("Update of message " + id + " by its own thread was lost");
+                }
+                worker.live.put(id, content);
+            } else if (pick < 85) {
+                int id = own.remove(random.nextInt(own.size()));
+                if (store.remove(id) == null) {
+                    fail("Message " + id + " was gone before its own thread deleted it");
+                }
+                worker.live.remove(id);
+                worker.deleted.add(id);
+            } else {
+                int index = random.nextInt(sharedIds.length);
+                if (!store.update(sharedIds[index], content)) {
+                    fail("Update of shared message " + sharedIds[index] + " was lost");
+                }
+                worker.lastShared[index] = content;
+            }
+        }
+    }
+
+    /**
+     * Checks that no message ID was handed out twice.
+     *
+     * @param workers The threads' records.
+     */
+    private void checkIds(Worker[] workers) {
+        Set<Integer> seen = new HashSet<>();
+        int total = 0;
+        for (Worker worker : workers) {
+            seen.addAll(worker.allocated);
+            total += worker.allocated.size();
+        }
+        if (seen.size() != total) {
+            fail((total - seen.size()) + " of " + total + " message IDs were handed out twice");
+        }
+    }
+
+    /**
+     * Works out what the store must hold. A shared message must hold the last
+     * content written by one of the threads; the one it holds is taken as
+     * expected if it is such a write.
+     *
+     * @param workers   The threads' records.
+     * @param sharedIds The IDs of the shared messages.
+     * @param store     The store under test.
+     * @return The expected content by message ID.
+     */
+    private Map<Integer, String> expectedHistory(Worker[] workers, int[] sharedIds, MessageStore store) {
+        Map<Integer, String> expected = new HashMap<>();
+        for (Worker worker : workers) {
+            expected.putAll(worker.live);
+            for (int id : worker.deleted) {
+                if (store.get(id) != null) {
+                    fail("Deleted message " + id + " is still in the store");
+                }
+            }
+        }
+        for (int i = 0; i < sharedIds.length; i++) {
+            Set<String> candidates = new HashSet<>();
+            for (Worker worker : workers) {
+                if (worker.lastShared[i] != null) {
+                    candidates.add(worker.lastShared[i]);
+                }
+            }
+            if (candidates.isEmpty()) {
+                candidates.add("shared start");
+            }
+            GroupChatServer.Message message = store.get(sharedIds[i]);
+            String actual = message == null ? null : message.getContent();
+            if (!candidates.contains(actual)) {
+                fail("Shared message " + sharedIds[i] + " holds \"" + actual + "\", which is no thread's last edit");
+            }
+            expected.put(sharedIds[i], candidates.contains(actual) ? actual : candidates.iterator().next());
+        }
+        return expected;
+    }
+
+    /**
+     * Checks that the store holds exactly the expected messages.
+     *
+     * @param store    The store under test.
+     * @param expected The expected content by message ID.
+     */
+    private void checkStore(MessageStore store, Map<Integer, String> expected) {
+        if (store.size() != expected.size()) {
+            fail("The store holds " + store.size() + " messages instead of " + expected.size());
+        }
+        int wrong = 0;
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            GroupChatServer.Message message = store.get(entry.getKey());
+            if (message == null || !message.getContent().equals(entry.getValue())) {
+                wrong++;
+            }
+        }
+        if (wrong > 0) {
+            fail(wrong + " messages are missing or do not hold their last edit");
+        }
+        int previous = Integer.MIN_VALUE;
+        int walked = 0;
+        for (GroupChatServer.Message message : store.getAll()) {
+            if (message.getId() <= previous) {
+                fail("History is out of order at message " + message.getId());
+                break;
+            }
+            previous = message.getId();
+            walked++;
+        }
+        if (walked != expected.size()) {
+            fail("Walking the history found " + walked + " messages instead of " + expected.size());
+        }
+    }
+
+    /**
+     * Checks that searching for each thread's term finds exactly the messages
+     * whose content holds it.
+     *
+     * @param store    The store under test.
+     * @param expected The expected content by message ID.
+     */
+    private void checkIndex(MessageStore store, Map<Integer, String> expected) {
+        int[] holding = new int[threads];
+        for (String content : expected.values()) {
+            if (content.startsWith("t")) {
+                holding[Integer.parseInt(content.substring(1, content.indexOf(' ')))]++;
+            }
+        }
+        for (int t = 0; t < threads; t++) {
+            int found = store.search("t" + t, 0, 1).getTotal();
+            if (found != holding[t]) {
+                fail("Search for \"t" + t + "\" finds " + found + " messages instead of " + holding[t]);
+            }
+        }
+    }
+
+    /**
+     * Records a failed check.
+     *
+     * @param failure What went wrong.
+     */
+    private void fail(String failure) {
+        synchronized (failures) {
+            failures.add(failure);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new StoreStressTest().run() ? 0 : 1);
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * TcpEventBus class connects the nodes of a chat cluster over plain TCP. Each
+ * node listens on its bus port and opens one connection to every peer, which
+ * it only writes to; what it hears from a peer comes in over the connection
+ * that peer opened. Several nodes can run on one machine by giving each its
+ * own ports.
+ * <p>
+ * The bus listens on loopback unless told otherwise, and only takes events
+ * from other nodes it can trust, since it applies their edits and deletes as
+ * they come. A connection starts with a random challenge from the accepting
+ * side, answered with the node ID of the side that opened it and an
+ * HMAC-SHA256 of both under the cluster's shared secret. Without a secret
+ * the answer is empty and only connections from the hosts of the configured
+ * peers are accepted. After that every event is one frame: an int length
+ * followed by the event as written by {@link BusEvent#writeTo}.
+ * <p>
+ * Each peer has its own bounded queue and writer thread, so a slow or
+ * unreachable peer never holds up the rooms or the other peers. While a peer
+ * is unreachable its events wait in the queue; when the queue is full, new
+ * events for that peer are dropped and counted.
+ */
+public class TcpEventBus implements EventBus {
+
+    /**
+     * The largest frame accepted from a peer.
+     */
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    private static final long MIN_RECONNECT_MILLIS = 100;
+    private static final long MAX_RECONNECT_MILLIS = 5000;
+
+    /**
+     * The bytes of the challenge a connection starts with.
+     */
+    private static final int CHALLENGE_BYTES = 16;
+
+    /**
+     * The longest a peer may take to answer the challenge.
+     */
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private final String nodeId;
+    private final InetSocketAddress bindAddress;
+
+    /**
+     * The shared secret of the cluster, or null to accept only the hosts of
+     * the configured peers.
+     */
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<Peer> peers = new ArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    /**
+     * Peer class is the outgoing side of the connection to one other node.
+     */
+    private final class Peer implements Runnable {
+        private final InetSocketAddress address;
+        private final BlockingQueue<BusEvent> queue;
+        private volatile Socket socket;
+        private volatile Thread writer;
+        private long dropped;
+
+        Peer(InetSocketAddress address, int queueCapacity) {
+            this.address = address;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        void offer(BusEvent event) {
+            if (!queue.offer(event)) {
+                synchronized (this) {
+                    dropped++;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long backoff = MIN_RECONNECT_MILLIS;
+            boolean reported = false; // Only the first failure of an outage is logged
+            BusEvent unsent = null;
+            while (!closed) {
+                try (Socket connection = new Socket()) {
+                    connection.setTcpNoDelay(true);
+                    connection.connect(address, (int) MAX_RECONNECT_MILLIS);
+                    socket = connection;
+                    connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    DataInputStream in = new DataInputStream(connection.getInputStream());
+                    byte[] challenge = new byte[CHALLENGE_BYTES];
+                    in.readFully(challenge);
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(connection.getOutputStream(), 64 * 1024));
+                    out.writeUTF(nodeId);
+                    byte[] answer = secret != null ? sign(challenge, nodeId) : new byte[0];
+                    out.writeInt(answer.length);
+                    out.write(answer);
+                    out.flush();
+                    connection.setSoTimeout(0);
+                    backoff = MIN_RECONNECT_MILLIS;
+                    reported = false;
+                    reportDropped();
+                    ByteArrayOutputStream frame = new ByteArrayOutputStream(256);
+                    DataOutputStream frameOut = new DataOutputStream(frame);
+                    while (!closed) {
+                        if (unsent == null) {
+                            unsent = queue.take();
+                        }
+                        // Write everything already queued before flushing, so a burst
+                        // goes out in as few packets as possible
+                        do {
+                            frame.reset();
+                            unsent.writeTo(frameOut);
+                            out.writeInt(frame.size());
+                            frame.writeTo(out);
+                            unsent = queue.poll();
+                        } while (unsent != null);
+                        out.flush();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (!closed && !reported) {
+                        System.err.println("Bus connection to " + address + " failed: " + e.getMessage());
+                        reported = true;
+                    }
+                }
+                socket = null;
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(MAX_RECONNECT_MILLIS, backoff * 2);
+            }
+        }
+
+        private synchronized void reportDropped() {
+            if (dropped > 0) {
+                System.err.println("Dropped " + dropped + " bus events for " + address + " because its queue was full");
+                dropped = 0;
+            }
+        }
+
+        void close() {
+            Thread current = writer;
+            if (current != null) {
+                current.interrupt();
+            }
+            Socket connection = socket;
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructs a new TcpEventBus.
+     *
+     * @param nodeId        The ID of this node, unique in the cluster.
+     * @param bindAddress   The address to listen on for the other nodes.
+     * @param peers         The bus addresses of the other nodes.
+     * @param queueCapacity The number of events queued for each peer.
+     * @param secret        The secret every node of the cluster shares, or an
+     *                      empty string to accept only the hosts of the peers.
+     */
+    public TcpEventBus(String nodeId, InetSocketAddress bindAddress, List<InetSocketAddress> peers, int queueCapacity,
+            String secret) {
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.secret = secret.isEmpty() ? null
+                : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        for (InetSocketAddress address : peers) {
+            this.peers.add(new Peer(address, queueCapacity));
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of host:port addresses.
+     *
+     * @param list The list, possibly empty.
+     * @return The addresses.
+     * @throws IllegalArgumentException If an entry has no port.
+     */
+    public static List<InetSocketAddress> parsePeers(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Peer address needs host:port: " + entry);
+            }
+            addresses.add(new InetSocketAddress(entry.substring(0, colon),
+                    Integer.parseInt(entry.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        ServerSocket listening = new ServerSocket();
+        listening.bind(bindAddress);
+        serverSocket = listening;
+        Thread acceptor = new Thread(() -> accept(listener), "chat-bus-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers) {
+            Thread writer = new Thread(peer, "chat-bus-out-" + peer.address);
+            writer.setDaemon(true);
+            peer.writer = writer;
+            writer.start();
+        }
+    }
+
+    /**
+     * Accepts the connections of the other nodes, each read on its own thread.
+     */
+    private void accept(Listener listener) {
+        while (!closed) {
+            try {
+                Socket connection = serverSocket.accept();
+                connection.setTcpNoDelay(true);
+                inbound.add(connection);
+                Thread reader = new Thread(() -> read(connection, listener), "chat-bus-in");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Bus accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the events of one other node until its connection is lost.
+     */
+    private void read(Socket connection, Listener listener) {
+        String peerId = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 64 * 1024));
+            peerId = authenticate(connection, in);
+            listener.onNodeUp(peerId);
+            byte[] buffer = new byte[256];
+            while (!closed) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME_BYTES) {
+                    throw new IOException("Malformed frame length: " + length);
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                listener.onEvent(BusEvent.readFrom(peerId,
+                        new DataInputStream(new ByteArrayInputStream(buffer, 0, length))));
+            }
+        } catch (EOFException | SocketException e) {
+            // The peer stopped or the bus is closing
+        } catch (IOException e) {
+            System.err.println("Bus connection from " + (peerId != null ? peerId : connection.getRemoteSocketAddress())
+                    + " failed: " + e.getMessage());
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            inbound.remove(connection);
+            if (peerId != null && !closed) {
+                listener.onNodeDown(peerId);
+            }
+        }
+    }
+
+    /**
+     * Challenges the node that opened a connection and checks its answer.
+     *
+     * @param connection The connection.
+     * @param in         The stream to read the answer from.
+     * @return The ID of the node.
+     * @throws IOException If the node does not answer in time or is not
+     *                     trusted.
+     */
+    private String authenticate(Socket connection, DataInputStream in) throws IOException {
+        connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        connection.getOutputStream().write(challenge);
+        connection.getOutputStream().flush();
+        String peerId = in.readUTF();
+        int length = in.readInt();
+        if (length < 0 || length > 64) {
+            throw new IOException("Malformed answer length: " + length);
+        }
+        byte[] answer = new byte[length];
+        in.readFully(answer);
+        if (secret != null) {
+            if (!MessageDigest.isEqual(answer, sign(challenge, peerId))) {
+                throw new IOException("Wrong secret");
+            }
+        } else if (!isPeerHost(connection.getInetAddress())) {
+            throw new IOException("Not a configured peer");
+        }
+        connection.setSoTimeout(0);
+        return peerId;
+    }
+
+    /**
+     * Returns the answer to a challenge for the given node.
+     */
+    private byte[] sign(byte[] challenge, String id) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(challenge);
+            return mac.doFinal(id.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot sign the bus challenge", e);
+        }
+    }
+
+    /**
+     * Checks whether an address is that of one of the configured peers.
+     */
+    private boolean isPeerHost(InetAddress address) {
+        for (Peer peer : peers) {
+            if (address.equals(peer.address.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void publish(BusEvent event) {
+        for (Peer peer : peers) {
+            peer.offer(event);
+        }
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the port the bus listens on.
+     *
+     * @return The port, which is only known after the bus started if 0 was
+     *         asked for.
+     */
+    public int getPort() {
+        ServerSocket current = serverSocket;
+        return current != null ? current.getLocalPort() : bindAddress.getPort();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Socket connection : inbound) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+    }
+}
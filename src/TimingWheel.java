@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * TimingWheel class is a hashed timing wheel: a ring of slots that a single
+ * thread steps through one tick at a time. A timeout is put into the slot its
+ * deadline falls on, so each tick only looks at the timeouts of one slot,
+ * however many are scheduled in total. Scheduling and cancelling are O(1) and
+ * allocate one small object at most, where a scheduled executor keeps every
+ * task in one heap and pays O(log n) for each.
+ * <p>
+ * Timeouts further ahead than one turn of the wheel stay in their slot and
+ * are passed over until the turn their deadline falls in. Deadlines are whole
+ * ticks, so a timeout fires up to one tick late.
+ * <p>
+ * Any thread may schedule or cancel. New timeouts are handed to the wheel
+ * through a queue and sorted into their slots on its next tick, so the slots
+ * themselves are only ever touched by the thread that calls {@link #advance}.
+ *
+ * @param <T> The type of the items timeouts are for.
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Timeout class is one scheduled item.
+     *
+     * @param <T> The type of the item.
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keeps the timeout from firing. It is dropped from the wheel when its
+         * slot next comes round.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final List<Timeout<T>>[] slots;
+    private final int mask;
+    private final long tickMillis;
+    private final Consumer<T> onExpiry;
+    private final Queue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of ticks so far. Only written by the thread that advances
+     * the wheel.
+     */
+    private volatile long tick;
+
+    /**
+     * Constructs a new TimingWheel.
+     *
+     * @param slotCount  The number of slots, rounded up to a power of two.
+     *                   One turn of the wheel should cover the usual delay.
+     * @param tickMillis The time one tick stands for.
+     * @param onExpiry   Called with the item of each timeout that fires, on
+     *                   the thread that advances the wheel.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(int slotCount, long tickMillis, Consumer<T> onExpiry) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.slots = new List[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.tickMillis = tickMillis;
+        this.onExpiry = onExpiry;
+    }
+
+    /**
+     * Schedules an item.
+     *
+     * @param item       The item.
+     * @param delayTicks The number of ticks from now it is due, at least one.
+     * @return The timeout, which can be cancelled.
+     */
+    public Timeout<T> schedule(T item, long delayTicks) {
+        Timeout<T> timeout = new Timeout<>(item, tick + Math.max(1, delayTicks));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the current tick, which also serves as a cheap clock for
+     * anything measured against this wheel's timeouts.
+     *
+     * @return The number of ticks so far.
+     */
+    public long now() {
+        return tick;
+    }
+
+    /**
+     * Returns the number of ticks a time spans, rounded up.
+     *
+     * @param millis The time in milliseconds.
+     * @return The ticks.
+     */
+    public long ticks(long millis) {
+        return (millis + tickMillis - 1) / tickMillis;
+    }
+
+    /**
+     * Returns the time one tick stands for.
+     *
+     * @return The tick in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Moves the wheel on by one tick and fires the timeouts that are due.
+     * Must only be called from one thread at a time, normally at a fixed rate
+     * of one tick per tick time.
+     */
+    public void advance() {
+        long now = tick + 1;
+        tick = now;
+        Timeout<T> timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (!timeout.cancelled) {
+                // A timeout scheduled just before this tick may already be due
+                slots[(int) (Math.max(timeout.deadline, now) & mask)].add(timeout);
+            }
+        }
+        List<Timeout<T>> slot = slots[(int) (now & mask)];
+        int kept = 0;
+        int size = slot.size();
+        for (int i = 0; i < size; i++) {
+            timeout = slot.get(i);
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.deadline > now) {
+                slot.set(kept++, timeout); // Due in a later turn
+                continue;
+            }
+            try {
+                onExpiry.accept(timeout.item);
+            } catch (RuntimeException e) {
+                System.err.println("Timeout failed: " + e);
+            }
+        }
+        // Timeouts scheduled by onExpiry went to the pending queue, so the
+        // slot still holds exactly what it did
+        slot.subList(kept, size).clear();
+    }
+}
@@ -0,0 +1,154 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * TimingWheelBenchmark class measures what keeping a liveness check per
+ * connection costs, on the heartbeat wheel the server uses and on a scheduled
+ * executor with one task per connection. For each it times scheduling and
+ * cancelling a check with every connection's check outstanding, and reports
+ * the nanoseconds and heap bytes per operation.
+ * <p>
+ * For the wheel it also times a tick with every connection tracked, where
+ * each check that fires schedules the next one as the server does. Spread
+ * over a heartbeat interval, a tick only touches the checks of its own slot,
+ * so its cost follows the number of checks due rather than the number of
+ * connections.
+ * <p>
+ * Settings are "bench."-prefixed Java system properties:
+ * <pre>
+ *   bench.connections  connections tracked (100000)
+ *   bench.ticks        wheel ticks timed (3000)
+ *   bench.delayTicks   ticks between checks of a connection (300)
+ * </pre>
+ */
+public class TimingWheelBenchmark {
+
+    private final int connections;
+    private final int ticks;
+    private final int delayTicks;
+
+    /**
+     * Keeps the results of the timed operations from being optimized away.
+     */
+    private long sink;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Constructs a new TimingWheelBenchmark from the current system
+     * properties.
+     */
+    public TimingWheelBenchmark() {
+        connections = Integer.getInteger("bench.connections", 100000);
+        ticks = Integer.getInteger("bench.ticks", 3000);
+        delayTicks = Integer.getInteger("bench.delayTicks", 300);
+    }
+
+    /**
+     * Runs every case and prints one row per case.
+     */
+    public void run() {
+        System.out.printf("%-34s  %10s  %8s%n", "case", "ns/op", "B/op");
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT; only the second is reported
+            boolean report = pass == 1;
+            measureWheel(report);
+            measureExecutor(report);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Times scheduling, ticking and cancelling on a wheel that tracks every
+     * connection.
+     */
+    private void measureWheel(boolean report) {
+        AtomicReference<TimingWheel<Integer>> holder = new AtomicReference<>();
+        TimingWheel<Integer> wheel = new TimingWheel<>(512, 100, item -> {
+            sink += item;
+            holder.get().schedule(item, delayTicks);
+        });
+        holder.set(wheel);
+        Random random = new Random(42);
+        List<TimingWheel.Timeout<Integer>> timeouts = new ArrayList<>(connections);
+
+        long[] before = start();
+        for (int i = 0; i < connections; i++) {
+            timeouts.add(wheel.schedule(i, 1 + random.nextInt(delayTicks)));
+        }
+        // Timeouts reach their slots on the next tick, which is part of
+        // scheduling them
+        wheel.advance();
+        report(report, "wheel schedule", before, connections);
+
+        before = start();
+        for (int i = 0; i < ticks; i++) {
+            wheel.advance();
+        }
+        report(report, "wheel tick (" + connections + " tracked)", before, ticks);
+
+        before = start();
+        for (TimingWheel.Timeout<Integer> timeout : timeouts) {
+            timeout.cancel();
+        }
+        report(report, "wheel cancel", before, connections);
+    }
+
+    /**
+     * Times scheduling and cancelling one task per connection on a scheduled
+     * executor.
+     */
+    private void measureExecutor(boolean report) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        Random random = new Random(42);
+        List<ScheduledFuture<?>> futures = new ArrayList<>(connections);
+        Runnable check = () -> sink++;
+
+        long[] before = start();
+        for (int i = 0; i < connections; i++) {
+            // Far enough off that none of them runs while timed
+            futures.add(executor.schedule(check, 3600_000 + random.nextInt(delayTicks * 100), TimeUnit.MILLISECONDS));
+        }
+        report(report, "executor schedule", before, connections);
+
+        before = start();
+        for (ScheduledFuture<?> future : futures) {
+            future.cancel(false);
+        }
+        report(report, "executor cancel", before, connections);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the time and this thread's allocated bytes at the start of a
+     * timed case.
+     */
+    private long[] start() {
+        return new long[] { System.nanoTime(), threads.getThreadAllocatedBytes(Thread.currentThread().getId()) };
+    }
+
+    /**
+     * Prints the time and heap bytes per operation since the start of a case.
+     */
+    private void report(boolean report, String name, long[] before, int ops) {
+        long elapsed = System.nanoTime() - before[0];
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before[1];
+        if (report) {
+            System.out.printf("%-34s  %10.1f  %8d%n", name, (double) elapsed / ops, allocated / ops);
+        }
+    }
+
+    public static void main(String[] args) {
+        new TimingWheelBenchmark().run();
+    }
+}
@@ -0,0 +1,90 @@
+import org.java_websocket.WebSocket;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UserRegistry class maps connections to usernames and usernames back to
+ * connections, so both "who is this connection" and "is this name taken" are
+ * single hash lookups. A username is claimed with one atomic putIfAbsent, so
+ * two clients joining with the same name at the same moment cannot both get
+ * it.
+ */
+public class UserRegistry {
+
+    private final Map<String, WebSocket> connectionsByName = new ConcurrentHashMap<>();
+    private final Map<WebSocket, String> namesByConnection = new ConcurrentHashMap<>();
+
+    /**
+     * Claims a username for a connection.
+     *
+     * @param conn     The WebSocket connection.
+     * @param username The username.
+     * @return True if the name now belongs to the connection, false if another
+     *         connection holds it.
+     */
+    public boolean claim(WebSocket conn, String username) {
+        WebSocket owner = connectionsByName.putIfAbsent(username, conn);
+        if (owner != null && owner != conn) {
+            return false; // Username is already in use
+        }
+        String previous = namesByConnection.put(conn, username);
+        if (previous != null && !previous.equals(username)) {
+            connectionsByName.remove(previous, conn);
+        }
+        return true;
+    }
+
+    /**
+     * Releases the username held by a connection.
+     *
+     * @param conn The WebSocket connection.
+     * @return The released username, or null if the connection had none.
+     */
+    public String release(WebSocket conn) {
+        String username = namesByConnection.remove(conn);
+        if (username != null) {
+            connectionsByName.remove(username, conn);
+        }
+        return username;
+    }
+
+    /**
+     * Returns the username held by a connection.
+     *
+     * @param conn The WebSocket connection.
+     * @return The username, or null if the connection has not joined.
+     */
+    public String getUsername(WebSocket conn) {
+        return namesByConnection.get(conn);
+    }
+
+    /**
+     * Returns the connection holding a username.
+     *
+     * @param username The username.
+     * @return The connection, or null if nobody holds the name.
+     */
+    public WebSocket getConnection(String username) {
+        return connectionsByName.get(username);
+    }
+
+    /**
+     * Returns the number of joined connections.
+     *
+     * @return The number of claimed usernames.
+     */
+    public int size() {
+        return namesByConnection.size();
+    }
+
+    /**
+     * Returns a read-only view of the joined connections and their usernames.
+     *
+     * @return A live, unmodifiable map from connection to username.
+     */
+    public Map<WebSocket, String> connections() {
+        return Collections.unmodifiableMap(namesByConnection);
+    }
+}